@@ -0,0 +1,65 @@
+package io.wifi.p2p;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * The checksum that follows every chunk of a verified transfer: a CRC32 with {@link
+ * FileHeader#FLAG_CRC32}, a SHA-256 with {@link FileHeader#FLAG_SHA256}. It always covers the
+ * uncompressed chunk, so it checks the whole path from the sender's file to the receiver's.
+ */
+public class ChunkChecksum {
+  private final CRC32 crc;
+  private final MessageDigest sha256;
+  private final byte[] value;
+
+  private ChunkChecksum(CRC32 crc, MessageDigest sha256, int length) {
+    this.crc = crc;
+    this.sha256 = sha256;
+    this.value = new byte[length];
+  }
+
+  /** The checksum announced by {@code header}, {@code null} for an unverified transfer. */
+  public static ChunkChecksum forHeader(FileHeader header) {
+    if ((header.flags & FileHeader.FLAG_SHA256) != 0) {
+      try {
+        return new ChunkChecksum(null, MessageDigest.getInstance("SHA-256"), 32);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    if ((header.flags & FileHeader.FLAG_CRC32) != 0) {
+      return new ChunkChecksum(new CRC32(), null, 4);
+    }
+    return null;
+  }
+
+  public int length() {
+    return value.length;
+  }
+
+  /**
+   * Computes the checksum of the remaining bytes of {@code data}, which must be backed by an
+   * array, leaving its position alone. The result is only valid until the next call.
+   */
+  public byte[] compute(ByteBuffer data) {
+    byte[] array = data.array();
+    int offset = data.arrayOffset() + data.position();
+    int length = data.remaining();
+    if (crc != null) {
+      crc.reset();
+      crc.update(array, offset, length);
+      ByteBuffer.wrap(value).putInt((int) crc.getValue());
+    } else {
+      sha256.update(array, offset, length);
+      System.arraycopy(sha256.digest(), 0, value, 0, value.length);
+    }
+    return value;
+  }
+
+  public boolean verify(ByteBuffer data, byte[] expected) {
+    return MessageDigest.isEqual(compute(data), expected);
+  }
+}
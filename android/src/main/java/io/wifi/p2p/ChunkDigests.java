@@ -0,0 +1,50 @@
+package io.wifi.p2p;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 digests of the chunks of a file, and the content hash derived from them: the SHA-256 of
+ * all chunk digests in chunk order. The streams of a striped transfer record their own chunks as
+ * they read them, so a file is hashed without a pass of its own.
+ */
+public class ChunkDigests {
+  public static final int HASH_LENGTH = 32;
+
+  private final byte[][] digests;
+
+  public ChunkDigests(long chunkCount) {
+    this.digests = new byte[(int) chunkCount][];
+  }
+
+  /** Records the digest of the remaining bytes of {@code data}, leaving its position alone. */
+  public void record(long chunk, ByteBuffer data) {
+    MessageDigest digest = sha256();
+    digest.update(data.duplicate());
+    digests[(int) chunk] = digest.digest();
+  }
+
+  /**
+   * The content hash, or {@code null} when not every chunk was recorded (e.g. some were skipped
+   * because the receiver already had them). Must be called after the recording streams finished.
+   */
+  public byte[] contentHash() {
+    MessageDigest digest = sha256();
+    for (byte[] chunk : digests) {
+      if (chunk == null) {
+        return null;
+      }
+      digest.update(chunk);
+    }
+    return digest.digest();
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
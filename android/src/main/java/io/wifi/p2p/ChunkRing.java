@@ -0,0 +1,189 @@
+package io.wifi.p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chunks of a file shared by the streams of a {@link FileBroadcastTransfer}, so the file is read
+ * once however many receivers there are. The ring holds a fixed number of chunks. The reader
+ * waits for the oldest one to be released by every stream before reading the next into its slot,
+ * so a slow receiver holds the reader back by at most the capacity of the ring instead of having
+ * the file read again for it. A stream that fails is {@link #remove removed} and no longer holds
+ * anyone back, nor does one that held the reader back for longer than the stall timeout: it is
+ * dropped and reported by {@link #takeStalled}.
+ *
+ * <p>The bytes of a chunk are reported to the progress once every stream released it.
+ */
+public class ChunkRing {
+  private final ByteBuffer[] slots;
+  private final int[] lengths;
+  /** Next chunk each stream needs, {@code Long.MAX_VALUE} once it is removed. */
+  private final long[] positions;
+  private final TransferProgress progress;
+  private final long stallNanos;
+  private final List<Integer> stalled = new ArrayList<>();
+  /** Chunks read so far. */
+  private long produced;
+  /** Chunks released by every stream. */
+  private long released;
+  /** Chunks counted in the progress. */
+  private long reported;
+  private boolean ended;
+  private IOException error;
+
+  /**
+   * @param capacity number of chunks held in memory
+   * @param streams number of streams taking the chunks, numbered from 0
+   * @param stallMillis how long the slowest stream may keep the reader waiting
+   */
+  public ChunkRing(
+      int capacity, int chunkSize, int streams, long stallMillis, TransferProgress progress) {
+    slots = new ByteBuffer[capacity];
+    lengths = new int[capacity];
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = ByteBuffer.allocate(chunkSize);
+    }
+    positions = new long[streams];
+    this.progress = progress;
+    this.stallNanos = stallMillis * 1000000;
+  }
+
+  /**
+   * Waits until {@code chunk}, the next one to read, has a free slot and returns it cleared, or
+   * {@code null} when every stream was removed and there is no point in reading on.
+   */
+  public synchronized ByteBuffer acquire(long chunk) throws IOException {
+    long waited = released;
+    long deadline = System.nanoTime() + stallNanos;
+    while (released == Long.MAX_VALUE || chunk - released >= slots.length) {
+      if (released == Long.MAX_VALUE) {
+        return null;
+      }
+      if (released != waited) {
+        waited = released;
+        deadline = System.nanoTime() + stallNanos;
+      }
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        dropLaggards();
+        continue;
+      }
+      await(remaining);
+    }
+    ByteBuffer slot = slots[(int) (chunk % slots.length)];
+    slot.clear();
+    return slot;
+  }
+
+  /** Makes the chunk read into its slot, now flipped, available to the streams. */
+  public synchronized void publish(long chunk) {
+    lengths[(int) (chunk % slots.length)] = slots[(int) (chunk % slots.length)].remaining();
+    produced = chunk + 1;
+    report();
+    notifyAll();
+  }
+
+  /** Marks the end of the file: there are no chunks after the published ones. */
+  public synchronized void end() {
+    ended = true;
+    notifyAll();
+  }
+
+  /** Fails every stream waiting for a chunk, e.g. when the file can not be read. */
+  public synchronized void fail(IOException e) {
+    error = e;
+    notifyAll();
+  }
+
+  /**
+   * Waits until {@code chunk} was read and returns a view of it, or {@code null} when the file
+   * ended before it. The view is valid until the stream releases the chunk.
+   */
+  public synchronized ByteBuffer take(long chunk) throws IOException {
+    while (chunk >= produced) {
+      if (error != null) {
+        throw error;
+      }
+      if (ended) {
+        return null;
+      }
+      await();
+    }
+    ByteBuffer view = slots[(int) (chunk % slots.length)].duplicate();
+    view.position(0).limit(lengths[(int) (chunk % slots.length)]);
+    return view;
+  }
+
+  /** Releases every chunk up to and including {@code chunk} for {@code stream}. */
+  public synchronized void release(int stream, long chunk) {
+    if (positions[stream] <= chunk) {
+      positions[stream] = chunk + 1;
+      advance();
+    }
+  }
+
+  /** Drops a stream that failed: the reader no longer waits for it. */
+  public synchronized void remove(int stream) {
+    positions[stream] = Long.MAX_VALUE;
+    advance();
+  }
+
+  /** Streams dropped since the last call for stalling, whose writes may still be blocked. */
+  public synchronized List<Integer> takeStalled() {
+    List<Integer> streams = new ArrayList<>(stalled);
+    stalled.clear();
+    return streams;
+  }
+
+  private void dropLaggards() {
+    for (int stream = 0; stream < positions.length; stream++) {
+      if (positions[stream] == released) {
+        positions[stream] = Long.MAX_VALUE;
+        stalled.add(stream);
+      }
+    }
+    advance();
+  }
+
+  private void advance() {
+    long lowest = Long.MAX_VALUE;
+    for (long position : positions) {
+      lowest = Math.min(lowest, position);
+    }
+    if (lowest != released) {
+      released = lowest;
+      report();
+      notifyAll();
+    }
+  }
+
+  /**
+   * Counts the chunks both read and released. A chunk is only overwritten once it is, so its
+   * length is still there.
+   */
+  private void report() {
+    for (; reported < Math.min(released, produced); reported++) {
+      progress.advance(lengths[(int) (reported % slots.length)]);
+    }
+  }
+
+  private void await() throws IOException {
+    await(0);
+  }
+
+  /** Waits for a change, at most {@code nanos} unless 0. */
+  private void await(long nanos) throws IOException {
+    try {
+      if (nanos > 0) {
+        wait(Math.max(1, nanos / 1000000));
+      } else {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a chunk", e);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package io.wifi.p2p;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates blocks of data for the wire. A block is only sent compressed when that saves at least
+ * 10%; deflating stops as soon as the output grows past that, so content that does not compress
+ * costs little CPU.
+ *
+ * <p>An adaptive compressor samples the first {@link #SAMPLE_COUNT} blocks and turns itself off
+ * when none of them compressed, as happens with JPEG, MP4 and other already compressed formats.
+ */
+public class Compressor {
+  public static final int LEVEL_NONE = 0;
+  public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+  private static final double MAX_RATIO = 0.9;
+  private static final int SAMPLE_COUNT = 2;
+
+  private final Deflater deflater;
+  private final boolean adaptive;
+  private byte[] output = new byte[0];
+  private int sampled;
+  private int hits;
+
+  public Compressor(int level, boolean adaptive) {
+    this.deflater = new Deflater(level);
+    this.adaptive = adaptive;
+  }
+
+  /** Clamps a requested level to what {@link Deflater} accepts, {@link #LEVEL_NONE} for off. */
+  public static int level(int requested) {
+    return Math.max(LEVEL_NONE, Math.min(Deflater.BEST_COMPRESSION, requested));
+  }
+
+  /** False once sampling showed the content does not compress. */
+  public boolean enabled() {
+    return !adaptive || sampled < SAMPLE_COUNT || hits > 0;
+  }
+
+  public void setLevel(int level) {
+    deflater.setLevel(level);
+  }
+
+  /**
+   * Deflates {@code length} bytes of {@code input} into {@link #output}. Returns the compressed
+   * length, or -1 when the block should be sent as it is.
+   */
+  public int compress(byte[] input, int offset, int length) {
+    int limit = (int) (length * MAX_RATIO);
+    if (output.length < limit) {
+      output = new byte[limit];
+    }
+    deflater.reset();
+    deflater.setInput(input, offset, length);
+    deflater.finish();
+    int compressed = 0;
+    while (!deflater.finished() && compressed < limit) {
+      compressed += deflater.deflate(output, compressed, limit - compressed);
+    }
+    boolean worthIt = deflater.finished();
+    if (sampled < SAMPLE_COUNT) {
+      sampled++;
+      hits += worthIt ? 1 : 0;
+    }
+    return worthIt ? compressed : -1;
+  }
+
+  /** The output of the last {@link #compress}. */
+  public byte[] output() {
+    return output;
+  }
+
+  public void end() {
+    deflater.end();
+  }
+
+  /** Inflates a block that has to expand to exactly {@code outputLength} bytes. */
+  public static void inflate(
+      Inflater inflater,
+      byte[] input,
+      int inputOffset,
+      int inputLength,
+      byte[] output,
+      int outputLength)
+      throws IOException {
+    inflater.reset();
+    inflater.setInput(input, inputOffset, inputLength);
+    try {
+      int inflated = 0;
+      while (inflated < outputLength && !inflater.finished()) {
+        int n = inflater.inflate(output, inflated, outputLength - inflated);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += n;
+      }
+      // With the output full, the end of the stream may not have been consumed yet.
+      if (!inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+        throw new IOException("Compressed block longer than announced");
+      }
+      if (inflated != outputLength || !inflater.finished()) {
+        throw new IOException("Corrupt compressed block");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt compressed block", e);
+    }
+  }
+}
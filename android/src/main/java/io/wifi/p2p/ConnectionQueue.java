@@ -0,0 +1,146 @@
+package io.wifi.p2p;
+
+import android.util.Log;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking stand-in for {@code ServerSocketChannel.accept()} on top of a {@link ListenerRegistry}:
+ * the connections of the registered channels are queued until {@link #accept} takes them. Closing
+ * the queue unregisters it, closes the connections nobody took and wakes up a pending accept.
+ */
+public class ConnectionQueue implements ListenerRegistry.Handler, Closeable {
+  private static final String TAG = "RNWiFiP2P";
+  private static final ListenerRegistry.Connection CLOSED =
+      new ListenerRegistry.Connection(null, Protocol.CHANNEL_LEGACY, null, null);
+
+  private final ListenerRegistry registry;
+  private final int port;
+  private final byte[] channels;
+  private final LinkedBlockingQueue<ListenerRegistry.Connection> connections =
+      new LinkedBlockingQueue<>();
+  private volatile boolean closed;
+  private Runnable ready;
+
+  ConnectionQueue(ListenerRegistry registry, int port, byte[] channels) {
+    this.registry = registry;
+    this.port = port;
+    this.channels = channels;
+  }
+
+  @Override
+  public void onConnection(ListenerRegistry.Connection connection) {
+    try {
+      connection.channel.configureBlocking(true);
+    } catch (IOException e) {
+      Log.e(TAG, e.getMessage());
+      closeQuietly(connection);
+      return;
+    }
+    connections.add(connection);
+    if (closed) {
+      drain();
+    }
+    signalReady();
+  }
+
+  /**
+   * Runs {@code ready} once, as soon as a connection is queued or the queue is closed; right away
+   * when that already happened.
+   */
+  public void whenReady(Runnable ready) {
+    synchronized (this) {
+      if (connections.isEmpty()) {
+        this.ready = ready;
+        return;
+      }
+    }
+    ready.run();
+  }
+
+  /** Waits for the next connection. */
+  public ListenerRegistry.Connection accept() throws IOException {
+    if (closed) {
+      throw new AsynchronousCloseException();
+    }
+    try {
+      ListenerRegistry.Connection connection = connections.take();
+      if (connection == CLOSED) {
+        throw new AsynchronousCloseException();
+      }
+      return connection;
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while waiting for a connection", e);
+    }
+  }
+
+  /** Waits up to {@code timeoutMillis} for the next connection. */
+  public ListenerRegistry.Connection accept(long timeoutMillis) throws IOException {
+    if (closed) {
+      throw new AsynchronousCloseException();
+    }
+    try {
+      ListenerRegistry.Connection connection =
+          connections.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+      if (connection == null) {
+        throw new SocketTimeoutException("No connection within " + timeoutMillis + " ms");
+      }
+      if (connection == CLOSED) {
+        throw new AsynchronousCloseException();
+      }
+      return connection;
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while waiting for a connection", e);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (byte channel : channels) {
+      registry.unregister(port, channel, this);
+    }
+    drain();
+    signalReady();
+  }
+
+  private void signalReady() {
+    Runnable pending;
+    synchronized (this) {
+      pending = ready;
+      ready = null;
+    }
+    if (pending != null) {
+      pending.run();
+    }
+  }
+
+  /** Closes the queued connections and leaves the marker that wakes up {@link #accept}. */
+  private void drain() {
+    List<ListenerRegistry.Connection> pending = new ArrayList<>();
+    connections.drainTo(pending);
+    for (ListenerRegistry.Connection connection : pending) {
+      if (connection != CLOSED) {
+        closeQuietly(connection);
+      }
+    }
+    connections.add(CLOSED);
+  }
+
+  private static void closeQuietly(ListenerRegistry.Connection connection) {
+    try {
+      connection.channel.close();
+    } catch (IOException e) {
+      // Give up
+    }
+  }
+}
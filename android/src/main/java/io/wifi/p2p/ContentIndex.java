@@ -0,0 +1,163 @@
+package io.wifi.p2p;
+
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * On-disk index from content hash (see {@link ChunkDigests}) to a local file with that content. The
+ * sender looks up the hash of a file it sent before, the receiver looks up a local copy of the
+ * content it is offered. An entry is only trusted while its file keeps the size and modification
+ * time it had when it was indexed.
+ *
+ * <p>The index is a text file with one entry per line: the hex hash, the size, the modification
+ * time and the path. Entries are appended; the file is rewritten without the stale ones when it is
+ * loaded.
+ */
+public class ContentIndex {
+  private static final String TAG = "RNWiFiP2P";
+
+  private final File file;
+  private Map<String, Entry> byHash;
+  private Map<String, Entry> byPath;
+
+  public ContentIndex(File file) {
+    this.file = file;
+  }
+
+  /** A file that still holds the content with {@code hash}, or {@code null}. */
+  public synchronized File lookup(byte[] hash) {
+    load();
+    Entry entry = byHash.get(toHex(hash));
+    return entry != null && entry.isCurrent() ? new File(entry.path) : null;
+  }
+
+  /** The content hash of {@code source} when it was indexed and has not changed since. */
+  public synchronized byte[] hashOf(File source) {
+    load();
+    Entry entry = byPath.get(source.getAbsolutePath());
+    return entry != null && entry.isCurrent() ? fromHex(entry.hash) : null;
+  }
+
+  public synchronized void put(byte[] hash, File source) {
+    load();
+    Entry entry =
+        new Entry(toHex(hash), source.length(), source.lastModified(), source.getAbsolutePath());
+    add(entry);
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), Utils.CHARSET)) {
+      out.write(entry.toLine());
+    } catch (IOException e) {
+      Log.e(TAG, "Could not update the content index: " + e.getMessage());
+    }
+  }
+
+  private void load() {
+    if (byHash != null) {
+      return;
+    }
+    byHash = new HashMap<>();
+    byPath = new HashMap<>();
+    if (!file.exists()) {
+      return;
+    }
+    int lines = 0;
+    try (BufferedReader in =
+        new BufferedReader(new InputStreamReader(new FileInputStream(file), Utils.CHARSET))) {
+      for (String line; (line = in.readLine()) != null; lines++) {
+        Entry entry = Entry.parse(line);
+        if (entry != null && entry.isCurrent()) {
+          add(entry);
+        }
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Could not read the content index: " + e.getMessage());
+    }
+    if (lines > byPath.size()) {
+      compact();
+    }
+  }
+
+  private void add(Entry entry) {
+    Entry replaced = byPath.put(entry.path, entry);
+    if (replaced != null && byHash.get(replaced.hash) == replaced) {
+      byHash.remove(replaced.hash);
+    }
+    byHash.put(entry.hash, entry);
+  }
+
+  private void compact() {
+    File temp = new File(file.getPath() + ".tmp");
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), Utils.CHARSET)) {
+      for (Entry entry : byPath.values()) {
+        out.write(entry.toLine());
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Could not compact the content index: " + e.getMessage());
+      temp.delete();
+      return;
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  private static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+
+  private static class Entry {
+    final String hash;
+    final long size;
+    final long modified;
+    final String path;
+
+    Entry(String hash, long size, long modified, String path) {
+      this.hash = hash;
+      this.size = size;
+      this.modified = modified;
+      this.path = path;
+    }
+
+    static Entry parse(String line) {
+      String[] fields = line.split(" ", 4);
+      if (fields.length != 4 || fields[0].length() != ChunkDigests.HASH_LENGTH * 2) {
+        return null;
+      }
+      try {
+        return new Entry(
+            fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    boolean isCurrent() {
+      File current = new File(path);
+      return current.isFile() && current.length() == size && current.lastModified() == modified;
+    }
+
+    String toLine() {
+      return hash + " " + size + " " + modified + " " + path + "\n";
+    }
+  }
+}
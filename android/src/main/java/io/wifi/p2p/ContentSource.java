@@ -0,0 +1,76 @@
+package io.wifi.p2p;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The readable side of a file transfer. Content backed by a regular file is exposed as a {@link
+ * FileChannel} with a known size so it can be sent with {@link FileChannel#transferTo}, which lets
+ * the kernel move the data without copying it into the Java heap. Anything else (pipes, remote
+ * providers) is exposed as a plain channel of unknown size.
+ */
+public class ContentSource implements Closeable {
+  private static final String TAG = "RNWiFiP2P";
+
+  private final ParcelFileDescriptor descriptor;
+  private final ReadableByteChannel channel;
+  private final long size;
+
+  private ContentSource(ParcelFileDescriptor descriptor, ReadableByteChannel channel, long size) {
+    this.descriptor = descriptor;
+    this.channel = channel;
+    this.size = size;
+  }
+
+  public static ContentSource open(ContentResolver cr, Uri uri) throws IOException {
+    ParcelFileDescriptor descriptor = null;
+    try {
+      descriptor = cr.openFileDescriptor(uri, "r");
+    } catch (FileNotFoundException e) {
+      Log.i(TAG, "No file descriptor for " + uri + ", streaming instead");
+    }
+
+    if (descriptor != null) {
+      FileChannel file = new FileInputStream(descriptor.getFileDescriptor()).getChannel();
+      return new ContentSource(descriptor, file, descriptor.getStatSize());
+    }
+
+    InputStream is = cr.openInputStream(uri);
+    if (is == null) {
+      throw new FileNotFoundException("Can not open " + uri);
+    }
+    return new ContentSource(null, Channels.newChannel(is), -1);
+  }
+
+  /** Size in bytes, or -1 when the content is not a regular file. */
+  public long size() {
+    return size;
+  }
+
+  /** The underlying file, or {@code null} when the content can only be streamed. */
+  public FileChannel file() {
+    return size >= 0 && channel instanceof FileChannel ? (FileChannel) channel : null;
+  }
+
+  public ReadableByteChannel channel() {
+    return channel;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+    if (descriptor != null) {
+      descriptor.close();
+    }
+  }
+}
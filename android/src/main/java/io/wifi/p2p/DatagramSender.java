@@ -0,0 +1,148 @@
+package io.wifi.p2p;
+
+import android.os.Build;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Sends datagrams over UDP: a message is a single packet, with no connection to set up and no
+ * acknowledgement, for data where a late sample is worth nothing such as sensor readings.
+ *
+ * <p>Every destination gets its own stream: a random id and a sequence number counting up from 0,
+ * which let the {@link DatagramServer} report lost datagrams and drop late ones. A datagram sent
+ * to the {@link #groupBroadcastAddress} reaches every peer of the group listening on the port; one
+ * sent to a multicast group every peer that joined it, see {@link DatagramServer}. Multicast goes
+ * out on the group interface from Android 7 on, before that on the default one.
+ */
+public class DatagramSender {
+  /** Prefix of the name of the WiFi Direct group interface, e.g. p2p-wlan0-0. */
+  static final String GROUP_INTERFACE_PREFIX = "p2p";
+
+  private final Map<String, Stream> streams = new HashMap<>();
+  private final Random random = new Random();
+  private final ByteBuffer buffer =
+      ByteBuffer.allocateDirect(Protocol.DATAGRAM_HEADER_LENGTH + Protocol.MAX_DATAGRAM_PAYLOAD);
+  private DatagramChannel channel;
+  private SocketOptions appliedOptions;
+  private boolean multicastInterfaceSet;
+
+  /**
+   * Sends {@code payload} as a single datagram and returns its sequence number.
+   *
+   * @param type {@link Protocol#FRAME_TEXT} or {@link Protocol#FRAME_BINARY}
+   * @param options the send buffer size and traffic class are applied to the socket
+   */
+  public synchronized int send(
+      InetSocketAddress target, byte type, byte[] payload, SocketOptions options)
+      throws IOException {
+    if (payload.length > Protocol.MAX_DATAGRAM_PAYLOAD) {
+      throw new IOException(
+          "Datagram of "
+              + payload.length
+              + " bytes is larger than "
+              + Protocol.MAX_DATAGRAM_PAYLOAD);
+    }
+    DatagramChannel channel = open(options, target.getAddress().isMulticastAddress());
+    String key = target.toString();
+    Stream stream = streams.get(key);
+    if (stream == null) {
+      stream = new Stream(random.nextInt());
+      streams.put(key, stream);
+    }
+    int sequence = stream.next++;
+    buffer.clear();
+    buffer.put(Protocol.DATAGRAM_MAGIC).put(type).putInt(stream.id).putInt(sequence).put(payload);
+    buffer.flip();
+    try {
+      channel.send(buffer, target);
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+    return sequence;
+  }
+
+  public synchronized void close() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Give up
+      }
+      channel = null;
+      appliedOptions = null;
+      multicastInterfaceSet = false;
+    }
+  }
+
+  private DatagramChannel open(SocketOptions options, boolean multicast) throws IOException {
+    if (channel == null) {
+      channel = DatagramChannel.open();
+      channel.socket().setBroadcast(true);
+    }
+    if (multicast && !multicastInterfaceSet && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+      NetworkInterface group = groupInterface();
+      if (group != null) {
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, group);
+      }
+      multicastInterfaceSet = true;
+    }
+    if (options != appliedOptions) {
+      DatagramSocket socket = channel.socket();
+      if (options.sendBufferSize > 0) {
+        socket.setSendBufferSize(options.sendBufferSize);
+      }
+      if (options.trafficClass != SocketOptions.UNSET) {
+        socket.setTrafficClass(options.trafficClass);
+      }
+      appliedOptions = options;
+    }
+    return channel;
+  }
+
+  /** The WiFi Direct group interface, {@code null} when this device is not in a group. */
+  static NetworkInterface groupInterface() throws IOException {
+    for (NetworkInterface networkInterface :
+        Collections.list(NetworkInterface.getNetworkInterfaces())) {
+      if (networkInterface.getName().startsWith(GROUP_INTERFACE_PREFIX)
+          && networkInterface.isUp()) {
+        return networkInterface;
+      }
+    }
+    return null;
+  }
+
+  /** The IPv4 broadcast address of the WiFi Direct group, which every peer of the group gets. */
+  public static InetAddress groupBroadcastAddress() throws IOException {
+    NetworkInterface group = groupInterface();
+    if (group != null) {
+      for (InterfaceAddress address : group.getInterfaceAddresses()) {
+        if (address.getAddress() instanceof Inet4Address && address.getBroadcast() != null) {
+          return address.getBroadcast();
+        }
+      }
+    }
+    throw new IOException("Not connected to a WiFi Direct group");
+  }
+
+  private static class Stream {
+    final int id;
+    int next;
+
+    Stream(int id) {
+      this.id = id;
+    }
+  }
+}
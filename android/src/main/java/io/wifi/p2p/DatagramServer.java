@@ -0,0 +1,168 @@
+package io.wifi.p2p;
+
+import android.os.Build;
+import android.util.Base64;
+import android.util.Log;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Receives the datagrams of {@link DatagramSender}s on a UDP port, on the {@link SelectorLoop} of
+ * the {@link ListenerRegistry}. Every datagram is reported as soon as it arrives, with its
+ * sequence number and how many datagrams of its stream were {@code lost} since the previous one.
+ * A datagram older than one already reported is late and dropped.
+ *
+ * <p>Datagrams sent to the group's broadcast address arrive like any other. Multicast ones only
+ * once the group is joined, which needs Android 7. WiFi drivers may filter both out unless the app
+ * holds a multicast lock.
+ */
+public class DatagramServer {
+  private static final String TAG = "RNWiFiP2P";
+  private static final String CHARSET = Utils.CHARSET;
+  /** Streams whose last sequence number is kept; the least recently seen are forgotten. */
+  static final int MAX_STREAMS = 256;
+
+  private final ListenerRegistry listeners;
+  private final ByteBuffer buffer =
+      ByteBuffer.allocate(Protocol.DATAGRAM_HEADER_LENGTH + Protocol.MAX_DATAGRAM_PAYLOAD);
+  // Only used on the loop thread.
+  private final Map<String, Integer> sequences =
+      new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+          return size() > MAX_STREAMS;
+        }
+      };
+  private DatagramChannel channel;
+
+  public DatagramServer(ListenerRegistry listeners) {
+    this.listeners = listeners;
+  }
+
+  /**
+   * Starts receiving on {@code port}, in place of the port received on so far. Each datagram is
+   * passed to {@code onDatagram} as a map with the {@code message}, or the base64 encoded {@code
+   * data} of a binary one, {@code fromAddress}, {@code sequence} and {@code lost}.
+   *
+   * @param multicastGroup group to join on the WiFi Direct interface, {@code null} for none
+   * @param socketOptions only the receive buffer size applies
+   */
+  public synchronized void start(
+      int port,
+      String multicastGroup,
+      SocketOptions socketOptions,
+      final CustomDefinedCallback onDatagram)
+      throws IOException {
+    stop();
+    final DatagramChannel channel = DatagramChannel.open();
+    try {
+      if (socketOptions.receiveBufferSize > 0) {
+        channel.socket().setReceiveBufferSize(socketOptions.receiveBufferSize);
+      }
+      channel.socket().bind(new InetSocketAddress(port));
+      if (multicastGroup != null) {
+        join(channel, InetAddress.getByName(multicastGroup));
+      }
+      channel.configureBlocking(false);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    this.channel = channel;
+
+    final SelectorLoop loop = listeners.loop();
+    loop.execute(
+        () -> {
+          sequences.clear();
+          try {
+            loop.register(channel, SelectionKey.OP_READ, key -> receive(channel, onDatagram));
+          } catch (ClosedChannelException e) {
+            // Stopped already
+          }
+        });
+    Log.i(TAG, "Server: receiving datagrams on port " + port);
+  }
+
+  public synchronized void stop() {
+    if (channel == null) {
+      return;
+    }
+    try {
+      listeners.loop().close(channel);
+    } catch (IOException e) {
+      Log.e(TAG, e.getMessage());
+    }
+    channel = null;
+  }
+
+  private static void join(DatagramChannel channel, InetAddress group) throws IOException {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+      throw new IOException("Joining a multicast group needs Android 7");
+    }
+    NetworkInterface networkInterface = DatagramSender.groupInterface();
+    if (networkInterface == null) {
+      throw new IOException("Not connected to a WiFi Direct group");
+    }
+    channel.join(group, networkInterface);
+  }
+
+  /** Reports every datagram waiting on the channel. */
+  private void receive(DatagramChannel channel, CustomDefinedCallback onDatagram)
+      throws IOException {
+    while (true) {
+      buffer.clear();
+      InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+      if (from == null) {
+        return;
+      }
+      int length = buffer.position();
+      byte type = length >= Protocol.DATAGRAM_HEADER_LENGTH ? buffer.get(1) : 0;
+      if (buffer.get(0) != Protocol.DATAGRAM_MAGIC
+          || (type != Protocol.FRAME_TEXT && type != Protocol.FRAME_BINARY)) {
+        Log.w(TAG, "Server: dropping a datagram that is not ours from " + from);
+        continue;
+      }
+      int stream = buffer.getInt(2);
+      int sequence = buffer.getInt(6);
+      String address = from.getAddress().getHostAddress();
+      String key = address + "/" + stream;
+      Integer last = sequences.get(key);
+      int lost = 0;
+      if (last != null) {
+        // Sequence numbers wrap around, their difference does not.
+        int distance = sequence - last;
+        if (distance <= 0) {
+          continue;
+        }
+        lost = distance - 1;
+      }
+      sequences.put(key, sequence);
+
+      int offset = Protocol.DATAGRAM_HEADER_LENGTH;
+      WritableMap map = Arguments.createMap();
+      if (type == Protocol.FRAME_BINARY) {
+        map.putString(
+            "data", Base64.encodeToString(buffer.array(), offset, length - offset, Base64.NO_WRAP));
+      } else {
+        map.putString(
+            "message",
+            new String(buffer.array(), offset, length - offset, Charset.forName(CHARSET)));
+      }
+      map.putString("fromAddress", address);
+      map.putDouble("sequence", sequence & 0xFFFFFFFFL);
+      map.putDouble("lost", lost);
+      onDatagram.invoke(map);
+    }
+  }
+}
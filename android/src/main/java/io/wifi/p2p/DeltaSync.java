@@ -0,0 +1,543 @@
+package io.wifi.p2p;
+
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+
+/**
+ * rsync style transfer of a file the receiver has an older version of. It follows a {@link
+ * FileHeader} with {@link FileHeader#FLAG_DELTA} on a single stream:
+ *
+ * <ol>
+ *   <li>The receiver answers with the signature of its copy: the block size, then a weak rolling
+ *       checksum and a strong hash (the first 16 bytes of its SHA-256) for every full block.
+ *   <li>The sender rolls the weak checksum over the new version byte by byte. Where it matches a
+ *       block, and the strong hash confirms it, a reference to the block is sent; everything in
+ *       between is sent as literal data, deflated when the header announces compression.
+ *   <li>The sender closes with the SHA-256 of the new version. The receiver rebuilds the file from
+ *       its old copy and the literals in a temporary file next to it, checks the hash, renames the
+ *       temporary file over the old copy and reports the result.
+ * </ol>
+ *
+ * A receiver without an old copy sends an empty signature and gets the whole file as literals.
+ */
+public class DeltaSync {
+  static final byte OP_END = 0;
+  static final byte OP_COPY = 1;
+  static final byte OP_LITERAL = 2;
+  static final byte OP_DEFLATED = 3;
+  static final byte RESULT_OK = 0;
+  static final byte RESULT_CORRUPT = 1;
+
+  static final int MIN_BLOCK_SIZE = 1024;
+  static final int MAX_BLOCK_SIZE = 128 * 1024;
+  static final int MAX_LITERAL = 256 * 1024;
+
+  private static final String TAG = "RNWiFiP2P";
+  private static final int STRONG_LENGTH = 16;
+  private static final int HASH_LENGTH = 32;
+  private static final int STREAM_BUFFER = 64 * 1024;
+  private static final int TAG_BITS = 20;
+
+  private DeltaSync() {}
+
+  /** Block size for an old copy of {@code size} bytes: about its square root, as rsync does. */
+  static int blockSize(long size) {
+    int blockSize = (int) Math.sqrt(size) & ~(MIN_BLOCK_SIZE - 1);
+    return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+  }
+
+  /**
+   * Sends {@code file} after {@code header} and returns the number of literal bytes that went over
+   * the wire.
+   */
+  public static long send(
+      FileChannel file, FileHeader header, ByteChannel channel, TransferProgress progress)
+      throws IOException {
+    header.write(channel);
+    DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+    Signature signature = Signature.read(in);
+    DataOutputStream out =
+        new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(channel), STREAM_BUFFER));
+    Compressor compressor =
+        header.compressionLevel != Compressor.LEVEL_NONE
+            ? new Compressor(header.compressionLevel, true)
+            : null;
+    try {
+      Encoder encoder = new Encoder(signature, out, compressor, progress);
+      byte[] hash = encoder.encode(file, header.size);
+      out.writeByte(OP_END);
+      out.write(hash);
+      out.flush();
+      Log.i(
+          TAG,
+          "Delta: "
+              + encoder.literalBytes
+              + " literal bytes, "
+              + (header.size - encoder.literalBytes)
+              + " bytes reused");
+      if (in.readByte() != RESULT_OK) {
+        throw new IOException("The receiver could not rebuild the file");
+      }
+      return encoder.literalBytes;
+    } finally {
+      if (compressor != null) {
+        compressor.end();
+      }
+    }
+  }
+
+  /**
+   * Receives the transfer announced by {@code header} and replaces {@code destination} with the
+   * new version. Returns the number of literal bytes received.
+   *
+   * @param syncInterval anything but {@link FileReceiver#SYNC_NONE} syncs the new version before
+   *     it is renamed into place
+   */
+  public static long receive(
+      File destination,
+      FileHeader header,
+      ByteChannel channel,
+      long syncInterval,
+      TransferProgress progress)
+      throws IOException {
+    progress.setTotal(header.size);
+    File temp = new File(destination.getPath() + ".p2p-delta");
+    DataOutputStream reply =
+        new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(channel), STREAM_BUFFER));
+    try {
+      long literalBytes;
+      try (RandomAccessFile basis =
+              destination.isFile() ? new RandomAccessFile(destination, "r") : null;
+          FileOutputStream file = new FileOutputStream(temp)) {
+        Signature signature =
+            basis != null
+                ? Signature.compute(basis.getChannel())
+                : new Signature(MIN_BLOCK_SIZE, 0);
+        signature.write(reply);
+        reply.flush();
+
+        DataInputStream in =
+            new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel), STREAM_BUFFER));
+        Decoder decoder =
+            new Decoder(
+                signature.blockSize, basis != null ? basis.getChannel() : null, file, progress);
+        boolean intact = decoder.decode(in, signature.blockCount) && decoder.written == header.size;
+        if (intact && syncInterval != FileReceiver.SYNC_NONE) {
+          file.getFD().sync();
+        }
+        if (!intact) {
+          Log.e(TAG, "Delta: the rebuilt file does not match, keeping " + destination);
+          reply.writeByte(RESULT_CORRUPT);
+          reply.flush();
+          throw new IOException("Delta transfer produced a corrupt file");
+        }
+        literalBytes = decoder.literalBytes;
+      }
+      // Renamed once the temporary file is complete and closed.
+      if (!temp.renameTo(destination)) {
+        throw new IOException("Could not replace " + destination);
+      }
+      reply.writeByte(RESULT_OK);
+      reply.flush();
+      return literalBytes;
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /** rsync's weak checksum of {@code length} bytes: two 16 bit sums packed into an int. */
+  static int weak(byte[] data, int offset, int length) {
+    int a = 0;
+    int b = 0;
+    for (int i = 0; i < length; i++) {
+      a += data[offset + i] & 0xFF;
+      b += a;
+    }
+    return pack(a, b);
+  }
+
+  /** Puts the strong hash of {@code length} bytes of {@code data} into {@code out}. */
+  private static void strong(
+      MessageDigest sha256, byte[] data, int offset, int length, byte[] out, int outOffset) {
+    sha256.update(data, offset, length);
+    System.arraycopy(sha256.digest(), 0, out, outOffset, STRONG_LENGTH);
+  }
+
+  private static int pack(int a, int b) {
+    return (a & 0xFFFF) | (b << 16);
+  }
+
+  private static MessageDigest digest(String algorithm) {
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Checksums of the full blocks of the receiver's copy. */
+  static class Signature {
+    final int blockSize;
+    final int blockCount;
+    final int[] weak;
+    final byte[] strong;
+
+    Signature(int blockSize, int blockCount) {
+      this.blockSize = blockSize;
+      this.blockCount = blockCount;
+      this.weak = new int[blockCount];
+      this.strong = new byte[blockCount * STRONG_LENGTH];
+    }
+
+    static Signature compute(FileChannel file) throws IOException {
+      long size = file.size();
+      int blockSize = blockSize(size);
+      Signature signature = new Signature(blockSize, (int) (size / blockSize));
+      MessageDigest sha256 = digest("SHA-256");
+      ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+      for (int block = 0; block < signature.blockCount; block++) {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+          if (file.read(buffer, (long) block * blockSize + buffer.position()) == -1) {
+            throw new IOException("File shrank while computing its signature");
+          }
+        }
+        signature.weak[block] = weak(buffer.array(), 0, blockSize);
+        strong(sha256, buffer.array(), 0, blockSize, signature.strong, block * STRONG_LENGTH);
+      }
+      return signature;
+    }
+
+    static Signature read(DataInputStream in) throws IOException {
+      int blockSize = in.readInt();
+      int blockCount = in.readInt();
+      if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || blockCount < 0) {
+        throw new IOException("Invalid delta signature");
+      }
+      Signature signature = new Signature(blockSize, blockCount);
+      for (int block = 0; block < blockCount; block++) {
+        signature.weak[block] = in.readInt();
+        in.readFully(signature.strong, block * STRONG_LENGTH, STRONG_LENGTH);
+      }
+      return signature;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeInt(blockSize);
+      out.writeInt(blockCount);
+      for (int block = 0; block < blockCount; block++) {
+        out.writeInt(weak[block]);
+        out.write(strong, block * STRONG_LENGTH, STRONG_LENGTH);
+      }
+    }
+  }
+
+  /** Turns the new version into copy and literal operations against a {@link Signature}. */
+  private static class Encoder {
+    private final Signature signature;
+    private final DataOutputStream out;
+    private final Compressor compressor;
+    private final TransferProgress progress;
+    /** Blocks by weak checksum, behind a bit set that rules out most misses without boxing. */
+    private final Map<Integer, int[]> blocks = new HashMap<>();
+    private final long[] tags = new long[(1 << TAG_BITS) / 64];
+    private final MessageDigest blockHash = digest("SHA-256");
+    private final byte[] strong = new byte[STRONG_LENGTH];
+    private int copyStart = -1;
+    private int copyCount;
+    long literalBytes;
+
+    Encoder(
+        Signature signature,
+        DataOutputStream out,
+        Compressor compressor,
+        TransferProgress progress) {
+      this.signature = signature;
+      this.out = out;
+      this.compressor = compressor;
+      this.progress = progress;
+      for (int block = 0; block < signature.blockCount; block++) {
+        int weak = signature.weak[block];
+        int[] known = blocks.get(weak);
+        if (known == null) {
+          blocks.put(weak, new int[] {block});
+        } else {
+          int[] grown = Arrays.copyOf(known, known.length + 1);
+          grown[known.length] = block;
+          blocks.put(weak, grown);
+        }
+        int tag = tag(weak);
+        tags[tag >>> 6] |= 1L << tag;
+      }
+    }
+
+    /** Sends the operations for the first {@code size} bytes of {@code file}, returns its hash. */
+    byte[] encode(FileChannel file, long size) throws IOException {
+      int blockSize = signature.blockSize;
+      MessageDigest sha256 = digest("SHA-256");
+      byte[] buffer = new byte[Math.max(4 * blockSize, 2 * MAX_LITERAL)];
+      ByteBuffer view = ByteBuffer.wrap(buffer);
+      long read = 0;
+      int start = 0; // window start
+      int end = 0; // end of the data in the buffer
+      int literal = 0; // start of the pending literal
+      boolean rolling = false;
+      int a = 0;
+      int b = 0;
+
+      while (true) {
+        if (end - start <= blockSize && read < size) {
+          // Rolling on needs the byte after the window: make room and read on.
+          flushLiteral(buffer, literal, start);
+          System.arraycopy(buffer, start, buffer, 0, end - start);
+          end -= start;
+          start = 0;
+          literal = 0;
+          view.clear().position(end).limit((int) Math.min(buffer.length, end + size - read));
+          while (view.hasRemaining()) {
+            if (file.read(view, read + view.position() - end) == -1) {
+              throw new IOException("Unexpected end of file");
+            }
+          }
+          int n = view.position() - end;
+          sha256.update(buffer, end, n);
+          read += n;
+          end += n;
+          continue;
+        }
+        if (end - start < blockSize) {
+          break;
+        }
+        if (signature.blockCount == 0) {
+          start = end;
+          continue;
+        }
+        if (!rolling) {
+          int weak = weak(buffer, start, blockSize);
+          a = weak & 0xFFFF;
+          b = weak >>> 16;
+          rolling = true;
+        }
+        int weak = pack(a, b);
+        int tag = tag(weak);
+        if ((tags[tag >>> 6] & (1L << tag)) != 0) {
+          int block = match(weak, buffer, start);
+          if (block >= 0) {
+            flushLiteral(buffer, literal, start);
+            copy(block);
+            start += blockSize;
+            literal = start;
+            rolling = false;
+            continue;
+          }
+        }
+        if (start + blockSize < end) {
+          int leaving = buffer[start] & 0xFF;
+          a += (buffer[start + blockSize] & 0xFF) - leaving;
+          b += a - blockSize * leaving;
+        } else {
+          rolling = false;
+        }
+        start++;
+        if (start - literal >= MAX_LITERAL) {
+          flushLiteral(buffer, literal, start);
+          literal = start;
+        }
+      }
+      flushLiteral(buffer, literal, end);
+      flushCopy();
+      return sha256.digest();
+    }
+
+    private int match(int weak, byte[] buffer, int start) {
+      int[] candidates = blocks.get(weak);
+      if (candidates == null) {
+        return -1;
+      }
+      strong(blockHash, buffer, start, signature.blockSize, strong, 0);
+      // Prefer the block right after the last match, which keeps copies in one run.
+      int next = copyStart + copyCount;
+      int found = -1;
+      for (int block : candidates) {
+        if (matches(block) && (found < 0 || block == next)) {
+          found = block;
+        }
+      }
+      return found;
+    }
+
+    private boolean matches(int block) {
+      int offset = block * STRONG_LENGTH;
+      for (int i = 0; i < STRONG_LENGTH; i++) {
+        if (signature.strong[offset + i] != strong[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void copy(int block) throws IOException {
+      if (copyStart >= 0 && block == copyStart + copyCount) {
+        copyCount++;
+      } else {
+        flushCopy();
+        copyStart = block;
+        copyCount = 1;
+      }
+      progress.skip(signature.blockSize);
+    }
+
+    private void flushCopy() throws IOException {
+      if (copyStart >= 0) {
+        out.writeByte(OP_COPY);
+        out.writeInt(copyStart);
+        out.writeInt(copyCount);
+        copyStart = -1;
+      }
+    }
+
+    private void flushLiteral(byte[] buffer, int from, int to) throws IOException {
+      for (int offset = from; offset < to; offset += MAX_LITERAL) {
+        int length = Math.min(MAX_LITERAL, to - offset);
+        flushCopy();
+        int compressed =
+            compressor != null && compressor.enabled()
+                ? compressor.compress(buffer, offset, length)
+                : -1;
+        if (compressed >= 0) {
+          out.writeByte(OP_DEFLATED);
+          out.writeInt(length);
+          out.writeInt(compressed);
+          out.write(compressor.output(), 0, compressed);
+        } else {
+          out.writeByte(OP_LITERAL);
+          out.writeInt(length);
+          out.write(buffer, offset, length);
+        }
+        literalBytes += length;
+        progress.advance(length);
+      }
+    }
+
+    private static int tag(int weak) {
+      return (weak * 0x9E3779B1) >>> (32 - TAG_BITS);
+    }
+  }
+
+  /** Applies the operations of an {@link Encoder} to the old copy. */
+  private static class Decoder {
+    private final int blockSize;
+    private final FileChannel basis;
+    private final OutputStream file;
+    private final TransferProgress progress;
+    private final MessageDigest sha256 = digest("SHA-256");
+    private final byte[] buffer;
+    long written;
+    long literalBytes;
+
+    Decoder(int blockSize, FileChannel basis, FileOutputStream file, TransferProgress progress) {
+      this.blockSize = blockSize;
+      this.basis = basis;
+      this.file = new BufferedOutputStream(file, STREAM_BUFFER);
+      this.progress = progress;
+      this.buffer = new byte[Math.max(MAX_LITERAL, blockSize)];
+    }
+
+    /** Returns whether the rebuilt file has the hash the sender announced. */
+    boolean decode(DataInputStream in, int blockCount) throws IOException {
+      byte[] compressed = new byte[0];
+      Inflater inflater = null;
+      try {
+        while (true) {
+          byte op = in.readByte();
+          if (op == OP_END) {
+            byte[] expected = new byte[HASH_LENGTH];
+            in.readFully(expected);
+            file.flush();
+            return MessageDigest.isEqual(expected, sha256.digest());
+          } else if (op == OP_COPY) {
+            int block = in.readInt();
+            int count = in.readInt();
+            if (block < 0 || count <= 0 || count > blockCount - block) {
+              throw new IOException("Invalid block reference " + block + "+" + count);
+            }
+            copy((long) block * blockSize, (long) count * blockSize);
+          } else if (op == OP_LITERAL || op == OP_DEFLATED) {
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_LITERAL) {
+              throw new IOException("Invalid literal length " + length);
+            }
+            if (op == OP_LITERAL) {
+              in.readFully(buffer, 0, length);
+            } else {
+              int compressedLength = in.readInt();
+              if (compressedLength <= 0 || compressedLength > length) {
+                throw new IOException("Invalid compressed length " + compressedLength);
+              }
+              if (compressed.length < compressedLength) {
+                compressed = new byte[compressedLength];
+              }
+              in.readFully(compressed, 0, compressedLength);
+              if (inflater == null) {
+                inflater = new Inflater();
+              }
+              Compressor.inflate(inflater, compressed, 0, compressedLength, buffer, length);
+            }
+            write(length);
+            literalBytes += length;
+            progress.advance(length);
+          } else {
+            throw new IOException("Invalid delta operation " + op);
+          }
+        }
+      } finally {
+        if (inflater != null) {
+          inflater.end();
+        }
+      }
+    }
+
+    private void copy(long position, long length) throws IOException {
+      progress.skip(length);
+      while (length > 0) {
+        ByteBuffer view = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, length));
+        while (view.hasRemaining()) {
+          if (basis.read(view, position + view.position()) == -1) {
+            throw new IOException("Old copy changed during the transfer");
+          }
+        }
+        write(view.position());
+        position += view.position();
+        length -= view.position();
+      }
+    }
+
+    private void write(int length) throws IOException {
+      sha256.update(buffer, 0, length);
+      file.write(buffer, 0, length);
+      written += length;
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package io.wifi.p2p;
+
+import android.os.Bundle;
+import android.util.Log;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.WritableArray;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accepts a single connection carrying a batch of files (see {@link FileBatchSender}) and writes
+ * every file below the target folder, keeping its relative path. Each received file is reported
+ * through {@code onFileReceived}; the callback gets the paths of all files once the batch is done.
+ */
+public class FileBatchReceiveTransfer extends Transfer {
+  private ListenerRegistry listeners;
+  private int port;
+  private Callback callback;
+  private CustomDefinedCallback onFileReceived;
+  private CustomDefinedCallback onProgress;
+  private File folder;
+  private long syncInterval;
+  private SocketOptions socketOptions;
+  // A React Native callback may only be invoked once.
+  private boolean reported;
+
+  /**
+   * @param id
+   * @param listeners
+   * @param port
+   * @param folder
+   * @param syncInterval see {@link FileReceiver#FileReceiver}, applied to every file
+   * @param socketOptions applied to the connection
+   * @param callback
+   * @param onFileReceived
+   * @param onProgress invoked on the transfer thread with {@link TransferProgress} reports covering
+   *     the whole batch
+   */
+  public FileBatchReceiveTransfer(
+      String id,
+      ListenerRegistry listeners,
+      int port,
+      String folder,
+      long syncInterval,
+      SocketOptions socketOptions,
+      Callback callback,
+      CustomDefinedCallback onFileReceived,
+      CustomDefinedCallback onProgress) {
+    super(id, null, PRIORITY_BULK);
+    this.listeners = listeners;
+    this.port = port;
+    this.folder = new File(folder);
+    this.syncInterval = syncInterval;
+    this.socketOptions = socketOptions;
+    this.callback = callback;
+    this.onFileReceived = onFileReceived;
+    this.onProgress = onProgress;
+  }
+
+  @Override
+  protected ConnectionQueue listen() throws IOException {
+    Log.i(TAG, "Server: waiting for a batch on port " + port);
+    return listeners.open(port, Protocol.CHANNEL_BATCH);
+  }
+
+  @Override
+  protected void transfer() throws IOException {
+    ByteChannel client = accept(incoming().accept(), socketOptions);
+    Log.i(TAG, "Server: connection done");
+    TransferProgress progress =
+        new TransferProgress(
+            folder.getAbsolutePath(), TransferProgress.DIRECTION_RECEIVE, onProgress);
+    List<String> received = receiveBatch(client, progress);
+    progress.finish();
+
+    ByteBuffer status = ByteBuffer.allocate(1);
+    status.put(FileBatchSender.STATUS_OK).flip();
+    Protocol.writeFully(client, status);
+
+    Log.i(TAG, "Files copied - " + received.size());
+    WritableArray paths = Arguments.createArray();
+    for (String path : received) {
+      paths.pushString(path);
+    }
+    reported = true;
+    callback.invoke(paths);
+  }
+
+  /** Invokes the callback with no files and the {@code error}. */
+  @Override
+  protected void fail(String error) {
+    if (!reported) {
+      reported = true;
+      callback.invoke(null, error);
+    }
+  }
+
+  private List<String> receiveBatch(ByteChannel client, TransferProgress progress)
+      throws IOException {
+    String root = folder.getCanonicalPath() + File.separator;
+    ByteBuffer tag = ByteBuffer.allocate(1);
+    ByteBuffer pathLength = ByteBuffer.allocate(2);
+    ByteBuffer size = ByteBuffer.allocate(8);
+    List<String> received = new ArrayList<>();
+
+    while (true) {
+      tag.clear();
+      Protocol.readFully(client, tag);
+      if (tag.get(0) == FileBatchSender.ENTRY_END) {
+        return received;
+      }
+
+      pathLength.clear();
+      Protocol.readFully(client, pathLength);
+      ByteBuffer path = ByteBuffer.allocate(pathLength.getShort(0) & 0xFFFF);
+      Protocol.readFully(client, path);
+      size.clear();
+      Protocol.readFully(client, size);
+      String relativePath = new String(path.array(), Utils.CHARSET);
+
+      File f = new File(folder, relativePath);
+      if (!f.getCanonicalPath().startsWith(root)) {
+        throw new IOException("Refusing to write outside of the target folder: " + relativePath);
+      }
+      File dirs = f.getParentFile();
+      if (!dirs.exists()) dirs.mkdirs();
+
+      try (FileReceiver receiver = new FileReceiver(f, syncInterval, progress, null)) {
+        receiver.receiveRaw(client, size.getLong(0));
+        receiver.finish();
+      }
+      received.add(f.getAbsolutePath());
+
+      Bundle bundle = new Bundle();
+      bundle.putString("file", f.getAbsolutePath());
+      bundle.putString("relativePath", relativePath);
+      bundle.putDouble("size", size.getLong(0));
+      bundle.putInt("index", received.size() - 1);
+      onFileReceived.invoke(bundle);
+    }
+  }
+}
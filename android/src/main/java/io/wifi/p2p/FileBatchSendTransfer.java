@@ -0,0 +1,77 @@
+package io.wifi.p2p;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ResultReceiver;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Sends a batch of files over a single connection, see {@link FileBatchSender}. */
+public class FileBatchSendTransfer extends Transfer {
+  private final ContentResolver contentResolver;
+  private final String[] fileUris;
+  private final List<String> relativePaths;
+  private final String host;
+  private final int port;
+  private final SocketOptions socketOptions;
+  private final ResultReceiver receiver;
+
+  public FileBatchSendTransfer(
+      String id,
+      ContentResolver contentResolver,
+      String[] fileUris,
+      List<String> relativePaths,
+      String host,
+      int port,
+      SocketOptions socketOptions,
+      ResultReceiver receiver) {
+    super(id, host, PRIORITY_BULK);
+    this.contentResolver = contentResolver;
+    this.fileUris = fileUris;
+    this.relativePaths = relativePaths;
+    this.host = host;
+    this.port = port;
+    this.socketOptions = socketOptions;
+    this.receiver = receiver;
+  }
+
+  @Override
+  protected void transfer() throws IOException {
+    long start = System.currentTimeMillis();
+    List<Uri> uris = new ArrayList<>();
+    long total = 0;
+    for (String fileUri : fileUris) {
+      Uri uri = Uri.parse(fileUri);
+      uris.add(uri);
+      if (total >= 0) {
+        total = "file".equals(uri.getScheme()) ? total + new File(uri.getPath()).length() : -1;
+      }
+    }
+    TransferProgress progress =
+        new TransferProgress(
+            getId(), TransferProgress.DIRECTION_SEND, TransferProgress.forwardTo(receiver));
+    progress.setTotal(total);
+
+    ByteChannel channel = connect(host, port, socketOptions);
+    int sent = FileBatchSender.sendBatch(contentResolver, uris, relativePaths, channel, progress);
+    progress.finish();
+    Log.i(TAG, "Client: " + sent + " files written");
+
+    Bundle bundle = new Bundle();
+    bundle.putLong("time", System.currentTimeMillis() - start);
+    bundle.putInt("files", sent);
+    receiver.send(0, bundle);
+  }
+
+  @Override
+  protected void fail(String error) {
+    Bundle bundle = new Bundle();
+    bundle.putString("error", error);
+    receiver.send(1, bundle);
+  }
+}
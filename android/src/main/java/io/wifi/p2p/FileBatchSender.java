@@ -0,0 +1,59 @@
+package io.wifi.p2p;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Streams many files over a single connection. After the {@link Protocol#CHANNEL_BATCH} preamble
+ * every file is sent as an entry: {@link #ENTRY_FILE}, the length and UTF-8 bytes of its relative
+ * path, its size and then its raw content. {@link #ENTRY_END} closes the batch, and the receiver
+ * confirms with a single {@link #STATUS_OK} byte once every file has been written.
+ */
+public class FileBatchSender {
+  public static final byte ENTRY_END = 0;
+  public static final byte ENTRY_FILE = 1;
+  public static final byte STATUS_OK = 0;
+
+  public static int sendBatch(
+      ContentResolver cr,
+      List<Uri> files,
+      List<String> relativePaths,
+      ByteChannel out,
+      TransferProgress progress)
+      throws IOException {
+    ByteBuffer preamble = ByteBuffer.allocate(Protocol.PREAMBLE_LENGTH);
+    preamble.put(Protocol.MAGIC).put(Protocol.VERSION).put(Protocol.CHANNEL_BATCH).flip();
+    Protocol.writeFully(out, preamble);
+
+    for (int i = 0; i < files.size(); i++) {
+      try (ContentSource source = ContentSource.open(cr, files.get(i))) {
+        FileChannel file = source.file();
+        if (file == null) {
+          throw new IOException("Can not determine the size of " + files.get(i));
+        }
+        byte[] path = relativePaths.get(i).getBytes(Utils.CHARSET);
+        ByteBuffer entry = ByteBuffer.allocate(1 + 2 + path.length + 8);
+        entry.put(ENTRY_FILE).putShort((short) path.length).put(path).putLong(source.size());
+        entry.flip();
+        Protocol.writeFully(out, entry);
+        Utils.transferFile(file, 0, source.size(), out, progress);
+      }
+    }
+
+    ByteBuffer end = ByteBuffer.allocate(1);
+    end.put(ENTRY_END).flip();
+    Protocol.writeFully(out, end);
+
+    ByteBuffer status = ByteBuffer.allocate(1);
+    Protocol.readFully(out, status);
+    if (status.get(0) != STATUS_OK) {
+      throw new IOException("Receiver rejected the batch");
+    }
+    return files.size();
+  }
+}
@@ -0,0 +1,260 @@
+package io.wifi.p2p;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ResultReceiver;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends a file to several peers at once, typically from the group owner to every client, and
+ * reports the result to a {@link ResultReceiver}.
+ *
+ * <p>The file is read once into a {@link ChunkRing} and every peer gets its own stream, written
+ * from the ring on its own thread; to the receivers it is an ordinary single stream transfer. A
+ * peer that can't be reached or fails midway is reported in {@code failed} without affecting the
+ * others; the transfer only fails when no peer got the file. A peer that stops reading is dropped
+ * once it held the others back for longer than the read timeout, or {@link #STALL_TIMEOUT_MILLIS}.
+ */
+public class FileBroadcastTransfer extends Transfer {
+  /** Chunks held in memory; a slow peer can fall this far behind before it holds the others. */
+  public static final int RING_CHUNKS = 4;
+  /** How long a peer may hold the others back when the socket options set no read timeout. */
+  public static final int STALL_TIMEOUT_MILLIS = 30000;
+
+  private final ContentResolver contentResolver;
+  private final String fileUri;
+  private final List<String> hosts;
+  private final int port;
+  private final int chunkSize;
+  private final int compressionLevel;
+  private final int verification;
+  private final String transferKey;
+  private final SocketOptions socketOptions;
+  private final ResultReceiver receiver;
+
+  /**
+   * @param compressionLevel deflate level, {@link Compressor#LEVEL_NONE} to send the file as is;
+   *     every stream deflates on its own
+   * @param verification see {@link FileSendTransfer}
+   * @param transferKey identifies the transfer so that a retry resumes it, {@code null} to derive
+   *     it from the file
+   * @param socketOptions applied to every stream
+   */
+  public FileBroadcastTransfer(
+      String id,
+      ContentResolver contentResolver,
+      String fileUri,
+      List<String> hosts,
+      int port,
+      int chunkSize,
+      int compressionLevel,
+      int verification,
+      String transferKey,
+      SocketOptions socketOptions,
+      ResultReceiver receiver) {
+    super(id, null, PRIORITY_BULK);
+    this.contentResolver = contentResolver;
+    this.fileUri = fileUri;
+    this.hosts = hosts;
+    this.port = port;
+    this.chunkSize = chunkSize;
+    this.compressionLevel = compressionLevel;
+    this.verification = verification;
+    this.transferKey = transferKey;
+    this.socketOptions = socketOptions;
+    this.receiver = receiver;
+  }
+
+  @Override
+  protected void transfer() throws IOException {
+    long start = System.currentTimeMillis();
+    List<String> delivered = new ArrayList<>();
+    List<String> failed = new ArrayList<>();
+    try (ContentSource source = ContentSource.open(contentResolver, Uri.parse(fileUri))) {
+      String key = transferKey != null ? transferKey : fileUri + ":" + source.size();
+      FileHeader header =
+          new FileHeader(
+              FileHeader.idFor(key),
+              source.size(),
+              chunkSize,
+              0,
+              1,
+              compressionLevel,
+              verification,
+              null);
+      TransferProgress progress =
+          new TransferProgress(
+              transferKey != null ? transferKey : Long.toHexString(header.transferId),
+              TransferProgress.DIRECTION_SEND,
+              TransferProgress.forwardTo(receiver));
+      progress.setTotal(header.size);
+
+      List<String> connected = new ArrayList<>();
+      List<ByteChannel> channels = new ArrayList<>();
+      for (String host : hosts) {
+        try {
+          channels.add(connect(host, port, socketOptions));
+          connected.add(host);
+        } catch (IOException e) {
+          if (isCancelled()) {
+            throw e;
+          }
+          Log.e(TAG, "Can not reach " + host + ": " + e.getMessage());
+          failed.add(host + ": " + e.getMessage());
+        }
+      }
+
+      if (!channels.isEmpty()) {
+        long stallMillis =
+            socketOptions.readTimeoutMillis > 0
+                ? socketOptions.readTimeoutMillis
+                : STALL_TIMEOUT_MILLIS;
+        ChunkRing ring =
+            new ChunkRing(RING_CHUNKS, chunkSize, channels.size(), stallMillis, progress);
+        String[] errors = sendStreams(source, header, ring, channels, stallMillis);
+        for (int i = 0; i < errors.length; i++) {
+          if (errors[i] == null) {
+            delivered.add(connected.get(i));
+          } else {
+            failed.add(connected.get(i) + ": " + errors[i]);
+          }
+        }
+      }
+      progress.finish();
+    }
+
+    if (delivered.isEmpty()) {
+      throw new IOException("No peer got the file: " + failed);
+    }
+    Log.i(TAG, "Broadcast to " + delivered.size() + " of " + hosts.size() + " peers");
+    Bundle bundle = new Bundle();
+    bundle.putLong("time", System.currentTimeMillis() - start);
+    bundle.putString("file", fileUri);
+    bundle.putStringArray("delivered", delivered.toArray(new String[0]));
+    bundle.putStringArray("failed", failed.toArray(new String[0]));
+    receiver.send(0, bundle);
+  }
+
+  @Override
+  protected void fail(String error) {
+    Bundle bundle = new Bundle();
+    bundle.putString("error", error);
+    receiver.send(1, bundle);
+  }
+
+  /**
+   * Writes every stream on its own thread while this one reads the file into the ring. Returns
+   * the error of each stream, {@code null} for the ones that succeeded.
+   */
+  private String[] sendStreams(
+      ContentSource source,
+      final FileHeader header,
+      final ChunkRing ring,
+      final List<ByteChannel> channels,
+      long stallMillis)
+      throws IOException {
+    final String[] errors = new String[channels.size()];
+    ExecutorService executor = Executors.newFixedThreadPool(channels.size());
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int i = 0; i < channels.size(); i++) {
+        final int stream = i;
+        results.add(
+            executor.submit(
+                () -> {
+                  try {
+                    FileSender.sendStream(
+                        ring, stream, source.file(), header, channels.get(stream));
+                  } finally {
+                    ring.remove(stream);
+                    // Unblocks a receiver waiting for more of a failed stream.
+                    channels.get(stream).close();
+                  }
+                  return null;
+                }));
+      }
+
+      try {
+        read(source.channel(), ring, channels, errors);
+      } catch (IOException e) {
+        ring.fail(e);
+        throw e;
+      }
+
+      // Streams still writing the last chunks no longer hold the reader, but may stall too.
+      for (int i = 0; i < results.size(); i++) {
+        try {
+          try {
+            results.get(i).get(stallMillis, TimeUnit.MILLISECONDS);
+          } catch (TimeoutException e) {
+            errors[i] = "Stalled";
+            channels.get(i).close();
+            results.get(i).get();
+          }
+        } catch (ExecutionException e) {
+          if (errors[i] == null) {
+            errors[i] = String.valueOf(e.getCause().getMessage());
+          }
+          Log.e(TAG, "Broadcast stream " + i + " failed: " + errors[i]);
+        }
+      }
+      if (isCancelled()) {
+        throw new IOException(CANCELLED);
+      }
+      return errors;
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while sending", e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Reads the source into the ring chunk by chunk, until it ends or no stream is left. Streams
+   * dropped for stalling are closed before their chunk is overwritten, so the bytes they are
+   * still writing can't go out.
+   */
+  private void read(
+      ReadableByteChannel in, ChunkRing ring, List<ByteChannel> channels, String[] errors)
+      throws IOException {
+    for (long chunk = 0; ; chunk++) {
+      if (isCancelled()) {
+        throw new IOException(CANCELLED);
+      }
+      ByteBuffer slot = ring.acquire(chunk);
+      for (int stream : ring.takeStalled()) {
+        Log.e(TAG, "Broadcast stream " + stream + " stalled, dropping it");
+        errors[stream] = "Stalled";
+        channels.get(stream).close();
+      }
+      if (slot == null) {
+        return;
+      }
+      while (slot.hasRemaining() && in.read(slot) != -1) {}
+      if (slot.position() == 0) {
+        ring.end();
+        return;
+      }
+      boolean last = slot.hasRemaining();
+      slot.flip();
+      ring.publish(chunk);
+      if (last) {
+        ring.end();
+        return;
+      }
+    }
+  }
+}
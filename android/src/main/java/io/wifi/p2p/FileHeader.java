@@ -0,0 +1,151 @@
+package io.wifi.p2p;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Header sent at the start of every stream of a file transfer, right after the protocol preamble.
+ *
+ * <p>A file is split into chunks of {@link #chunkSize} bytes. When it is sent over several
+ * streams, stream {@code i} carries chunks {@code i}, {@code i + streamCount}, ... so the receiver
+ * can write every chunk at its own offset as soon as it arrives.
+ *
+ * <p>A non-zero {@link #compressionLevel} announces that chunks may be sent deflated, see {@link
+ * FileSender}.
+ *
+ * <p>With {@link #FLAG_DEDUP} the sender asks to skip content the receiver already has. It sends
+ * the {@link #contentHash} of the file when it knows it from an earlier send; a receiver holding
+ * that content reports every chunk as present (see {@link FileReceiver#sendResumeState}).
+ * Otherwise both sides hash the chunks as they go, so the next transfer can be skipped.
+ *
+ * <p>{@link #FLAG_CRC32} or {@link #FLAG_SHA256} make a verified transfer, see {@link
+ * ChunkChecksum}.
+ *
+ * <p>With {@link #FLAG_DELTA} the header is followed by a {@link DeltaSync} exchange instead of
+ * chunk records.
+ */
+public class FileHeader {
+  public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+  /**
+   * Most streams a file is striped over. The throughput stops growing well below it, while the
+   * receiver spends a socket and a thread on every stream.
+   */
+  public static final int MAX_STREAMS = 16;
+  public static final int FLAG_DEDUP = 1;
+  public static final int FLAG_DELTA = 2;
+  public static final int FLAG_CRC32 = 4;
+  public static final int FLAG_SHA256 = 8;
+  static final int LENGTH = 8 + 8 + 4 + 2 + 2 + 1 + 1 + ChunkDigests.HASH_LENGTH;
+
+  public final long transferId;
+  public final long size;
+  public final int chunkSize;
+  public final int streamIndex;
+  public final int streamCount;
+  public final int compressionLevel;
+  public final int flags;
+  /** See {@link ChunkDigests}; {@code null} when the sender does not know it. */
+  public final byte[] contentHash;
+
+  public FileHeader(
+      long transferId,
+      long size,
+      int chunkSize,
+      int streamIndex,
+      int streamCount,
+      int compressionLevel,
+      int flags,
+      byte[] contentHash) {
+    this.transferId = transferId;
+    this.size = size;
+    this.chunkSize = chunkSize;
+    this.streamIndex = streamIndex;
+    this.streamCount = streamCount;
+    this.compressionLevel = compressionLevel;
+    this.flags = flags;
+    this.contentHash = contentHash;
+  }
+
+  /**
+   * Derives a transfer id from a key that stays the same across retries of the same transfer, so
+   * a retry resumes instead of starting over.
+   */
+  public static long idFor(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(Utils.CHARSET));
+      return ByteBuffer.wrap(digest).getLong();
+    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+      return key.hashCode();
+    }
+  }
+
+  public FileHeader forStream(int index) {
+    return new FileHeader(
+        transferId, size, chunkSize, index, streamCount, compressionLevel, flags, contentHash);
+  }
+
+  public boolean dedup() {
+    return (flags & FLAG_DEDUP) != 0;
+  }
+
+  public boolean delta() {
+    return (flags & FLAG_DELTA) != 0;
+  }
+
+  /** Number of chunks, or -1 when the size is not known up front. */
+  public long chunkCount() {
+    return size < 0 ? -1 : (size + chunkSize - 1) / chunkSize;
+  }
+
+  public void write(WritableByteChannel out) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(Protocol.PREAMBLE_LENGTH + LENGTH);
+    buffer.put(Protocol.MAGIC).put(Protocol.VERSION).put(Protocol.CHANNEL_FILE);
+    buffer.putLong(transferId).putLong(size).putInt(chunkSize);
+    buffer.putShort((short) streamIndex).putShort((short) streamCount);
+    buffer.put((byte) compressionLevel).put((byte) flags);
+    buffer.put(contentHash != null ? contentHash : new byte[ChunkDigests.HASH_LENGTH]);
+    buffer.flip();
+    Protocol.writeFully(out, buffer);
+  }
+
+  private static byte[] readHash(ByteBuffer buffer) {
+    byte[] hash = new byte[ChunkDigests.HASH_LENGTH];
+    buffer.get(hash);
+    for (byte b : hash) {
+      if (b != 0) {
+        return hash;
+      }
+    }
+    return null;
+  }
+
+  /** Reads the header that follows a {@link Protocol#CHANNEL_FILE} preamble. */
+  public static FileHeader read(ReadableByteChannel in) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+    Protocol.readFully(in, buffer);
+    buffer.flip();
+    FileHeader header =
+        new FileHeader(
+            buffer.getLong(),
+            buffer.getLong(),
+            buffer.getInt(),
+            buffer.getShort(),
+            buffer.getShort(),
+            buffer.get(),
+            buffer.get(),
+            readHash(buffer));
+    if (header.chunkSize <= 0
+        || header.streamCount <= 0
+        || header.streamCount > MAX_STREAMS
+        || header.streamIndex < 0
+        || header.streamIndex >= header.streamCount) {
+      throw new IOException("Invalid file header");
+    }
+    return header;
+  }
+}
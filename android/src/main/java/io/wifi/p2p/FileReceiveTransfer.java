@@ -0,0 +1,229 @@
+package io.wifi.p2p;
+
+import android.util.Log;
+import com.facebook.react.bridge.Callback;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Created by Kiryl on 18.7.18.
+ *
+ * <p>Accepts a file connection from the {@link ListenerRegistry} and writes the received file.
+ *
+ * <p>When the sender stripes the file over several streams, the remaining connections of the same
+ * transfer are accepted as well and all streams are written into the file concurrently by a {@link
+ * FileReceiver}. A {@link DeltaSync} transfer updates the existing file at the destination instead.
+ */
+public class FileReceiveTransfer extends Transfer {
+  /**
+   * How long the remaining streams of a striped file may take to connect when the socket options
+   * set no read timeout.
+   */
+  static final long STREAMS_TIMEOUT_MILLIS = 30000;
+
+  private ListenerRegistry listeners;
+  private int port;
+  private Callback callback;
+  private CustomDefinedCallback customDefinedCallback;
+  private CustomDefinedCallback onProgress;
+  private String destination;
+  private long syncInterval;
+  private ContentIndex contentIndex;
+  private SocketOptions socketOptions;
+  // A React Native callback may only be invoked once.
+  private boolean reported;
+
+  /**
+   * @param id
+   * @param listeners
+   * @param port
+   * @param callback
+   * @param destination
+   * @param syncInterval see {@link FileReceiver#FileReceiver}
+   * @param onProgress invoked on the transfer thread with {@link TransferProgress} reports
+   * @param contentIndex local content that deduplicating senders do not have to send again
+   * @param socketOptions applied to every accepted stream
+   */
+  public FileReceiveTransfer(
+      String id,
+      ListenerRegistry listeners,
+      int port,
+      Callback callback,
+      String destination,
+      long syncInterval,
+      CustomDefinedCallback customDefinedCallback,
+      CustomDefinedCallback onProgress,
+      ContentIndex contentIndex,
+      SocketOptions socketOptions) {
+    super(id, null, PRIORITY_BULK);
+    this.listeners = listeners;
+    this.port = port;
+    this.callback = callback;
+    this.destination = destination;
+    this.syncInterval = syncInterval;
+    this.customDefinedCallback = customDefinedCallback;
+    this.onProgress = onProgress;
+    this.contentIndex = contentIndex;
+    this.socketOptions = socketOptions;
+  }
+
+  @Override
+  protected ConnectionQueue listen() throws IOException {
+    Log.i(TAG, "Server: waiting for a file on port " + port);
+    return listeners.open(port, Protocol.CHANNEL_FILE, Protocol.CHANNEL_LEGACY);
+  }
+
+  @Override
+  protected void transfer() throws IOException {
+    ConnectionQueue incoming = incoming();
+    ListenerRegistry.Connection connection = incoming.accept();
+    ByteChannel client = accept(connection, socketOptions);
+    List<ByteChannel> streams = new ArrayList<>();
+    streams.add(client);
+    Log.i(TAG, "Server: connection done");
+    final File f = new File(destination);
+    File dirs = new File(f.getParent());
+    if (!dirs.exists()) dirs.mkdirs();
+    Log.i(TAG, "Server: copying files " + f.toString());
+
+    FileHeader header = null;
+    if (connection.type == Protocol.CHANNEL_FILE) {
+      header = FileHeader.read(client);
+    }
+    TransferProgress progress =
+        new TransferProgress(
+            header != null ? Long.toHexString(header.transferId) : f.getAbsolutePath(),
+            TransferProgress.DIRECTION_RECEIVE,
+            onProgress);
+
+    if (header != null && header.delta()) {
+      long received = DeltaSync.receive(f, header, client, syncInterval, progress);
+      progress.finish();
+      Log.i(TAG, "Server: received " + received + " bytes of changes");
+    } else {
+      try (FileReceiver receiver = new FileReceiver(f, syncInterval, progress, contentIndex)) {
+        if (header == null) {
+          receiver.receiveLegacy(client, connection.head);
+        } else {
+          receiver.begin(header);
+          receiver.sendResumeState(client);
+          acceptRemainingStreams(incoming, header, receiver, streams);
+          receiveStreams(receiver, streams);
+        }
+        long received = receiver.finish();
+        progress.finish();
+        Log.i(TAG, "Server: received " + received + " bytes");
+      }
+    }
+    Log.i(TAG, "File copied - " + f.getAbsolutePath());
+    reported = true;
+    callback.invoke(f.getAbsolutePath());
+    customDefinedCallback.invoke(null);
+  }
+
+  /** Invokes the callback with no file and the {@code error}. */
+  @Override
+  protected void fail(String error) {
+    if (!reported) {
+      reported = true;
+      callback.invoke(null, error);
+    }
+  }
+
+  private void acceptRemainingStreams(
+      ConnectionQueue incoming,
+      FileHeader header,
+      FileReceiver receiver,
+      List<ByteChannel> streams)
+      throws IOException {
+    long timeout =
+        socketOptions.readTimeoutMillis > 0
+            ? socketOptions.readTimeoutMillis
+            : STREAMS_TIMEOUT_MILLIS;
+    long deadline = System.currentTimeMillis() + timeout;
+    boolean[] connected = new boolean[header.streamCount];
+    connected[header.streamIndex] = true;
+    while (streams.size() < header.streamCount) {
+      ListenerRegistry.Connection connection;
+      try {
+        connection = incoming.accept(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (SocketTimeoutException e) {
+        throw new SocketTimeoutException(
+            "Only "
+                + streams.size()
+                + " of "
+                + header.streamCount
+                + " streams connected within "
+                + timeout
+                + " ms");
+      }
+      ByteChannel client = accept(connection, socketOptions);
+      try {
+        FileHeader stream =
+            connection.type == Protocol.CHANNEL_FILE ? FileHeader.read(client) : null;
+        if (stream != null
+            && stream.transferId == header.transferId
+            && stream.streamCount == header.streamCount
+            && !connected[stream.streamIndex]) {
+          connected[stream.streamIndex] = true;
+          receiver.sendResumeState(client);
+          streams.add(client);
+          continue;
+        }
+      } catch (IOException e) {
+        Log.e(TAG, e.getMessage());
+      }
+      Log.w(TAG, "Server: rejecting connection that is not part of the transfer");
+      closeQuietly(client);
+    }
+  }
+
+  private void receiveStreams(final FileReceiver receiver, List<ByteChannel> streams)
+      throws IOException {
+    if (streams.size() == 1) {
+      receiver.receiveStream(streams.get(0));
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(streams.size());
+    try {
+      List<Future<Void>> results = new ArrayList<>();
+      for (final ByteChannel stream : streams) {
+        results.add(
+            executor.submit(
+                () -> {
+                  receiver.receiveStream(stream);
+                  return null;
+                }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause().getMessage(), e.getCause());
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while receiving", e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // Give up
+      }
+    }
+  }
+}
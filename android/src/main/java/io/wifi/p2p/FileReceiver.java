@@ -0,0 +1,432 @@
+package io.wifi.p2p;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+/**
+ * Writes an incoming file transfer into its destination. Data is moved from the socket straight
+ * into the destination {@link FileChannel} with positional {@link FileChannel#transferFrom}, so
+ * the streams of a striped transfer can be written concurrently. When the sender announces the
+ * file size, the file is preallocated up front to avoid fragmentation and a short transfer is
+ * reported as a failure.
+ *
+ * <p>Deflated chunks (see {@link FileSender}) are inflated into a buffer and written at their
+ * offset instead.
+ *
+ * <p>When the sender asks for deduplication, content found in the {@link ContentIndex} is copied
+ * into the destination instead of being received. Otherwise the chunks are hashed as they
+ * arrive and the received file is indexed, so the next transfer of the same content is skipped.
+ *
+ * <p>In a verified transfer every chunk is checked against the {@link ChunkChecksum} that follows
+ * it before it is written; corrupt chunks are requested again.
+ *
+ * <p>Completed chunks are recorded in a {@link TransferJournal}. When the link drops, the partial
+ * file and its journal stay behind and the next attempt of the same transfer only receives the
+ * chunks that are still missing.
+ */
+public class FileReceiver implements Closeable {
+  /** Never fsync, leave flushing to the kernel. */
+  public static final long SYNC_NONE = -1;
+  /** Fsync once after the whole file was received. */
+  public static final long SYNC_AT_END = 0;
+
+  private static final long TRANSFER_STEP = 1024 * 1024;
+  private static final String TAG = "RNWiFiP2P";
+
+  private final File destination;
+  private final RandomAccessFile raf;
+  private final FileChannel file;
+  private final long syncInterval;
+  private final TransferProgress progress;
+  private final ContentIndex index;
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong unsynced = new AtomicLong();
+  private final AtomicLong length = new AtomicLong();
+  private FileHeader header;
+  private TransferJournal journal;
+  private ChunkDigests digests;
+  private boolean deduplicated;
+
+  /**
+   * @param syncInterval {@link #SYNC_NONE}, {@link #SYNC_AT_END} or the number of bytes written
+   *     between two fsync calls
+   * @param progress advanced with every write; may be shared by several receivers
+   * @param index where to look up and record content, {@code null} to never deduplicate
+   */
+  public FileReceiver(
+      File destination, long syncInterval, TransferProgress progress, ContentIndex index)
+      throws IOException {
+    this.destination = destination;
+    this.raf = new RandomAccessFile(destination, "rw");
+    this.file = raf.getChannel();
+    this.syncInterval = syncInterval;
+    this.progress = progress;
+    this.index = index;
+  }
+
+  /**
+   * Prepares the destination for the transfer described by {@code header}, picking up the chunks
+   * of an earlier attempt when its journal is still there.
+   */
+  public void begin(FileHeader header) throws IOException {
+    this.header = header;
+    progress.setTotal(header.size);
+    boolean dedup = index != null && header.dedup() && header.size >= 0;
+    if (dedup && header.contentHash != null) {
+      File known = index.lookup(header.contentHash);
+      if (known != null && known.length() == header.size && adopt(known)) {
+        Log.i(TAG, "Already have the content of transfer " + header.transferId + " in " + known);
+        deduplicated = true;
+        progress.skip(header.size);
+        return;
+      }
+    }
+    if (dedup && header.contentHash == null) {
+      digests = new ChunkDigests(header.chunkCount());
+    }
+    if (header.size >= 0) {
+      journal = TransferJournal.open(destination, header);
+      if (journal.resumed()) {
+        Log.i(TAG, "Resuming transfer " + header.transferId);
+        skipPresentChunks();
+        return;
+      }
+    }
+    file.truncate(0);
+    if (header.size > 0) {
+      preallocate(header.size);
+    }
+  }
+
+  /**
+   * Tells the sender which chunks are already present: the bitmap length followed by one bit per
+   * chunk. An empty bitmap means everything has to be sent, a full one that nothing has to.
+   */
+  public void sendResumeState(WritableByteChannel out) throws IOException {
+    byte[] bitmap;
+    if (deduplicated) {
+      bitmap = new byte[(int) ((header.chunkCount() + 7) / 8)];
+      Arrays.fill(bitmap, (byte) 0xFF);
+    } else {
+      bitmap = journal != null ? journal.snapshot() : new byte[0];
+    }
+    ByteBuffer state = ByteBuffer.allocate(4 + bitmap.length);
+    state.putInt(bitmap.length).put(bitmap).flip();
+    Protocol.writeFully(out, state);
+  }
+
+  /**
+   * Receives a stream without preamble sent by an older version of the library: raw bytes until
+   * the peer closes the connection. {@code head} holds the bytes already read from it.
+   */
+  public void receiveLegacy(ReadableByteChannel in, ByteBuffer head) throws IOException {
+    file.truncate(0);
+    long position = file.write(head, 0);
+    for (long transferred; (transferred = file.transferFrom(in, position, TRANSFER_STEP)) > 0; ) {
+      position += transferred;
+      written(transferred);
+    }
+    received.set(position);
+    length.set(position);
+  }
+
+  /** Receives exactly {@code size} raw bytes, as sent for each file of a batch. */
+  public void receiveRaw(ReadableByteChannel in, long size) throws IOException {
+    file.truncate(0);
+    if (size > 0) {
+      preallocate(size);
+    }
+    long position = 0;
+    while (position < size) {
+      long transferred = file.transferFrom(in, position, Math.min(TRANSFER_STEP, size - position));
+      if (transferred <= 0) {
+        throw new IOException(
+            "Connection closed after " + position + " of " + size + " bytes of " + destination);
+      }
+      position += transferred;
+      written(transferred);
+    }
+    received.set(position);
+    length.set(position);
+  }
+
+  /**
+   * Receives the chunk records of one stream until its end record. In a verified transfer, chunks
+   * that fail verification are not written; after the end record the sender is told which ones to
+   * send again.
+   */
+  public void receiveStream(ByteChannel in) throws IOException {
+    ByteBuffer record = ByteBuffer.allocate(FileSender.RECORD_LENGTH);
+    ChunkChecksum checksum = ChunkChecksum.forHeader(header);
+    byte[] expected = checksum != null ? new byte[checksum.length()] : null;
+    List<Integer> failed = new ArrayList<>();
+    int rounds = 0;
+    Inflater inflater = null;
+    byte[] compressed = null;
+    ByteBuffer buffer = null;
+    try {
+      while (true) {
+        record.clear();
+        Protocol.readFully(in, record);
+        int chunk = record.getInt(0);
+        int chunkLength = record.getInt(4) & ~FileSender.COMPRESSED;
+        boolean deflated = (record.getInt(4) & FileSender.COMPRESSED) != 0;
+        if (chunk == FileSender.END_OF_STREAM) {
+          if (checksum == null) {
+            return;
+          }
+          reportFailed(in, failed);
+          if (failed.isEmpty()) {
+            return;
+          }
+          if (rounds++ == FileSender.MAX_RESENDS) {
+            throw new IOException(failed.size() + " chunks failed verification");
+          }
+          failed.clear();
+          continue;
+        }
+
+        long position = (long) chunk * header.chunkSize;
+        if (chunk < 0
+            || (header.size >= 0 && chunk >= header.chunkCount())
+            || chunkLength > header.chunkSize) {
+          throw new IOException("Invalid chunk record " + chunk);
+        }
+        // E.g. the file shrank on the sender; journaled, it would count as complete.
+        boolean truncated = header.size >= 0 && chunkLength != expectedLength(chunk);
+        if (truncated && checksum == null) {
+          throw new IOException(
+              "Chunk "
+                  + chunk
+                  + " has "
+                  + chunkLength
+                  + " bytes, expected "
+                  + expectedLength(chunk));
+        }
+        long end = position + chunkLength;
+        if (deflated || digests != null || checksum != null) {
+          // Through memory: inflated, hashed or verified on the way.
+          if (buffer == null) {
+            buffer = ByteBuffer.allocate(header.chunkSize);
+          }
+          buffer.clear().limit(chunkLength);
+          boolean intact = true;
+          if (deflated) {
+            if (header.compressionLevel == Compressor.LEVEL_NONE) {
+              throw new IOException("Unexpected compressed chunk " + chunk);
+            }
+            if (inflater == null) {
+              inflater = new Inflater();
+              compressed = new byte[header.chunkSize];
+            }
+            ByteBuffer length = ByteBuffer.allocate(4);
+            Protocol.readFully(in, length);
+            int compressedLength = length.getInt(0);
+            if (compressedLength < 0 || compressedLength > header.chunkSize) {
+              throw new IOException("Invalid compressed length in chunk " + chunk);
+            }
+            Protocol.readFully(in, ByteBuffer.wrap(compressed, 0, compressedLength));
+            if (checksum != null) {
+              Protocol.readFully(in, ByteBuffer.wrap(expected));
+            }
+            try {
+              Compressor.inflate(
+                  inflater, compressed, 0, compressedLength, buffer.array(), chunkLength);
+            } catch (IOException e) {
+              if (checksum == null) {
+                throw e;
+              }
+              intact = false;
+            }
+          } else {
+            Protocol.readFully(in, buffer);
+            buffer.flip();
+            if (checksum != null) {
+              Protocol.readFully(in, ByteBuffer.wrap(expected));
+            }
+          }
+          // A checksum matching a short chunk only proves the short data intact.
+          if (intact && checksum != null) {
+            intact = !truncated && checksum.verify(buffer, expected);
+          }
+          if (!intact) {
+            Log.w(
+                TAG,
+                "Chunk " + chunk + " of transfer " + header.transferId + " is corrupt"
+                    + (truncated ? " or truncated" : ""));
+            failed.add(chunk);
+            continue;
+          }
+          writeChunk(chunk, buffer, position);
+        } else {
+          while (position < end) {
+            long transferred = file.transferFrom(in, position, end - position);
+            if (transferred <= 0) {
+              throw new IOException("Connection closed in the middle of chunk " + chunk);
+            }
+            position += transferred;
+            written(transferred);
+          }
+        }
+        received.addAndGet(chunkLength);
+        updateLength(end);
+        if (journal != null) {
+          journal.markComplete(chunk);
+        }
+      }
+    } finally {
+      if (inflater != null) {
+        inflater.end();
+      }
+    }
+  }
+
+  /** Tells the sender which chunks of the stream failed verification. */
+  private static void reportFailed(WritableByteChannel out, List<Integer> failed)
+      throws IOException {
+    ByteBuffer report = ByteBuffer.allocate(4 + 4 * failed.size());
+    report.putInt(failed.size());
+    for (int chunk : failed) {
+      report.putInt(chunk);
+    }
+    report.flip();
+    Protocol.writeFully(out, report);
+  }
+
+  /**
+   * Verifies the transfer is complete, trims the file to its final length and syncs it. Returns
+   * the number of bytes received during this attempt.
+   */
+  public long finish() throws IOException {
+    if (deduplicated) {
+      return 0;
+    }
+    if (journal != null) {
+      if (!journal.allComplete()) {
+        throw new IOException("Transfer incomplete: received " + received.get() + " bytes");
+      }
+    } else {
+      file.truncate(length.get());
+    }
+    if (syncInterval != SYNC_NONE) {
+      file.force(false);
+    }
+    if (journal != null) {
+      journal.delete();
+      journal = null;
+    }
+    byte[] hash = header != null && header.contentHash != null ? header.contentHash : null;
+    if (hash == null && digests != null) {
+      hash = digests.contentHash();
+    }
+    if (index != null && hash != null) {
+      index.put(hash, destination);
+    }
+    return received.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (journal != null) {
+      journal.close();
+    }
+    raf.close();
+  }
+
+  private void writeChunk(int chunk, ByteBuffer data, long position) throws IOException {
+    if (digests != null) {
+      digests.record(chunk, data);
+    }
+    int length = data.remaining();
+    while (data.hasRemaining()) {
+      file.write(data, position + data.position());
+    }
+    written(length);
+  }
+
+  /**
+   * Copies the content of {@code known} into the destination. Returns false when that failed. A
+   * copy rather than a hard link: writing to either file later must not change the other.
+   */
+  private boolean adopt(File known) {
+    try {
+      if (known.getCanonicalPath().equals(destination.getCanonicalPath())) {
+        return true;
+      }
+      try (FileChannel source = new FileInputStream(known).getChannel()) {
+        file.truncate(0);
+        long size = source.size();
+        for (long position = 0; position < size; ) {
+          long copied = file.transferFrom(source, position, size - position);
+          if (copied <= 0) {
+            throw new IOException("Changed while copying");
+          }
+          position += copied;
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      Log.w(TAG, "Could not reuse " + known + ": " + e.getMessage());
+      return false;
+    }
+  }
+
+  private void written(long bytes) throws IOException {
+    progress.advance(bytes);
+    if (syncInterval > 0 && unsynced.addAndGet(bytes) >= syncInterval) {
+      unsynced.set(0);
+      file.force(false);
+    }
+  }
+
+  /** The length of {@code chunk} in a transfer of known size: the last one may be shorter. */
+  private int expectedLength(long chunk) {
+    return (int) Math.min(header.chunkSize, header.size - chunk * header.chunkSize);
+  }
+
+  private void skipPresentChunks() {
+    for (long chunk = 0; chunk < header.chunkCount(); chunk++) {
+      if (journal.isComplete(chunk)) {
+        progress.skip(expectedLength(chunk));
+      }
+    }
+  }
+
+  private void updateLength(long end) {
+    for (long current = length.get(); end > current; current = length.get()) {
+      if (length.compareAndSet(current, end)) {
+        return;
+      }
+    }
+  }
+
+  private void preallocate(long size) throws IOException {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      try {
+        Os.posix_fallocate(raf.getFD(), 0, size);
+        return;
+      } catch (ErrnoException e) {
+        // Not every filesystem supports fallocate (e.g. FUSE backed storage).
+        Log.w(TAG, "posix_fallocate failed, falling back to setLength");
+      }
+    }
+    raf.setLength(size);
+  }
+}
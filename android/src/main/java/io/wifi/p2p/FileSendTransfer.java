@@ -0,0 +1,212 @@
+package io.wifi.p2p;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ResultReceiver;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Created by zyusk on 15.07.2018.
+ *
+ * <p>Sends a file to a peer, usually the WiFi Direct Group Owner, and reports the result to a
+ * {@link ResultReceiver}.
+ *
+ * <p>A file can be striped over several parallel sockets, which fills the link better than a
+ * single TCP stream limited by its congestion window and socket buffers.
+ *
+ * <p>A file the receiver has an older version of can be sent as a {@link DeltaSync} instead, on a
+ * single stream.
+ */
+public class FileSendTransfer extends Transfer {
+  private final ContentResolver contentResolver;
+  private final String fileUri;
+  private final String host;
+  private final int port;
+  private final int streams;
+  private final int chunkSize;
+  private final int compressionLevel;
+  private final int verification;
+  private final String transferKey;
+  private final ContentIndex contentIndex;
+  private final boolean delta;
+  private final SocketOptions socketOptions;
+  private final ResultReceiver receiver;
+
+  /**
+   * @param compressionLevel deflate level, {@link Compressor#LEVEL_NONE} to send the file as is
+   * @param verification {@link FileHeader#FLAG_CRC32} or {@link FileHeader#FLAG_SHA256} to have
+   *     every chunk verified by the receiver, 0 to rely on TCP
+   * @param transferKey identifies the transfer so that a retry resumes it, {@code null} to derive
+   *     it from the file
+   * @param contentIndex lets the receiver skip content it already has, {@code null} to always send
+   *     the whole file
+   * @param delta only send what changed since the version the receiver has; ignored for sources
+   *     of unknown size
+   * @param socketOptions applied to every stream
+   */
+  public FileSendTransfer(
+      String id,
+      ContentResolver contentResolver,
+      String fileUri,
+      String host,
+      int port,
+      int streams,
+      int chunkSize,
+      int compressionLevel,
+      int verification,
+      String transferKey,
+      ContentIndex contentIndex,
+      boolean delta,
+      SocketOptions socketOptions,
+      ResultReceiver receiver) {
+    super(id, host, PRIORITY_BULK);
+    this.contentResolver = contentResolver;
+    this.fileUri = fileUri;
+    this.host = host;
+    this.port = port;
+    this.streams = Math.min(FileHeader.MAX_STREAMS, Math.max(1, streams));
+    this.chunkSize = chunkSize;
+    this.compressionLevel = compressionLevel;
+    this.verification = verification;
+    this.transferKey = transferKey;
+    this.contentIndex = contentIndex;
+    this.delta = delta;
+    this.socketOptions = socketOptions;
+    this.receiver = receiver;
+  }
+
+  @Override
+  protected void transfer() throws IOException {
+    long start = System.currentTimeMillis();
+    try (ContentSource source = ContentSource.open(contentResolver, Uri.parse(fileUri))) {
+      // a stream of unknown length can not be striped, nor be diffed
+      boolean deltaSync = delta && source.file() != null;
+      int streamCount = source.file() != null && !deltaSync ? streams : 1;
+      // The content hash of a file sent before is known; otherwise it is computed while sending
+      // and the receiver hashes what it gets.
+      File local = localFile();
+      boolean dedup =
+          contentIndex != null && local != null && source.file() != null && !deltaSync;
+      byte[] contentHash = dedup ? contentIndex.hashOf(local) : null;
+      FileHeader header =
+          new FileHeader(
+              FileHeader.idFor(transferKey(source.size())),
+              source.size(),
+              chunkSize,
+              0,
+              streamCount,
+              compressionLevel,
+              deltaSync
+                  ? FileHeader.FLAG_DELTA
+                  : (dedup ? FileHeader.FLAG_DEDUP : 0) | verification,
+              contentHash);
+      ChunkDigests digests =
+          dedup && contentHash == null ? new ChunkDigests(header.chunkCount()) : null;
+      TransferProgress progress =
+          new TransferProgress(
+              transferKey != null ? transferKey : Long.toHexString(header.transferId),
+              TransferProgress.DIRECTION_SEND,
+              TransferProgress.forwardTo(receiver));
+      progress.setTotal(header.size);
+
+      List<ByteChannel> channels = new ArrayList<>();
+      for (int i = 0; i < streamCount; i++) {
+        channels.add(connect(host, port, socketOptions));
+      }
+      long sent =
+          deltaSync
+              ? DeltaSync.send(source.file(), header, channels.get(0), progress)
+              : sendStreams(source, header, channels, progress, digests);
+      if (digests != null) {
+        byte[] hash = digests.contentHash();
+        if (hash != null) {
+          contentIndex.put(hash, local);
+        }
+      }
+      progress.finish();
+      Log.i(TAG, "Client: Data written - " + sent + " bytes");
+    }
+
+    Bundle bundle = new Bundle();
+    bundle.putLong("time", System.currentTimeMillis() - start);
+    bundle.putString("file", fileUri);
+    receiver.send(0, bundle);
+  }
+
+  @Override
+  protected void fail(String error) {
+    Bundle bundle = new Bundle();
+    bundle.putString("error", error);
+    receiver.send(1, bundle);
+  }
+
+  /**
+   * Key of the transfer id. Unless the caller picked an id, it is derived from the file and its
+   * version so that retrying the same send resumes where the previous attempt stopped.
+   */
+  private String transferKey(long size) {
+    if (transferKey != null) {
+      return transferKey;
+    }
+    File local = localFile();
+    long modified = local != null ? local.lastModified() : 0;
+    return fileUri + ":" + size + ":" + modified;
+  }
+
+  /** The file behind a file:// uri, {@code null} for other sources. */
+  private File localFile() {
+    Uri uri = Uri.parse(fileUri);
+    return "file".equals(uri.getScheme()) ? new File(uri.getPath()) : null;
+  }
+
+  /** Sends every stream of the transfer on its own thread and waits for all of them. */
+  private static long sendStreams(
+      final ContentSource source,
+      final FileHeader header,
+      final List<ByteChannel> channels,
+      final TransferProgress progress,
+      final ChunkDigests digests)
+      throws IOException {
+    if (channels.size() == 1) {
+      return FileSender.sendStream(source, header, channels.get(0), progress, digests);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(channels.size());
+    try {
+      List<Future<Long>> results = new ArrayList<>();
+      for (int i = 0; i < channels.size(); i++) {
+        final int index = i;
+        results.add(
+            executor.submit(
+                () ->
+                    FileSender.sendStream(
+                        source,
+                        header.forStream(index),
+                        channels.get(index),
+                        progress,
+                        digests)));
+      }
+      long sent = 0;
+      for (Future<Long> result : results) {
+        sent += result.get();
+      }
+      return sent;
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause().getMessage(), e.getCause());
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while sending", e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,305 @@
+package io.wifi.p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes one stream of a file transfer: the {@link FileHeader} followed by chunk records. A record
+ * is the chunk index and its length followed by the chunk bytes; a record with index {@link
+ * #END_OF_STREAM} closes the stream.
+ *
+ * <p>Right after the header the receiver answers with the bitmap of chunks it already has from an
+ * earlier attempt (see {@link FileReceiver#sendResumeState}); those chunks are skipped.
+ *
+ * <p>When the header announces a compression level, chunks that deflate well are sent with {@link
+ * #COMPRESSED} set in their length, followed by the compressed length and the deflated bytes. The
+ * other chunks, and every chunk once the {@link Compressor} gave up on the content, are sent as
+ * they are.
+ *
+ * <p>In a verified transfer (see {@link ChunkChecksum}) every chunk is followed by its checksum.
+ * After the end record the receiver answers with the chunks that failed verification, as a count
+ * followed by the chunk indexes; those are sent again before another end record, up to {@link
+ * #MAX_RESENDS} times.
+ *
+ * <p>Chunks are sent straight from the file with transferTo, unless they have to pass through
+ * memory anyway to be compressed, hashed or checksummed.
+ */
+public class FileSender {
+  public static final int END_OF_STREAM = -1;
+  /** Flag in the length of a chunk record whose bytes are deflated. */
+  public static final int COMPRESSED = 0x80000000;
+  static final int RECORD_LENGTH = 8;
+  static final int MAX_RESENDS = 3;
+
+  /**
+   * @param progress shared by all streams of the transfer; chunks the receiver already has are
+   *     counted as skipped
+   * @param digests records the chunks as they are read, {@code null} to send them without hashing
+   */
+  public static long sendStream(
+      ContentSource source,
+      FileHeader header,
+      ByteChannel out,
+      TransferProgress progress,
+      ChunkDigests digests)
+      throws IOException {
+    header.write(out);
+    byte[] present = readResumeState(out, header);
+    ChunkWriter writer = new ChunkWriter(header, out);
+    FileChannel file = source.file();
+    long sent = 0;
+
+    try {
+      if (file != null) {
+        for (long chunk = header.streamIndex;
+            chunk < header.chunkCount();
+            chunk += header.streamCount) {
+          if (isPresent(present, chunk)) {
+            progress.skip(writer.length(chunk));
+            continue;
+          }
+          sent += writer.send(file, chunk, digests, progress);
+        }
+      } else {
+        // Unknown size: a single stream carrying consecutive full chunks.
+        ReadableByteChannel in = source.channel();
+        ByteBuffer buffer =
+            writer.inMemory()
+                ? ByteBuffer.allocate(header.chunkSize)
+                : ByteBuffer.allocateDirect(header.chunkSize);
+        for (int chunk = 0; ; chunk++) {
+          buffer.clear();
+          while (buffer.hasRemaining() && in.read(buffer) != -1) {}
+          if (buffer.position() == 0) {
+            break;
+          }
+          boolean last = buffer.hasRemaining();
+          buffer.flip();
+          int length = buffer.remaining();
+          writer.write(chunk, buffer);
+          sent += length;
+          progress.advance(length);
+          if (last) {
+            break;
+          }
+        }
+      }
+
+      sent += end(writer, file, header);
+    } finally {
+      writer.close();
+    }
+    return sent;
+  }
+
+  /**
+   * Writes one stream of a {@link FileBroadcastTransfer} like {@link #sendStream}, taking the
+   * chunks from {@code ring} instead of the source. The stream is a plain single stream to the
+   * receiver.
+   *
+   * @param file the source, to read chunks that failed verification again from; {@code null} for
+   *     a source of unknown size, which can't be
+   */
+  public static long sendStream(
+      ChunkRing ring, int stream, FileChannel file, FileHeader header, ByteChannel out)
+      throws IOException {
+    header.write(out);
+    byte[] present = readResumeState(out, header);
+    ChunkWriter writer = new ChunkWriter(header, out);
+    long sent = 0;
+
+    try {
+      for (long chunk = 0; header.size < 0 || chunk < header.chunkCount(); chunk++) {
+        if (isPresent(present, chunk)) {
+          ring.release(stream, chunk);
+          continue;
+        }
+        ByteBuffer data = ring.take(chunk);
+        if (data == null) {
+          break;
+        }
+        int length = data.remaining();
+        writer.write((int) chunk, data);
+        ring.release(stream, chunk);
+        sent += length;
+        if (header.size < 0 && length < header.chunkSize) {
+          break;
+        }
+      }
+      sent += end(writer, file, header);
+    } finally {
+      writer.close();
+    }
+    return sent;
+  }
+
+  /** Ends the stream and sends the chunks that failed verification again from {@code file}. */
+  private static long end(ChunkWriter writer, FileChannel file, FileHeader header)
+      throws IOException {
+    long sent = 0;
+    for (int round = 0; ; round++) {
+      int[] failed = writer.end();
+      if (failed.length == 0) {
+        return sent;
+      }
+      // A stream of unknown size can not be read again.
+      if (file == null || round == MAX_RESENDS) {
+        throw new IOException(failed.length + " chunks failed verification");
+      }
+      for (int chunk : failed) {
+        if (chunk % header.streamCount != header.streamIndex || chunk >= header.chunkCount()) {
+          throw new IOException("Resend requested for a foreign chunk " + chunk);
+        }
+        sent += writer.send(file, chunk, null, null);
+      }
+    }
+  }
+
+  /** Reads the receiver's bitmap of the chunks it has: none, or one bit for every chunk. */
+  private static byte[] readResumeState(ReadableByteChannel in, FileHeader header)
+      throws IOException {
+    ByteBuffer length = ByteBuffer.allocate(4);
+    Protocol.readFully(in, length);
+    long expected = header.size < 0 ? 0 : (header.chunkCount() + 7) / 8;
+    if (length.getInt(0) != 0 && length.getInt(0) != expected) {
+      throw new IOException(
+          "Invalid resume state of " + length.getInt(0) + " bytes, expected " + expected);
+    }
+    ByteBuffer bitmap = ByteBuffer.allocate(length.getInt(0));
+    Protocol.readFully(in, bitmap);
+    return bitmap.array();
+  }
+
+  private static boolean isPresent(byte[] bitmap, long chunk) {
+    int index = (int) (chunk >>> 3);
+    return index < bitmap.length && (bitmap[index] & (1 << (chunk & 7))) != 0;
+  }
+
+  private static void writeRecord(WritableByteChannel out, ByteBuffer record, int chunk, int length)
+      throws IOException {
+    record.clear();
+    record.putInt(chunk).putInt(length).flip();
+    Protocol.writeFully(out, record);
+  }
+
+  /** Writes the chunk records of one stream. */
+  private static class ChunkWriter {
+    private final FileHeader header;
+    private final ByteChannel out;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH + 4);
+    private final Compressor compressor;
+    private final ChunkChecksum checksum;
+    private ByteBuffer buffer;
+
+    ChunkWriter(FileHeader header, ByteChannel out) {
+      this.header = header;
+      this.out = out;
+      this.compressor =
+          header.compressionLevel != Compressor.LEVEL_NONE
+              ? new Compressor(header.compressionLevel, true)
+              : null;
+      this.checksum = ChunkChecksum.forHeader(header);
+    }
+
+    int length(long chunk) {
+      return (int) Math.min(header.chunkSize, header.size - chunk * header.chunkSize);
+    }
+
+    /** Whether chunks have to pass through memory to be compressed or checksummed. */
+    boolean inMemory() {
+      return checksum != null || (compressor != null && compressor.enabled());
+    }
+
+    /**
+     * Sends a chunk of {@code file} and returns its length.
+     *
+     * @param progress advanced by the chunk, {@code null} for a chunk that is sent again
+     */
+    long send(FileChannel file, long chunk, ChunkDigests digests, TransferProgress progress)
+        throws IOException {
+      long position = chunk * header.chunkSize;
+      int length = length(chunk);
+      if (!inMemory() && digests == null) {
+        writeRecord(out, record, (int) chunk, length);
+        return Utils.transferFile(file, position, length, out, progress);
+      }
+      // The chunk has to pass through memory: read it once, hash it and send it from there.
+      if (buffer == null) {
+        buffer = ByteBuffer.allocate(header.chunkSize);
+      }
+      buffer.clear().limit(length);
+      while (buffer.hasRemaining()) {
+        if (file.read(buffer, position + buffer.position()) == -1) {
+          throw new IOException("Unexpected end of file in chunk " + chunk);
+        }
+      }
+      buffer.flip();
+      if (digests != null) {
+        digests.record(chunk, buffer);
+      }
+      write((int) chunk, buffer);
+      if (progress != null) {
+        progress.advance(length);
+      }
+      return length;
+    }
+
+    /**
+     * Writes the chunk in {@code data}, deflated when there is a compressor and that pays off, and
+     * followed by its checksum in a verified transfer.
+     */
+    void write(int chunk, ByteBuffer data) throws IOException {
+      byte[] sum = checksum != null ? checksum.compute(data) : null;
+      int length = data.remaining();
+      int compressed =
+          compressor != null && compressor.enabled()
+              ? compressor.compress(data.array(), data.position(), length)
+              : -1;
+      if (compressed < 0) {
+        writeRecord(out, record, chunk, length);
+        Protocol.writeFully(out, data);
+      } else {
+        record.clear();
+        record.putInt(chunk).putInt(length | COMPRESSED).putInt(compressed).flip();
+        Protocol.writeFully(out, record);
+        Protocol.writeFully(out, ByteBuffer.wrap(compressor.output(), 0, compressed));
+      }
+      if (sum != null) {
+        Protocol.writeFully(out, ByteBuffer.wrap(sum));
+      }
+    }
+
+    /**
+     * Writes the end record and returns the chunks the receiver wants again; none unless the
+     * transfer is verified.
+     */
+    int[] end() throws IOException {
+      writeRecord(out, record, END_OF_STREAM, 0);
+      if (checksum == null) {
+        return new int[0];
+      }
+      ByteBuffer length = ByteBuffer.allocate(4);
+      Protocol.readFully(out, length);
+      int count = length.getInt(0);
+      if (count < 0 || (header.size >= 0 && count > header.chunkCount())) {
+        throw new IOException("Invalid verification result");
+      }
+      ByteBuffer chunks = ByteBuffer.allocate(4 * count);
+      Protocol.readFully(out, chunks);
+      chunks.flip();
+      int[] failed = new int[count];
+      chunks.asIntBuffer().get(failed);
+      return failed;
+    }
+
+    void close() {
+      if (compressor != null) {
+        compressor.end();
+      }
+    }
+  }
+}
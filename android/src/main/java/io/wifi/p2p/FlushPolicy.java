@@ -0,0 +1,26 @@
+package io.wifi.p2p;
+
+/**
+ * How long a {@link PeerConnection} may hold back a message so that it goes out in one write
+ * together with the messages queued after it. The buffered frames are flushed once the oldest of
+ * them waited {@link #maxDelayMillis}, or once {@link #maxBytes} or {@link #maxCount} is reached,
+ * whichever comes first. Messages sent without a policy are flushed right away, together with
+ * whatever is buffered before them.
+ */
+public class FlushPolicy {
+  public static final long DEFAULT_MAX_DELAY_MILLIS = 5;
+  public static final int DEFAULT_MAX_BYTES = 16 * 1024;
+  public static final int DEFAULT_MAX_COUNT = 64;
+  public static final FlushPolicy DEFAULT =
+      new FlushPolicy(DEFAULT_MAX_DELAY_MILLIS, DEFAULT_MAX_BYTES, DEFAULT_MAX_COUNT);
+
+  public final long maxDelayMillis;
+  public final int maxBytes;
+  public final int maxCount;
+
+  public FlushPolicy(long maxDelayMillis, int maxBytes, int maxCount) {
+    this.maxDelayMillis = maxDelayMillis;
+    this.maxBytes = maxBytes;
+    this.maxCount = maxCount;
+  }
+}
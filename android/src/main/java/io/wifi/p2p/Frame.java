@@ -0,0 +1,14 @@
+package io.wifi.p2p;
+
+/** A single frame read from a message channel, see {@link Protocol}. */
+public class Frame {
+  public final byte type;
+  public final int id;
+  public final byte[] payload;
+
+  public Frame(byte type, int id, byte[] payload) {
+    this.type = type;
+    this.id = id;
+    this.payload = payload;
+  }
+}
@@ -0,0 +1,321 @@
+package io.wifi.p2p;
+
+import android.util.Log;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Owns the listening sockets. Every port is served by a single {@link ServerSocketChannel} whose
+ * connections are dispatched by the channel byte of their preamble, so a file receive and a
+ * message server can share a port. Handlers are registered per port and channel; the socket is
+ * opened with the first handler of a port and closed again with the last one. When several
+ * handlers are registered for the same channel, the most recent one gets the connections until it
+ * is unregistered.
+ *
+ * <p>Accepting and reading the preambles happens without blocking on the {@link SelectorLoop} of
+ * the registry, so a peer that connects and stays silent does not hold up anybody else.
+ *
+ * <p>A connection forwarded by a {@link RelayServer} starts with a {@link
+ * Protocol#CHANNEL_RELAYED} preamble naming the peer it is from, followed by that peer's own
+ * preamble; it is dispatched by the latter, and reports the former as its remote address. Only
+ * connections from a {@link #setRelays trusted relay} may name their origin, anybody else could
+ * claim to be any peer; the origin of the others is read and ignored.
+ *
+ * <p>Connections without a preamble (older versions of the library) can not be told apart and go
+ * to the handler of {@link Protocol#CHANNEL_LEGACY}.
+ */
+public class ListenerRegistry {
+  private static final String TAG = "RNWiFiP2P";
+
+  /**
+   * Receives the connections of a channel. Called on the loop thread, so it must not block. The
+   * channel is still non-blocking but no longer registered with the loop; the handler either
+   * registers it again or switches it to blocking mode and passes it on.
+   */
+  public interface Handler {
+    void onConnection(Connection connection);
+  }
+
+  /** An accepted connection whose preamble has been read. */
+  public static class Connection {
+    public final SocketChannel channel;
+    public final byte type;
+    /** For a legacy connection, the payload bytes read while looking for a preamble. */
+    public final ByteBuffer head;
+    /** The peer a relayed connection is from, {@code null} for a direct one. */
+    public final String origin;
+
+    Connection(SocketChannel channel, byte type, ByteBuffer head, String origin) {
+      this.channel = channel;
+      this.type = type;
+      this.head = head;
+      this.origin = origin;
+    }
+
+    /** The address of the peer, not of the relay for a relayed connection. */
+    public String remoteAddress() {
+      return origin != null ? origin : channel.socket().getInetAddress().getHostAddress();
+    }
+  }
+
+  private final Map<Integer, Listener> listeners = new HashMap<>();
+  /** Ports whose listener is being closed; reopening them has to wait until they are free. */
+  private final Set<Integer> closing = new HashSet<>();
+  private volatile SocketOptions socketOptions = SocketOptions.DEFAULT;
+  private volatile Set<String> relays = Collections.emptySet();
+  private SelectorLoop loop;
+
+  /**
+   * Options for the ports opened from now on and every connection accepted from now on. Handlers
+   * apply their own on top.
+   */
+  public void setSocketOptions(SocketOptions socketOptions) {
+    this.socketOptions = socketOptions;
+  }
+
+  /**
+   * The addresses of the peers whose relayed connections are reported as coming from the origin
+   * they name, typically the group owner. Replaces the previous ones.
+   */
+  public void setRelays(Collection<String> addresses) {
+    relays = Collections.unmodifiableSet(new HashSet<>(addresses));
+  }
+
+  /** The I/O thread of the registry, started with the first listener. */
+  public synchronized SelectorLoop loop() throws IOException {
+    if (loop == null) {
+      loop = new SelectorLoop("RNWiFiP2P-io");
+    }
+    return loop;
+  }
+
+  public synchronized void register(int port, byte channel, Handler handler) throws IOException {
+    while (closing.contains(port)) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while port " + port + " was closing");
+      }
+    }
+    Listener listener = listeners.get(port);
+    if (listener == null) {
+      listener = new Listener(port, loop());
+      listeners.put(port, listener);
+      listener.start();
+    }
+    List<Handler> handlers = listener.handlers.get(channel);
+    if (handlers == null) {
+      handlers = new ArrayList<>();
+      listener.handlers.put(channel, handlers);
+    }
+    handlers.add(handler);
+  }
+
+  public void unregister(int port, byte channel, Handler handler) {
+    Listener listener;
+    synchronized (this) {
+      listener = listeners.get(port);
+      List<Handler> handlers = listener != null ? listener.handlers.get(channel) : null;
+      if (handlers == null || !handlers.remove(handler)) {
+        return;
+      }
+      if (handlers.isEmpty()) {
+        listener.handlers.remove(channel);
+      }
+      if (!listener.handlers.isEmpty()) {
+        return;
+      }
+      listeners.remove(port);
+      closing.add(port);
+    }
+    // Outside the lock: closing waits for the loop thread, which takes it in handlerFor.
+    listener.close();
+    closed(port);
+  }
+
+  /** Registers a queue for the given channels; closing the queue unregisters it. */
+  public ConnectionQueue open(int port, byte... channels) throws IOException {
+    ConnectionQueue queue = new ConnectionQueue(this, port, channels);
+    try {
+      for (byte channel : channels) {
+        register(port, channel, queue);
+      }
+    } catch (IOException e) {
+      queue.close();
+      throw e;
+    }
+    return queue;
+  }
+
+  public void closeAll() {
+    List<Listener> stopping;
+    synchronized (this) {
+      stopping = new ArrayList<>(listeners.values());
+      closing.addAll(listeners.keySet());
+      listeners.clear();
+    }
+    for (Listener listener : stopping) {
+      listener.close();
+      closed(listener.port);
+    }
+  }
+
+  private synchronized void closed(int port) {
+    closing.remove(port);
+    notifyAll();
+  }
+
+  private synchronized Handler handlerFor(Listener listener, byte channel) {
+    List<Handler> handlers = listener.handlers.get(channel);
+    return handlers != null ? handlers.get(handlers.size() - 1) : null;
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Give up
+    }
+  }
+
+  private class Listener implements SelectorLoop.Handler {
+    final int port;
+    final SelectorLoop loop;
+    final Map<Byte, List<Handler>> handlers = new HashMap<>();
+    final ServerSocketChannel serverChannel;
+
+    Listener(int port, SelectorLoop loop) throws IOException {
+      this.port = port;
+      this.loop = loop;
+      this.serverChannel = ServerSocketChannel.open();
+      try {
+        serverChannel.socket().setReuseAddress(true);
+        socketOptions.apply(serverChannel.socket());
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+      } catch (IOException e) {
+        serverChannel.close();
+        throw e;
+      }
+    }
+
+    void start() {
+      loop.execute(
+          () -> {
+            try {
+              loop.register(serverChannel, SelectionKey.OP_ACCEPT, this);
+              Log.i(TAG, "Server: listening on port " + port);
+            } catch (IOException e) {
+              Log.e(TAG, e.getMessage());
+            }
+          });
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+      for (SocketChannel client; (client = serverChannel.accept()) != null; ) {
+        client.configureBlocking(false);
+        socketOptions.apply(client.socket());
+        loop.register(client, SelectionKey.OP_READ, new PreambleReader(this, client));
+      }
+    }
+
+    void close() {
+      loop.close(serverChannel);
+      Log.i(TAG, "Server: closed port " + port);
+    }
+  }
+
+  /** Reads the preamble of an accepted connection and passes it to the handler of its channel. */
+  private class PreambleReader implements SelectorLoop.Handler {
+    final Listener listener;
+    final SocketChannel client;
+    ByteBuffer head = ByteBuffer.allocate(Protocol.PREAMBLE_LENGTH);
+    /** While reading the origin of a relayed connection: its length, then the address. */
+    ByteBuffer originBuffer;
+
+    boolean originLengthRead;
+
+    boolean relayed;
+    String origin;
+
+    PreambleReader(Listener listener, SocketChannel client) {
+      this.listener = listener;
+      this.client = client;
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+      if (originBuffer != null && !readOrigin()) {
+        return;
+      }
+      boolean eof = client.read(head) == -1;
+      final int channel = Protocol.parsePreamble(head, eof);
+      if (channel == Protocol.PREAMBLE_INCOMPLETE) {
+        return;
+      }
+      if (channel == Protocol.CHANNEL_RELAYED) {
+        if (relayed) {
+          throw new IOException("Relayed twice");
+        }
+        relayed = true;
+        originBuffer = ByteBuffer.allocate(1);
+        // The peer's own preamble may have arrived along with the origin.
+        onReady(key);
+        return;
+      }
+      final String origin = this.origin;
+      listener.loop.release(
+          key,
+          () -> {
+            Handler handler = handlerFor(listener, (byte) channel);
+            if (handler != null) {
+              handler.onConnection(new Connection(client, (byte) channel, head, origin));
+              return;
+            }
+            Log.w(TAG, "Server: no listener for channel " + channel + " on port " + listener.port);
+            closeQuietly(client);
+          });
+    }
+
+    /** Reads what arrived of the origin; once complete, the reader starts over on the preamble. */
+    private boolean readOrigin() throws IOException {
+      if (client.read(originBuffer) == -1) {
+        throw new IOException("Relayed connection closed before its origin");
+      }
+      if (originBuffer.hasRemaining()) {
+        return false;
+      }
+      if (!originLengthRead) {
+        originLengthRead = true;
+        originBuffer = ByteBuffer.allocate(originBuffer.get(0) & 0xFF);
+        return readOrigin();
+      }
+      String claimed = new String(originBuffer.array(), Charset.forName(Utils.CHARSET));
+      String relay = client.socket().getInetAddress().getHostAddress();
+      if (relays.contains(relay)) {
+        origin = claimed;
+      } else {
+        Log.w(TAG, "Server: " + relay + " is not a relay, ignoring its claim to relay " + claimed);
+      }
+      originBuffer = null;
+      head = ByteBuffer.allocate(Protocol.PREAMBLE_LENGTH);
+      return true;
+    }
+  }
+}
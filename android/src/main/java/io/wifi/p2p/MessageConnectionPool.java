@@ -0,0 +1,143 @@
+package io.wifi.p2p;
+
+import android.os.Bundle;
+import android.os.ResultReceiver;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Keeps one {@link PeerConnection} per peer address so messages reuse open sockets. */
+public class MessageConnectionPool {
+  private final Map<String, PeerConnection> connections = new HashMap<>();
+
+  /**
+   * @param options used when the connection to the peer is opened by this call; connections
+   *     through a relay are pooled apart from direct ones
+   */
+  public synchronized PeerConnection get(String host, int port, SocketOptions options) {
+    String key = host + ":" + port;
+    if (options.relayHost != null) {
+      key += " via " + options.relayHost + ":" + options.relayPort;
+    }
+    PeerConnection connection = connections.get(key);
+    if (connection == null) {
+      connection = new PeerConnection(host, port, options);
+      connections.put(key, connection);
+    }
+    return connection;
+  }
+
+  public void send(
+      String host,
+      int port,
+      String message,
+      FlushPolicy policy,
+      int compressionLevel,
+      SocketOptions options,
+      ResultReceiver receiver) {
+    get(host, port, options).send(message, policy, compressionLevel, receiver);
+  }
+
+  public void sendBinary(
+      String host,
+      int port,
+      byte[] payload,
+      FlushPolicy policy,
+      int compressionLevel,
+      SocketOptions options,
+      ResultReceiver receiver) {
+    get(host, port, options).sendBinary(payload, policy, compressionLevel, receiver);
+  }
+
+  /**
+   * Sends {@code message} to every host over its pooled connection. The receiver gets a single
+   * result once every host acked the message or failed, with the {@code delivered} and {@code
+   * failed} hosts; it fails only when no host got the message.
+   */
+  public void broadcast(
+      List<String> hosts,
+      int port,
+      String message,
+      FlushPolicy policy,
+      int compressionLevel,
+      SocketOptions options,
+      final ResultReceiver receiver) {
+    final long start = System.currentTimeMillis();
+    final List<String> delivered = new ArrayList<>();
+    final List<String> failed = new ArrayList<>();
+    final int count = hosts.size();
+    for (final String host : hosts) {
+      send(
+          host,
+          port,
+          message,
+          policy,
+          compressionLevel,
+          options,
+          new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+              synchronized (delivered) {
+                if (resultCode == 0) {
+                  delivered.add(host);
+                } else {
+                  failed.add(host + ": " + resultData.getString("error"));
+                }
+                if (delivered.size() + failed.size() == count) {
+                  receiver.send(
+                      delivered.isEmpty() ? 1 : 0,
+                      broadcastResult(start, delivered, failed));
+                }
+              }
+            }
+          });
+    }
+    if (count == 0) {
+      receiver.send(1, broadcastResult(start, delivered, failed));
+    }
+  }
+
+  private static Bundle broadcastResult(long start, List<String> delivered, List<String> failed) {
+    Bundle bundle = new Bundle();
+    bundle.putLong("time", System.currentTimeMillis() - start);
+    bundle.putStringArray("delivered", delivered.toArray(new String[0]));
+    bundle.putStringArray("failed", failed.toArray(new String[0]));
+    if (delivered.isEmpty()) {
+      bundle.putString("error", "No peer got the message: " + failed);
+    }
+    return bundle;
+  }
+
+  /** See {@link PeerConnection#call}. */
+  public void call(
+      String host,
+      int port,
+      String method,
+      String argument,
+      long timeoutMillis,
+      int compressionLevel,
+      SocketOptions options,
+      ResultReceiver receiver) {
+    get(host, port, options).call(method, argument, timeoutMillis, compressionLevel, receiver);
+  }
+
+  /** See {@link PeerConnection#ping}. */
+  public void ping(
+      String host,
+      int port,
+      long timeoutMillis,
+      int attempts,
+      long retryDelayMillis,
+      SocketOptions options,
+      ResultReceiver receiver) {
+    get(host, port, options).ping(timeoutMillis, attempts, retryDelayMillis, receiver);
+  }
+
+  public synchronized void closeAll() {
+    for (PeerConnection connection : connections.values()) {
+      connection.close();
+    }
+    connections.clear();
+  }
+}
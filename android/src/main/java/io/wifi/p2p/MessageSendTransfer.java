@@ -0,0 +1,74 @@
+package io.wifi.p2p;
+
+import static io.wifi.p2p.Utils.CHARSET;
+import static io.wifi.p2p.Utils.copyBytes;
+
+import android.os.Bundle;
+import android.os.ResultReceiver;
+import android.util.Log;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * Created by zyusk on 03.11.2018.
+ *
+ * <p>Sends a single message over its own connection. Pooled messages go through {@link
+ * MessageConnectionPool} instead.
+ */
+public class MessageSendTransfer extends Transfer {
+  private final String message;
+  private final String host;
+  private final int port;
+  private final SocketOptions socketOptions;
+  private final ResultReceiver receiver;
+
+  public MessageSendTransfer(
+      String id,
+      String message,
+      String host,
+      int port,
+      SocketOptions socketOptions,
+      ResultReceiver receiver) {
+    super(id, host, PRIORITY_CONTROL);
+    this.message = message;
+    this.host = host;
+    this.port = port;
+    this.socketOptions = socketOptions;
+    this.receiver = receiver;
+  }
+
+  @Override
+  protected void transfer() throws IOException {
+    long start = System.currentTimeMillis();
+    Socket socket = track(new Socket());
+
+    Log.i(TAG, "Opening client socket - ");
+    socketOptions.apply(socket);
+    socket.bind(null);
+    socketOptions.connect(socket, host, port);
+
+    Log.i(TAG, "Client socket connected - " + socket.isConnected());
+    OutputStream stream = socket.getOutputStream();
+    InputStream is = new ByteArrayInputStream(message.getBytes(Charset.forName(CHARSET)));
+    if (!copyBytes(is, stream)) {
+      throw new IOException("Failed to write the message");
+    }
+    Log.i(TAG, "Client: Data written");
+
+    Bundle bundle = new Bundle();
+    bundle.putLong("time", System.currentTimeMillis() - start);
+    bundle.putString("message", message);
+    receiver.send(0, bundle);
+  }
+
+  @Override
+  protected void fail(String error) {
+    Bundle bundle = new Bundle();
+    bundle.putString("error", error);
+    receiver.send(1, bundle);
+  }
+}
@@ -2,92 +2,854 @@ package io.wifi.p2p;
 
 import static io.wifi.p2p.Utils.CHARSET;
 
-import android.os.Bundle;
+import android.util.Base64;
 import android.util.Log;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableMap;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Created by kiryl on 18.7.18. Refactor by viniciuscb on 20.03.23
  *
- * <p>A simple server socket that accepts connection and writes some data on the stream.
+ * <p>Receives messages on the connections that the {@link ListenerRegistry} dispatches to the
+ * message channel, so messages and files can be received on the same port at the same time.
+ *
+ * <p>All clients are served without blocking on the I/O thread of the registry: each connection
+ * has its own read buffer that frames are decoded from, and acks are queued and written as the
+ * socket accepts them. Hundreds of open connections therefore cost buffers, not threads.
+ *
+ * <p>{@link #start} receives a single message and stops listening again. {@link #startPersistent}
+ * keeps listening until {@link #stop}, serves any number of clients concurrently and reports every
+ * framed message it reads. Binary messages are handed over base64 encoded, which is the cheapest
+ * way across the React Native bridge.
+ *
+ * <p>With a spill threshold, messages larger than it never reach memory as a whole: their bytes are
+ * written to a temp file in the spill directory as they arrive, and the message is reported as that
+ * file, so a client sending hundreds of megabytes costs a read buffer like any other.
+ *
+ * <p>Request frames are remote calls (see {@link PeerConnection#call}). They are reported with an
+ * id that {@link #respond} takes to send the reply back on the connection the request came on.
  */
 public class MessageServer {
   private static final String TAG = "RNWiFiP2P";
-  private final Executor executor;
-  private volatile ServerSocket serverSocket;
+  private static final byte[] CHANNELS = {Protocol.CHANNEL_MESSAGE, Protocol.CHANNEL_LEGACY};
+  private static final int READ_BUFFER_SIZE = 8 * 1024;
+  private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+  private final ListenerRegistry listeners;
+  private final File spillDirectory;
+  private final List<Registration> registrations = new ArrayList<>();
+  // Only touched on the I/O thread.
+  private final Set<Client> clients = new HashSet<>();
+  private final Map<Integer, PendingRequest> requests = new HashMap<>();
+  private int nextRequestId;
 
-  public MessageServer() {
-    this.executor = Executors.newSingleThreadExecutor();
+  /** @param spillDirectory where messages above the spill threshold are written to */
+  public MessageServer(ListenerRegistry listeners, File spillDirectory) {
+    this.listeners = listeners;
+    this.spillDirectory = spillDirectory;
   }
 
-  public void start(ReadableMap props, Callback callback) {
-    executor.execute(
-        () -> {
-          try {
-            Boolean returnMeta = false;
-            serverSocket = new ServerSocket(8988);
-            Log.i(TAG, "Server: Socket opened");
+  /**
+   * Receives a single message. A message above {@code spillThreshold} bytes, if it is positive, is
+   * always reported as a map with the {@code file} it was written to, its {@code size} and {@code
+   * fromAddress}. {@code socketOptions} are applied to the accepted connection.
+   */
+  public void start(
+      int port,
+      ReadableMap props,
+      long spillThreshold,
+      SocketOptions socketOptions,
+      final Callback callback)
+      throws IOException {
+    final boolean returnMeta = props != null && Arguments.toBundle(props).getBoolean("meta");
+    final SelectorLoop loop = listeners.loop();
+    listen(
+        port,
+        new ListenerRegistry.Handler() {
+          private boolean received;
 
-            if (props != null) {
-              Bundle bundle = Arguments.toBundle(props);
-              returnMeta = bundle.getBoolean("meta");
+          @Override
+          public void onConnection(ListenerRegistry.Connection connection) {
+            if (received) {
+              closeQuietly(connection.channel);
+              return;
             }
-
-            Socket client = serverSocket.accept();
-            String clientAddress = client.getInetAddress().getHostAddress();
+            received = true;
+            unlisten(this);
             Log.i(TAG, "Server: connection done");
-
-            InputStream inputstream = client.getInputStream();
-            String message = convertStreamToString(inputstream);
-            client.close();
-
-            if (returnMeta) {
-              WritableMap map = Arguments.createMap();
-              map.putString("message", message);
-              map.putString("fromAddress", clientAddress);
-              callback.invoke(map);
-            } else {
-              callback.invoke(message);
-            }
-
-            this.stop();
-          } catch (IOException e) {
-            Log.e(TAG, e.getMessage());
+            serve(
+                loop,
+                connection,
+                true,
+                spillThreshold,
+                socketOptions,
+                null,
+                (type, content, spilled, fromAddress) -> {
+                  if (returnMeta || spilled != null) {
+                    callback.invoke(mapMessage(type, content, spilled, fromAddress));
+                  } else {
+                    callback.invoke(content);
+                  }
+                });
           }
         });
   }
 
+  /**
+   * Keeps listening on {@code port} until {@link #stop} is called. Each text message is passed to
+   * {@code onMessage} as a map with {@code message} and {@code fromAddress}, each binary message to
+   * {@code onBinary} as a map with the base64 encoded {@code data} and {@code fromAddress}.
+   * Messages above {@code spillThreshold} bytes, if it is positive, carry the {@code file} they
+   * were written to and their {@code size} instead of their content. {@code socketOptions} are
+   * applied to every accepted connection; there is no read timeout, idle clients stay connected.
+   *
+   * <p>Each remote call is passed to {@code onRequest} as a map with {@code requestId}, {@code
+   * method}, {@code payload} and {@code fromAddress}; {@link #respond} answers it.
+   */
+  public void startPersistent(
+      int port,
+      long spillThreshold,
+      SocketOptions socketOptions,
+      final CustomDefinedCallback onMessage,
+      final CustomDefinedCallback onBinary,
+      final CustomDefinedCallback onRequest)
+      throws IOException {
+    final SelectorLoop loop = listeners.loop();
+    listen(
+        port,
+        connection ->
+            serve(
+                loop,
+                connection,
+                false,
+                spillThreshold,
+                socketOptions,
+                onRequest,
+                (type, content, spilled, fromAddress) -> {
+                  WritableMap map = mapMessage(type, content, spilled, fromAddress);
+                  if (type == Protocol.FRAME_BINARY) {
+                    onBinary.invoke(map);
+                  } else {
+                    onMessage.invoke(map);
+                  }
+                }));
+  }
+
   public void stop() {
-    if (serverSocket != null) {
+    List<Registration> stopped;
+    synchronized (registrations) {
+      stopped = new ArrayList<>(registrations);
+      registrations.clear();
+    }
+    // Outside the lock: closing a port waits for the I/O thread, which may be in unlisten.
+    for (Registration registration : stopped) {
+      for (byte channel : CHANNELS) {
+        listeners.unregister(registration.port, channel, registration.handler);
+      }
+    }
+    try {
+      listeners
+          .loop()
+          .execute(
+              () -> {
+                for (Client client : new ArrayList<>(clients)) {
+                  client.close();
+                }
+              });
+    } catch (IOException e) {
+      Log.e(TAG, e.getMessage());
+    }
+  }
+
+  /**
+   * Sends the reply to the request reported with {@code requestId}: {@code text} as the result, or
+   * as the error message when not {@code ok}. Does nothing when the request was answered already
+   * or its connection is gone.
+   */
+  public void respond(final int requestId, final boolean ok, final String text) {
+    try {
+      listeners
+          .loop()
+          .execute(
+              () -> {
+                PendingRequest request = requests.remove(requestId);
+                if (request == null) {
+                  Log.w(TAG, "Server: no pending request " + requestId);
+                  return;
+                }
+                request.client.reply(
+                    request.id, ok ? Protocol.REPLY_OK : Protocol.REPLY_ERROR, text);
+                request.client.flushIfIdle();
+              });
+    } catch (IOException e) {
+      Log.e(TAG, e.getMessage());
+    }
+  }
+
+  /** Whether messages are being received on {@code port}. */
+  public boolean isListening(int port) {
+    synchronized (registrations) {
+      for (Registration registration : registrations) {
+        if (registration.port == port) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void listen(int port, ListenerRegistry.Handler handler) throws IOException {
+    synchronized (registrations) {
+      registrations.add(new Registration(port, handler));
+    }
+    for (byte channel : CHANNELS) {
+      listeners.register(port, channel, handler);
+    }
+    Log.i(TAG, "Server: receiving messages on port " + port);
+  }
+
+  private void unlisten(ListenerRegistry.Handler handler) {
+    List<Registration> removed = new ArrayList<>();
+    synchronized (registrations) {
+      for (Iterator<Registration> it = registrations.iterator(); it.hasNext(); ) {
+        Registration registration = it.next();
+        if (registration.handler == handler) {
+          removed.add(registration);
+          it.remove();
+        }
+      }
+    }
+    for (Registration registration : removed) {
+      for (byte channel : CHANNELS) {
+        listeners.unregister(registration.port, channel, handler);
+      }
+    }
+  }
+
+  private void serve(
+      SelectorLoop loop,
+      ListenerRegistry.Connection connection,
+      boolean single,
+      long spillThreshold,
+      SocketOptions socketOptions,
+      CustomDefinedCallback onRequest,
+      MessageListener listener) {
+    Client client = new Client(connection, single, spillThreshold, onRequest, listener);
+    try {
+      socketOptions.apply(connection.channel.socket());
+      client.key = loop.register(connection.channel, SelectionKey.OP_READ, client);
+      clients.add(client);
+    } catch (IOException e) {
+      Log.e(TAG, e.getMessage());
+      closeQuietly(connection.channel);
+    }
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Give up
+    }
+  }
+
+  private WritableMap mapMessage(byte type, String content, File spilled, String fromAddress) {
+    WritableMap map = Arguments.createMap();
+    if (spilled != null) {
+      map.putString("file", spilled.getAbsolutePath());
+      map.putDouble("size", spilled.length());
+    } else {
+      map.putString(type == Protocol.FRAME_BINARY ? "data" : "message", content);
+    }
+    map.putString("fromAddress", fromAddress);
+    return map;
+  }
+
+  private interface MessageListener {
+    /**
+     * Called with the text of a {@link Protocol#FRAME_TEXT} frame or the base64 encoded payload of
+     * a {@link Protocol#FRAME_BINARY} frame, or with a {@code null} content and the file a message
+     * above the spill threshold was written to. The file is the listener's to move or delete.
+     */
+    void onMessage(byte type, String content, File spilled, String fromAddress);
+  }
+
+  /** Whether {@code type}, flags aside, is a text or binary message. */
+  private static boolean isMessage(byte type) {
+    type &= ~(Protocol.FRAME_DEFLATED | Protocol.FRAME_CHECKSUM);
+    return type == Protocol.FRAME_TEXT || type == Protocol.FRAME_BINARY;
+  }
+
+  /** A request reported to JS and not answered yet. */
+  private static class PendingRequest {
+    final Client client;
+    /** The frame id the reply carries. */
+    final int id;
+
+    PendingRequest(Client client, int id) {
+      this.client = client;
+      this.id = id;
+    }
+  }
+
+  private static class Registration {
+    final int port;
+    final ListenerRegistry.Handler handler;
+
+    Registration(int port, ListenerRegistry.Handler handler) {
+      this.port = port;
+      this.handler = handler;
+    }
+  }
+
+  /**
+   * A message above the spill threshold on its way to a temp file. Its payload is written as it
+   * arrives, inflated on the fly when the frame is deflated.
+   */
+  private static class Spill {
+    final byte type;
+    final int id;
+    final File file;
+    final FileOutputStream out;
+    final Inflater inflater;
+    /** Payload bytes still to come, not counting the checksum. */
+    long remaining;
+    /** Bytes of the uncompressed length in front of a deflated payload still to come. */
+    int prefix;
+    int inflatedLength;
+    long size;
+    byte[] buffer;
+
+    Spill(File directory, byte type, int id, boolean deflated, long remaining) throws IOException {
+      this.type = type;
+      this.id = id;
+      this.remaining = remaining;
+      directory.mkdirs();
+      this.file =
+          File.createTempFile(
+              "message", type == Protocol.FRAME_BINARY ? ".bin" : ".txt", directory);
+      this.out = new FileOutputStream(file);
+      if (deflated) {
+        inflater = new Inflater();
+        buffer = new byte[SPILL_BUFFER_SIZE];
+        prefix = 4;
+      } else {
+        inflater = null;
+      }
+    }
+
+    void write(byte[] data, int offset, int length) throws IOException {
+      if (inflater == null) {
+        out.write(data, offset, length);
+        size += length;
+        return;
+      }
+      for (; prefix > 0 && length > 0; prefix--, length--) {
+        inflatedLength = inflatedLength << 8 | data[offset++] & 0xff;
+      }
+      if (length == 0) {
+        return;
+      }
+      inflater.setInput(data, offset, length);
       try {
-        serverSocket.close();
-        Log.i(TAG, "Server: Socket closed");
+        int n;
+        while ((n = inflater.inflate(buffer)) > 0) {
+          out.write(buffer, 0, n);
+          size += n;
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt compressed frame");
+      }
+    }
+
+    /** Closes the file once the whole payload is written. */
+    File finish() throws IOException {
+      out.close();
+      if (inflater != null) {
+        boolean complete = inflater.finished() && size == inflatedLength;
+        inflater.end();
+        if (!complete) {
+          file.delete();
+          throw new IOException("Corrupt compressed frame");
+        }
+      }
+      return file;
+    }
+
+    void discard() {
+      try {
+        out.close();
       } catch (IOException e) {
-        Log.e(TAG, e.getMessage());
+        // Deleted anyway
+      }
+      if (inflater != null) {
+        inflater.end();
       }
+      file.delete();
     }
   }
 
-  protected String convertStreamToString(InputStream is) throws IOException {
-    StringBuilder sb = new StringBuilder(Math.max(16, is.available()));
-    char[] tmp = new char[4096];
+  /**
+   * One connection on the I/O thread. Framed connections are decoded as their bytes arrive; a
+   * legacy connection is collected until the peer closes it and reported as a single message.
+   * Above the spill threshold either goes to a {@link Spill} instead.
+   */
+  private class Client implements SelectorLoop.Handler {
+    final SocketChannel channel;
+    final String address;
+    final boolean single;
+    final long spillThreshold;
+    final CustomDefinedCallback onRequest;
+    final MessageListener listener;
+    final ByteArrayOutputStream legacy;
+    final ArrayDeque<ByteBuffer> acks = new ArrayDeque<>();
+    ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    SelectionKey key;
+    Inflater inflater;
+    Spill spill;
+    CRC32 spillCrc;
+    boolean closeWhenFlushed;
 
-    try {
-      InputStreamReader reader = new InputStreamReader(is, CHARSET);
-      for (int cnt; (cnt = reader.read(tmp)) > 0; ) sb.append(tmp, 0, cnt);
-    } finally {
-      is.close();
+    Client(
+        ListenerRegistry.Connection connection,
+        boolean single,
+        long spillThreshold,
+        CustomDefinedCallback onRequest,
+        MessageListener listener) {
+      this.channel = connection.channel;
+      this.address = connection.remoteAddress();
+      this.single = single;
+      this.spillThreshold = spillThreshold;
+      this.onRequest = onRequest;
+      this.listener = listener;
+      if (connection.type == Protocol.CHANNEL_LEGACY) {
+        ByteBuffer head = connection.head;
+        legacy = new ByteArrayOutputStream();
+        legacy.write(head.array(), head.position(), head.remaining());
+      } else {
+        legacy = null;
+      }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+      try {
+        if (key.isWritable()) {
+          flush();
+        }
+        if (key.isValid() && key.isReadable()) {
+          read();
+        }
+      } catch (IOException e) {
+        Log.e(TAG, e.getMessage());
+        close();
+      }
+    }
+
+    private void read() throws IOException {
+      int read;
+      while ((read = channel.read(in)) > 0) {
+        if (legacy != null) {
+          collectLegacy();
+        } else if (!decode()) {
+          return;
+        }
+      }
+      if (!acks.isEmpty() && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+        // The acks of everything read in one go leave in a single write.
+        flush();
+      }
+      if (read == -1) {
+        if (legacy != null && spill != null) {
+          File file = spill.finish();
+          spill = null;
+          listener.onMessage(Protocol.FRAME_TEXT, null, file, address);
+        } else if (legacy != null) {
+          listener.onMessage(
+              Protocol.FRAME_TEXT, new String(legacy.toByteArray(), CHARSET), null, address);
+        }
+        close();
+      }
+    }
+
+    private boolean spills(long length) {
+      return spillThreshold > 0 && length > spillThreshold;
+    }
+
+    /** Whether the frame at the read position goes to a {@link Spill}; requests never do. */
+    private boolean spillsFrame() {
+      return isMessage(in.get(in.position())) && spills(in.getInt(in.position() + 5));
+    }
+
+    private void collectLegacy() throws IOException {
+      if (spill == null && spills(legacy.size() + in.position())) {
+        spill = new Spill(spillDirectory, Protocol.FRAME_TEXT, 0, false, -1);
+        spill.write(legacy.toByteArray(), 0, legacy.size());
+        legacy.reset();
+      }
+      if (spill != null) {
+        spill.write(in.array(), 0, in.position());
+        in.clear();
+        return;
+      }
+      if (legacy.size() + in.position() > Protocol.MAX_FRAME_LENGTH) {
+        throw new IOException("Message too long");
+      }
+      legacy.write(in.array(), 0, in.position());
+      in.clear();
+    }
+
+    /** Handles every complete frame in the buffer; returns false once no more should be read. */
+    private boolean decode() throws IOException {
+      in.flip();
+      try {
+        while (true) {
+          if (spill != null) {
+            if (!continueSpill()) {
+              break;
+            }
+            if (!deliverSpill()) {
+              return false;
+            }
+            continue;
+          }
+          if (in.remaining() < Protocol.FRAME_HEADER_LENGTH) {
+            break;
+          }
+          int length = in.getInt(in.position() + 5);
+          boolean spills = spillsFrame();
+          if (length < 0 || (length > Protocol.MAX_FRAME_LENGTH && !spills)) {
+            throw new IOException("Invalid frame length " + length);
+          }
+          if (spills) {
+            startSpill(length);
+            continue;
+          }
+          if (in.remaining() < Protocol.FRAME_HEADER_LENGTH + length) {
+            break;
+          }
+          int frame = in.position();
+          byte type = in.get();
+          int id = in.getInt();
+          in.getInt();
+          byte[] payload = in.array();
+          int offset = in.position();
+          int payloadLength = length;
+          if ((type & Protocol.FRAME_CHECKSUM) != 0) {
+            payloadLength -= 4;
+            if (payloadLength < 0 || !checksumMatches(frame, offset + payloadLength)) {
+              // Nothing after a corrupt frame can be trusted: nack it and drop the connection.
+              Log.e(TAG, "Server: corrupt frame " + id + " from " + address);
+              nack(id);
+              stopReading();
+              return false;
+            }
+            type &= ~Protocol.FRAME_CHECKSUM;
+          }
+          if ((type & Protocol.FRAME_DEFLATED) != 0
+              && isMessage(type)
+              && payloadLength >= 4
+              && spills(in.getInt(offset))) {
+            // Small on the wire, but too large to inflate in memory.
+            spill =
+                new Spill(spillDirectory, (byte) (type & ~Protocol.FRAME_DEFLATED), id, true, 0);
+            spill.write(payload, offset, payloadLength);
+            in.position(in.position() + length);
+            if (!deliverSpill()) {
+              return false;
+            }
+            continue;
+          }
+          if ((type & Protocol.FRAME_DEFLATED) != 0) {
+            payload = inflate(offset, payloadLength);
+            offset = 0;
+            payloadLength = payload.length;
+            type &= ~Protocol.FRAME_DEFLATED;
+          }
+          if (type == Protocol.FRAME_PING) {
+            in.position(in.position() + length);
+            control(Protocol.FRAME_PONG, id);
+            continue;
+          }
+          if (type == Protocol.FRAME_REQUEST) {
+            in.position(in.position() + length);
+            ack(id);
+            request(id, payload, offset, payloadLength);
+            continue;
+          }
+          String content;
+          if (type == Protocol.FRAME_TEXT) {
+            content = new String(payload, offset, payloadLength, CHARSET);
+          } else if (type == Protocol.FRAME_BINARY) {
+            // Encoded straight from the read buffer, the bridge can only carry strings.
+            content = Base64.encodeToString(payload, offset, payloadLength, Base64.NO_WRAP);
+          } else {
+            in.position(in.position() + length);
+            Log.w(TAG, "Server: ignoring frame of type " + type);
+            continue;
+          }
+          in.position(in.position() + length);
+          listener.onMessage(type, content, null, address);
+          ack(id);
+          if (single) {
+            // Only one message is expected: stop reading and close once the ack is out.
+            stopReading();
+            return false;
+          }
+        }
+      } finally {
+        if (key.isValid()) {
+          compact();
+        }
+      }
+      return true;
+    }
+
+    /** Consumes the header of a frame above the spill threshold and opens its temp file. */
+    private void startSpill(int length) throws IOException {
+      int frame = in.position();
+      byte type = in.get();
+      int id = in.getInt();
+      in.getInt();
+      long remaining = length;
+      spillCrc = null;
+      if ((type & Protocol.FRAME_CHECKSUM) != 0) {
+        remaining -= 4;
+        spillCrc = new CRC32();
+        spillCrc.update(in.array(), frame, Protocol.FRAME_HEADER_LENGTH);
+        type &= ~Protocol.FRAME_CHECKSUM;
+      }
+      boolean deflated = (type & Protocol.FRAME_DEFLATED) != 0;
+      if (remaining < (deflated ? 4 : 0)) {
+        throw new IOException("Invalid frame length " + length);
+      }
+      type &= ~Protocol.FRAME_DEFLATED;
+      spill = new Spill(spillDirectory, type, id, deflated, remaining);
+      if (in.capacity() < SPILL_BUFFER_SIZE) {
+        // Fewer, larger reads while the payload streams through.
+        ByteBuffer larger = ByteBuffer.allocate(SPILL_BUFFER_SIZE);
+        larger.put(in);
+        larger.flip();
+        in = larger;
+      }
+    }
+
+    /**
+     * Writes the buffered payload bytes of the spilled frame to its file; returns true once the
+     * whole frame, including its checksum, has been read.
+     */
+    private boolean continueSpill() throws IOException {
+      int n = (int) Math.min(in.remaining(), spill.remaining);
+      if (n > 0) {
+        if (spillCrc != null) {
+          spillCrc.update(in.array(), in.position(), n);
+        }
+        spill.write(in.array(), in.position(), n);
+        in.position(in.position() + n);
+        spill.remaining -= n;
+      }
+      if (spill.remaining > 0) {
+        return false;
+      }
+      if (spillCrc != null) {
+        if (in.remaining() < 4) {
+          return false;
+        }
+        if (in.getInt() != (int) spillCrc.getValue()) {
+          spill.remaining = -1;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Reports the completed spilled frame, or nacks it when its checksum did not match; returns
+     * false once no more should be read.
+     */
+    private boolean deliverSpill() throws IOException {
+      Spill done = spill;
+      spill = null;
+      if (done.remaining < 0) {
+        done.discard();
+        Log.e(TAG, "Server: corrupt frame " + done.id + " from " + address);
+        nack(done.id);
+        stopReading();
+        return false;
+      }
+      if (done.type != Protocol.FRAME_TEXT && done.type != Protocol.FRAME_BINARY) {
+        done.discard();
+        Log.w(TAG, "Server: ignoring frame of type " + done.type);
+        return true;
+      }
+      File file = done.finish();
+      Log.i(TAG, "Server: spilled " + done.size + " bytes to " + file);
+      listener.onMessage(done.type, null, file, address);
+      ack(done.id);
+      if (single) {
+        stopReading();
+        return false;
+      }
+      return true;
+    }
+
+    /** Reports a request frame, or answers it with an error when it can not be handled. */
+    private void request(int id, byte[] payload, int offset, int length) throws IOException {
+      int nameLength = length >= 2 ? ByteBuffer.wrap(payload, offset, 2).getShort() & 0xFFFF : -1;
+      if (nameLength < 0 || nameLength > length - 2) {
+        reply(id, Protocol.REPLY_ERROR, "Malformed request");
+        return;
+      }
+      if (onRequest == null) {
+        reply(id, Protocol.REPLY_ERROR, "Not accepting remote calls");
+        return;
+      }
+      int requestId = ++nextRequestId;
+      requests.put(requestId, new PendingRequest(this, id));
+      WritableMap map = Arguments.createMap();
+      map.putInt("requestId", requestId);
+      map.putString("method", new String(payload, offset + 2, nameLength, CHARSET));
+      map.putString(
+          "payload",
+          new String(payload, offset + 2 + nameLength, length - 2 - nameLength, CHARSET));
+      map.putString("fromAddress", address);
+      onRequest.invoke(map);
+    }
+
+    /** Checks the CRC32 at {@code end} against the frame bytes from {@code frame} up to it. */
+    private boolean checksumMatches(int frame, int end) {
+      CRC32 crc = new CRC32();
+      crc.update(in.array(), frame, end - frame);
+      return in.getInt(end) == (int) crc.getValue();
+    }
+
+    /** Inflates a deflated payload: its uncompressed length followed by the deflated bytes. */
+    private byte[] inflate(int offset, int length) throws IOException {
+      int inflatedLength = length >= 4 ? in.getInt(offset) : -1;
+      if (inflatedLength < 0 || inflatedLength > Protocol.MAX_FRAME_LENGTH) {
+        throw new IOException("Invalid compressed frame");
+      }
+      if (inflater == null) {
+        inflater = new Inflater();
+      }
+      byte[] inflated = new byte[inflatedLength];
+      Compressor.inflate(inflater, in.array(), offset + 4, length - 4, inflated, inflatedLength);
+      return inflated;
+    }
+
+    /** Moves the unread bytes to the front, growing the buffer when a frame does not fit. */
+    private void compact() {
+      int needed = in.remaining();
+      if (spill == null && needed >= Protocol.FRAME_HEADER_LENGTH && !spillsFrame()) {
+        needed = Math.max(needed, Protocol.FRAME_HEADER_LENGTH + in.getInt(in.position() + 5));
+      }
+      if (needed > in.capacity()) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, in.capacity() * 2));
+        larger.put(in);
+        in = larger;
+      } else {
+        in.compact();
+      }
+    }
+
+    private void ack(int id) {
+      control(Protocol.FRAME_ACK, id);
+    }
+
+    private void nack(int id) {
+      control(Protocol.FRAME_NACK, id);
+    }
+
+    /** Queues a frame without payload, such as an ack; it leaves with the acks. */
+    private void control(byte type, int id) {
+      ByteBuffer frame = ByteBuffer.allocate(Protocol.FRAME_HEADER_LENGTH);
+      frame.put(type).putInt(id).putInt(0).flip();
+      acks.add(frame);
+    }
+
+    /** Queues a response frame; it leaves with the acks. */
+    void reply(int id, byte status, String text) {
+      acks.add(
+          Protocol.encodeFrame(
+              (byte) (Protocol.FRAME_RESPONSE | Protocol.FRAME_CHECKSUM),
+              id,
+              Protocol.responsePayload(status, text)));
+    }
+
+    /** Writes what is queued unless a write is pending already. */
+    void flushIfIdle() {
+      if (!key.isValid() || (key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+        return;
+      }
+      try {
+        flush();
+      } catch (IOException e) {
+        Log.e(TAG, e.getMessage());
+        close();
+      }
+    }
+
+    /** Stops reading and closes the connection once the queued acks are out. */
+    private void stopReading() throws IOException {
+      closeWhenFlushed = true;
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      flush();
+    }
+
+    private void flush() throws IOException {
+      if (!acks.isEmpty()) {
+        channel.write(acks.toArray(new ByteBuffer[0]));
+        while (!acks.isEmpty() && !acks.peek().hasRemaining()) {
+          acks.poll();
+        }
+        if (!acks.isEmpty()) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          return;
+        }
+      }
+      if (closeWhenFlushed) {
+        close();
+      } else if (key.isValid()) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      }
+    }
+
+    void close() {
+      if (inflater != null) {
+        inflater.end();
+        inflater = null;
+      }
+      if (spill != null) {
+        // Cut off half way: nothing to report.
+        spill.discard();
+        spill = null;
+      }
+      clients.remove(this);
+      for (Iterator<PendingRequest> it = requests.values().iterator(); it.hasNext(); ) {
+        if (it.next().client == this) {
+          it.remove();
+        }
+      }
+      key.cancel();
+      closeQuietly(channel);
     }
-    return sb.toString();
   }
 }
@@ -0,0 +1,571 @@
+package io.wifi.p2p;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.os.ResultReceiver;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable queue of messages and files waiting for their peer. Sends are stored as soon as they are
+ * queued and delivered by {@link #drain}, which the module calls whenever a group forms: per peer,
+ * in the order they were queued, messages in batches over the pooled connection and files one
+ * after the other. What can't be delivered stays for the next drain until its time to live ends.
+ * Every delivered or expired item is reported to the update callback.
+ *
+ * <p>The queue is an append-only log: a record per queued item and one per item that left the
+ * queue. The log is synced when an item is queued, not when it leaves, so after a crash an item
+ * may be delivered twice but is never lost. It is rewritten without the items that left once they
+ * take up more than half of it, and queueing fails once the pending items take up more than the
+ * size limit. A queued file is only referenced: it has to stay where it is until delivered.
+ */
+public class Outbox {
+  private static final String TAG = "RNWiFiP2P";
+  public static final byte KIND_MESSAGE = 0;
+  public static final byte KIND_FILE = 1;
+  public static final String STATUS_DELIVERED = "delivered";
+  public static final String STATUS_EXPIRED = "expired";
+  public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+  public static final long DEFAULT_TTL_MILLIS = 24 * 60 * 60 * 1000L;
+  /** Relay of an item sent through the group owner, resolved when it is delivered. */
+  public static final String RELAY_GROUP_OWNER = "*";
+  /** Messages sent at once; they are coalesced into a few writes, see {@link FlushPolicy}. */
+  static final int BATCH_SIZE = FlushPolicy.DEFAULT_MAX_COUNT;
+  /**
+   * How long a batch of messages waits for its acks; after that the drain of the peer ends, and
+   * acks that still arrive take their message off the queue.
+   */
+  static final long BATCH_TIMEOUT_MILLIS = 30000;
+  /**
+   * How long a file may go without progress, including the wait for a worker, before it is
+   * cancelled and left for the next drain; the socket read timeout when it is longer.
+   */
+  static final long STALL_TIMEOUT_MILLIS = 60000;
+  /** The log is never rewritten while smaller than this. */
+  static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+  private static final byte RECORD_QUEUED = 1;
+  private static final byte RECORD_DONE = 2;
+  private static final int DONE_RECORD_LENGTH = 1 + 8;
+
+  private final File file;
+  private final MessageConnectionPool connectionPool;
+  private final TransferScheduler scheduler;
+  private final ContentResolver contentResolver;
+  private final CustomDefinedCallback onUpdate;
+  private final CustomDefinedCallback onProgress;
+  private final ExecutorService drainer = Executors.newSingleThreadExecutor();
+  private final ExecutorService peers = Executors.newCachedThreadPool();
+  private Map<Long, Item> pending;
+  private long nextId = 1;
+  private long pendingBytes;
+  private long logBytes;
+  private volatile long maxBytes = DEFAULT_MAX_BYTES;
+  private boolean draining;
+  private Drain nextDrain;
+
+  /**
+   * @param onUpdate gets a bundle with the {@code id}, {@code kind}, {@code address} and {@code
+   *     status} of every item that left the queue
+   * @param onProgress gets the progress of queued files being sent, see {@link TransferProgress}
+   */
+  public Outbox(
+      File file,
+      MessageConnectionPool connectionPool,
+      TransferScheduler scheduler,
+      ContentResolver contentResolver,
+      CustomDefinedCallback onUpdate,
+      CustomDefinedCallback onProgress) {
+    this.file = file;
+    this.connectionPool = connectionPool;
+    this.scheduler = scheduler;
+    this.contentResolver = contentResolver;
+    this.onUpdate = onUpdate;
+    this.onProgress = onProgress;
+  }
+
+  /** Bytes the pending items may take up on disk; queueing beyond it fails. */
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Queues a message or the URI of a file and returns its id once it is on disk.
+   *
+   * @param address the peer, {@code null} for whichever peer owns the group when it is delivered
+   * @param relay see {@link SocketOptions#viaRelay}, {@code null} to connect directly or {@link
+   *     #RELAY_GROUP_OWNER}
+   */
+  public synchronized long queue(
+      byte kind, String content, String address, int port, String relay, long ttlMillis)
+      throws IOException {
+    load();
+    expire();
+    Item item =
+        new Item(
+            nextId,
+            System.currentTimeMillis() + ttlMillis,
+            kind,
+            address != null ? address : "",
+            port,
+            relay != null ? relay : "",
+            content);
+    byte[] record = item.toRecord();
+    if (pendingBytes + record.length > maxBytes) {
+      throw new IOException("Outbox is full: " + pendingBytes + " of " + maxBytes + " bytes used");
+    }
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write(record);
+      out.getFD().sync();
+    }
+    nextId++;
+    pending.put(item.id, item);
+    pendingBytes += record.length;
+    logBytes += record.length;
+    return item.id;
+  }
+
+  /** Takes an item off the queue; an item being delivered may still arrive. */
+  public synchronized boolean remove(long id) {
+    load();
+    Item item = pending.get(id);
+    if (item == null) {
+      return false;
+    }
+    done(item);
+    return true;
+  }
+
+  /** The pending items as bundles with their {@code id}, {@code kind} and {@code expiresAt}. */
+  public synchronized List<Bundle> list() {
+    load();
+    expire();
+    List<Bundle> items = new ArrayList<>();
+    for (Item item : pending.values()) {
+      Bundle bundle = item.toBundle(item.address.isEmpty() ? null : item.address);
+      bundle.putLong("expiresAt", item.expiresAt);
+      bundle.putString(item.kind == KIND_FILE ? "file" : "message", item.content);
+      items.add(bundle);
+    }
+    return items;
+  }
+
+  /**
+   * Delivers the pending items in the background. Called while a drain is running, another one
+   * follows it, so items queued in the meantime are not left waiting for the next group.
+   *
+   * @param groupOwner the address items without one go to, {@code null} when this device owns the
+   *     group: those items then stay queued for a group it joins as a client
+   * @param messageOptions socket options of messages, {@code fileOptions} those of files
+   */
+  public void drain(String groupOwner, SocketOptions messageOptions, SocketOptions fileOptions) {
+    synchronized (this) {
+      nextDrain = new Drain(groupOwner, messageOptions, fileOptions);
+      if (draining) {
+        return;
+      }
+      draining = true;
+    }
+    drainer.execute(
+        () -> {
+          while (true) {
+            Drain drain;
+            synchronized (this) {
+              drain = nextDrain;
+              nextDrain = null;
+              if (drain == null) {
+                draining = false;
+                return;
+              }
+            }
+            try {
+              drain.run();
+            } catch (RuntimeException e) {
+              Log.e(TAG, "Outbox: " + e.getMessage());
+            }
+          }
+        });
+  }
+
+  /** The pending items by the peer they go to, in the order they were queued. */
+  private synchronized Map<String, List<Item>> pendingByPeer(String groupOwner) {
+    load();
+    expire();
+    Map<String, List<Item>> byPeer = new LinkedHashMap<>();
+    for (Item item : pending.values()) {
+      if (item.address.isEmpty() && groupOwner == null) {
+        continue;
+      }
+      String peer = item.address.isEmpty() ? groupOwner : item.address;
+      List<Item> items = byPeer.get(peer);
+      if (items == null) {
+        items = new ArrayList<>();
+        byPeer.put(peer, items);
+      }
+      items.add(item);
+    }
+    return byPeer;
+  }
+
+  private synchronized void delivered(Item item, String address) {
+    if (pending.get(item.id) == item) {
+      done(item);
+      onUpdate.invoke(status(item, address, STATUS_DELIVERED));
+    }
+  }
+
+  private void expire() {
+    long now = System.currentTimeMillis();
+    for (Item item : new ArrayList<>(pending.values())) {
+      if (item.expiresAt <= now) {
+        Log.i(TAG, "Outbox: item " + item.id + " expired");
+        done(item);
+        onUpdate.invoke(status(item, item.address.isEmpty() ? null : item.address, STATUS_EXPIRED));
+      }
+    }
+  }
+
+  private static Bundle status(Item item, String address, String status) {
+    Bundle bundle = item.toBundle(address);
+    bundle.putString("status", status);
+    return bundle;
+  }
+
+  private void done(Item item) {
+    pending.remove(item.id);
+    pendingBytes -= item.recordLength;
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+      out.writeByte(RECORD_DONE);
+      out.writeLong(item.id);
+      logBytes += DONE_RECORD_LENGTH;
+    } catch (IOException e) {
+      Log.e(TAG, "Could not update the outbox: " + e.getMessage());
+    }
+    if (logBytes > MIN_COMPACT_BYTES && logBytes > 2 * pendingBytes) {
+      compact();
+    }
+  }
+
+  private void load() {
+    if (pending != null) {
+      return;
+    }
+    pending = new LinkedHashMap<>();
+    if (!file.exists()) {
+      return;
+    }
+    long read = 0;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        byte type = in.readByte();
+        if (type == RECORD_QUEUED) {
+          Item item = Item.read(in);
+          pending.put(item.id, item);
+          pendingBytes += item.recordLength;
+          nextId = Math.max(nextId, item.id + 1);
+          read += item.recordLength;
+        } else if (type == RECORD_DONE) {
+          Item item = pending.remove(in.readLong());
+          if (item != null) {
+            pendingBytes -= item.recordLength;
+          }
+          read += DONE_RECORD_LENGTH;
+        } else {
+          throw new IOException("Unknown outbox record " + type);
+        }
+      }
+    } catch (EOFException e) {
+      // The end of the log, or a record cut short by a crash.
+    } catch (IOException e) {
+      Log.e(TAG, "Could not read the outbox: " + e.getMessage());
+    }
+    logBytes = file.length();
+    if (read < logBytes || logBytes > 2 * pendingBytes) {
+      compact();
+    }
+  }
+
+  private void compact() {
+    File temp = new File(file.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temp)) {
+      for (Item item : pending.values()) {
+        out.write(item.toRecord());
+      }
+      out.getFD().sync();
+    } catch (IOException e) {
+      Log.e(TAG, "Could not compact the outbox: " + e.getMessage());
+      temp.delete();
+      return;
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      return;
+    }
+    logBytes = pendingBytes;
+  }
+
+  /** One delivery of the pending items, every peer on its own thread. */
+  private class Drain {
+    final String groupOwner;
+    final SocketOptions messageOptions;
+    final SocketOptions fileOptions;
+
+    Drain(String groupOwner, SocketOptions messageOptions, SocketOptions fileOptions) {
+      this.groupOwner = groupOwner;
+      this.messageOptions = messageOptions;
+      this.fileOptions = fileOptions;
+    }
+
+    void run() {
+      List<Future<?>> results = new ArrayList<>();
+      for (final Map.Entry<String, List<Item>> peer : pendingByPeer(groupOwner).entrySet()) {
+        results.add(peers.submit(() -> deliver(peer.getKey(), peer.getValue())));
+      }
+      for (Future<?> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          Log.e(TAG, "Outbox: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+
+    /** Delivers the items of a peer in order, up to the first that fails. */
+    private void deliver(String address, List<Item> items) {
+      int i = 0;
+      while (i < items.size()) {
+        if (items.get(i).kind == KIND_FILE) {
+          if (!sendFile(address, items.get(i))) {
+            return;
+          }
+          i++;
+          continue;
+        }
+        int end = i;
+        while (end < items.size()
+            && end - i < BATCH_SIZE
+            && items.get(end).kind == KIND_MESSAGE
+            && items.get(end).port == items.get(i).port
+            && items.get(end).relay.equals(items.get(i).relay)) {
+          end++;
+        }
+        if (!sendMessages(address, items.subList(i, end))) {
+          return;
+        }
+        i = end;
+      }
+    }
+
+    /**
+     * Sends the messages as a batch: they are held back until the last one, which flushes them all
+     * in one go. True when every one got acked.
+     */
+    private boolean sendMessages(final String address, List<Item> batch) {
+      final CountDownLatch acked = new CountDownLatch(batch.size());
+      final boolean[] failed = new boolean[1];
+      for (final Item item : batch) {
+        connectionPool.send(
+            address,
+            item.port,
+            item.content,
+            item != batch.get(batch.size() - 1) ? FlushPolicy.DEFAULT : null,
+            Compressor.LEVEL_NONE,
+            options(item, messageOptions),
+            new ResultReceiver(null) {
+              @Override
+              protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (resultCode == 0) {
+                  delivered(item, address);
+                } else {
+                  failed[0] = true;
+                  Log.i(TAG, "Outbox: " + address + ": " + resultData.getString("error"));
+                }
+                acked.countDown();
+              }
+            });
+      }
+      return await(acked, BATCH_TIMEOUT_MILLIS) && !failed[0];
+    }
+
+    private boolean sendFile(final String address, final Item item) {
+      final CountDownLatch sent = new CountDownLatch(1);
+      final boolean[] failed = new boolean[1];
+      final AtomicLong lastProgress = new AtomicLong(System.nanoTime());
+      String key = "outbox-" + item.id;
+      SocketOptions socketOptions = options(item, fileOptions);
+      scheduler.submit(
+          new FileSendTransfer(
+              key,
+              contentResolver,
+              item.content,
+              address,
+              item.port,
+              1,
+              FileHeader.DEFAULT_CHUNK_SIZE,
+              Compressor.LEVEL_NONE,
+              0,
+              // Resumes where the previous attempt stopped.
+              key,
+              null,
+              false,
+              socketOptions,
+              new ResultReceiver(null) {
+                @Override
+                protected void onReceiveResult(int resultCode, Bundle resultData) {
+                  if (resultCode == TransferProgress.RESULT_PROGRESS) {
+                    lastProgress.set(System.nanoTime());
+                    onProgress.invoke(resultData);
+                    return;
+                  }
+                  if (resultCode == 0) {
+                    delivered(item, address);
+                  } else {
+                    failed[0] = true;
+                    Log.i(TAG, "Outbox: " + address + ": " + resultData.getString("error"));
+                  }
+                  sent.countDown();
+                }
+              }));
+      long stallNanos =
+          TimeUnit.MILLISECONDS.toNanos(
+              Math.max(STALL_TIMEOUT_MILLIS, socketOptions.readTimeoutMillis));
+      while (!await(sent, TimeUnit.NANOSECONDS.toMillis(stallNanos) / 4)) {
+        if (Thread.currentThread().isInterrupted()) {
+          scheduler.cancel(key);
+          return false;
+        }
+        if (System.nanoTime() - lastProgress.get() >= stallNanos) {
+          Log.i(TAG, "Outbox: " + address + ": no progress, giving up for now");
+          scheduler.cancel(key);
+          // A cancelled transfer reports right away; don't count on it.
+          await(sent, BATCH_TIMEOUT_MILLIS);
+          return false;
+        }
+      }
+      return !failed[0];
+    }
+
+    private SocketOptions options(Item item, SocketOptions base) {
+      if (item.relay.isEmpty() || (item.relay.equals(RELAY_GROUP_OWNER) && groupOwner == null)) {
+        // Nothing to relay through when this device is the group owner.
+        return base;
+      }
+      String relay = item.relay.equals(RELAY_GROUP_OWNER) ? groupOwner : item.relay;
+      return base.viaRelay(relay, item.port);
+    }
+
+    private boolean await(CountDownLatch latch, long timeoutMillis) {
+      try {
+        return latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+
+  private static class Item {
+    final long id;
+    final long expiresAt;
+    final byte kind;
+    /** Empty for the group owner. */
+    final String address;
+
+    final int port;
+    /** Empty to connect directly. */
+    final String relay;
+
+    /** The message, or the URI of the file. */
+    final String content;
+
+    final int recordLength;
+
+    Item(
+        long id,
+        long expiresAt,
+        byte kind,
+        String address,
+        int port,
+        String relay,
+        String content) {
+      this.id = id;
+      this.expiresAt = expiresAt;
+      this.kind = kind;
+      this.address = address;
+      this.port = port;
+      this.relay = relay;
+      this.content = content;
+      this.recordLength = toRecord().length;
+    }
+
+    static Item read(DataInputStream in) throws IOException {
+      long id = in.readLong();
+      long expiresAt = in.readLong();
+      byte kind = in.readByte();
+      String address = in.readUTF();
+      int port = in.readInt();
+      String relay = in.readUTF();
+      byte[] content = new byte[in.readInt()];
+      in.readFully(content);
+      return new Item(
+          id,
+          expiresAt,
+          kind,
+          address,
+          port,
+          relay,
+          new String(content, Charset.forName(Utils.CHARSET)));
+    }
+
+    byte[] toRecord() {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+        byte[] content = this.content.getBytes(Charset.forName(Utils.CHARSET));
+        out.writeByte(RECORD_QUEUED);
+        out.writeLong(id);
+        out.writeLong(expiresAt);
+        out.writeByte(kind);
+        out.writeUTF(address);
+        out.writeInt(port);
+        out.writeUTF(relay);
+        out.writeInt(content.length);
+        out.write(content);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return bytes.toByteArray();
+    }
+
+    Bundle toBundle(String address) {
+      Bundle bundle = new Bundle();
+      bundle.putLong("id", id);
+      bundle.putString("kind", kind == KIND_FILE ? "file" : "message");
+      bundle.putString("address", address);
+      return bundle;
+    }
+  }
+}
@@ -0,0 +1,553 @@
+package io.wifi.p2p;
+
+import static io.wifi.p2p.Utils.CHARSET;
+
+import android.os.Bundle;
+import android.os.ResultReceiver;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-lived framed connection to a single peer. Messages are written in order on a dedicated
+ * thread and reported to their {@link ResultReceiver} once the peer acknowledges them. The socket
+ * is reopened transparently when the peer closed it.
+ *
+ * <p>Text and binary messages share the connection; binary payloads are written as they are,
+ * without going through a {@link String}.
+ *
+ * <p>Messages sent with a {@link FlushPolicy} are coalesced: their frames stay in the output
+ * buffer until the policy says to flush, so a burst of small messages costs one write instead of
+ * one per message. Each message is still acknowledged and reported on its own.
+ *
+ * <p>Messages sent with a compression level are deflated on the writer thread when that makes
+ * them at least 10% smaller, see {@link Compressor}.
+ *
+ * <p>Remote calls travel as request frames on the same connection. The peer acks a request when it
+ * reads it and answers with a response frame carrying the same id, so any number of calls can be
+ * in flight and replies may come back in any order. A call that was acked is never sent again: the
+ * peer may have run it already.
+ *
+ * <p>A {@link #ping} opens the connection ahead of the first message and checks that the peer
+ * answers on it.
+ */
+public class PeerConnection {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // Smaller messages hardly shrink, and fit in a packet anyway.
+  private static final int MIN_COMPRESSED_SIZE = 512;
+  private static final String TAG = "RNWiFiP2P";
+  /** Error code of a call that got no reply in time. */
+  public static final String CODE_TIMEOUT = "TIMEOUT";
+  /** Error code of a call the peer answered with an error. */
+  public static final String CODE_REMOTE_ERROR = "REMOTE_ERROR";
+  // Call and ping deadlines: a writer blocked in a connect or write must not hold them up.
+  private static final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "RNWiFiP2P-timeouts");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final String host;
+  private final int port;
+  private final SocketOptions options;
+  private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+  private final Map<Integer, PendingMessage> pending = new ConcurrentHashMap<>();
+  private final AtomicInteger nextId = new AtomicInteger();
+  // Written under the lock, read without it by close().
+  private volatile Socket socket;
+  private volatile Socket connecting;
+  private DataOutputStream out;
+  // Frames written since the last flush.
+  private int bufferedCount;
+  private long bufferedBytes;
+  private long flushDeadline = Long.MAX_VALUE;
+  private Compressor compressor;
+
+  /**
+   * @param options applied to every socket the connection opens; a read timeout bounds the wait
+   *     for an ack while messages are pending, an idle connection or one waiting for the reply to
+   *     an acked call stays open
+   */
+  public PeerConnection(String host, int port, SocketOptions options) {
+    this.host = host;
+    this.port = port;
+    this.options = options;
+  }
+
+  /**
+   * @param policy how long the message may be held back, {@code null} to flush it right away
+   * @param compressionLevel deflate level, {@link Compressor#LEVEL_NONE} to send it as is
+   */
+  public void send(
+      String message, FlushPolicy policy, int compressionLevel, ResultReceiver receiver) {
+    enqueue(
+        new PendingMessage(
+            Protocol.FRAME_TEXT,
+            message.getBytes(Charset.forName(CHARSET)),
+            message,
+            policy,
+            compressionLevel,
+            receiver));
+  }
+
+  public void sendBinary(
+      byte[] payload, FlushPolicy policy, int compressionLevel, ResultReceiver receiver) {
+    enqueue(
+        new PendingMessage(
+            Protocol.FRAME_BINARY, payload, null, policy, compressionLevel, receiver));
+  }
+
+  /**
+   * Calls {@code method} on the peer. The receiver gets the peer's reply as {@code result}, or
+   * fails with {@link #CODE_REMOTE_ERROR} when the peer answered with an error and {@link
+   * #CODE_TIMEOUT} when no reply came within {@code timeoutMillis}.
+   */
+  public void call(
+      String method,
+      String argument,
+      long timeoutMillis,
+      int compressionLevel,
+      ResultReceiver receiver) {
+    final PendingMessage call =
+        new PendingMessage(
+            Protocol.FRAME_REQUEST,
+            Protocol.requestPayload(method, argument),
+            null,
+            null,
+            compressionLevel,
+            receiver);
+    enqueue(call);
+    expire(call, timeoutMillis, "No reply to " + method + " within " + timeoutMillis + " ms");
+  }
+
+  /**
+   * Opens the connection unless it is open already and checks that the peer answers on it. The
+   * receiver gets the {@code time} until the peer answered, or fails with {@link
+   * #CODE_TIMEOUT}. A socket the peer closed in the meantime is replaced on the way. A ping that
+   * fails is tried again up to {@code attempts} times, {@code retryDelayMillis} apart, e.g. while
+   * the peer is still starting its server.
+   */
+  public void ping(
+      final long timeoutMillis,
+      final int attempts,
+      final long retryDelayMillis,
+      final ResultReceiver receiver) {
+    ResultReceiver retrying =
+        attempts <= 1
+            ? receiver
+            : new ResultReceiver(null) {
+              @Override
+              protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (resultCode == 0 || writer.isShutdown()) {
+                  receiver.send(resultCode, resultData);
+                  return;
+                }
+                timer.schedule(
+                    () -> {
+                      if (writer.isShutdown()) {
+                        receiver.send(resultCode, resultData);
+                      } else {
+                        ping(timeoutMillis, attempts - 1, retryDelayMillis, receiver);
+                      }
+                    },
+                    retryDelayMillis,
+                    TimeUnit.MILLISECONDS);
+              }
+            };
+    PendingMessage ping =
+        new PendingMessage(
+            Protocol.FRAME_PING, new byte[0], null, null, Compressor.LEVEL_NONE, retrying);
+    enqueue(ping);
+    expire(ping, timeoutMillis, "No answer from " + host + " within " + timeoutMillis + " ms");
+  }
+
+  /**
+   * Fails {@code message} with {@link #CODE_TIMEOUT} unless it is settled within the timeout. Runs
+   * on the shared timer and never takes the connection's lock.
+   */
+  private void expire(final PendingMessage message, long timeoutMillis, final String error) {
+    timer.schedule(
+        () -> {
+          pending.remove(message.id, message);
+          message.fail(CODE_TIMEOUT, error);
+        },
+        timeoutMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void enqueue(final PendingMessage message) {
+    writer.execute(() -> write(message));
+  }
+
+  /**
+   * Closes the connection and fails the messages waiting on it. A connect or write blocked on a
+   * stalled peer holds the lock, so its socket is closed first, without the lock, to unblock it.
+   */
+  public void close() {
+    writer.shutdown();
+    closeSocket(connecting);
+    closeSocket(socket);
+    synchronized (this) {
+      closeSocket();
+      if (compressor != null) {
+        compressor.end();
+        compressor = null;
+      }
+    }
+  }
+
+  private synchronized void write(PendingMessage message) {
+    if (message.isSettled()) {
+      // A call that timed out while waiting for a retry.
+      return;
+    }
+    // Cleared first: a retry that can't reopen the connection must not wait on the lost socket.
+    message.socket = null;
+    try {
+      message.freshSocket = socket == null;
+      if (socket == null) {
+        open();
+      }
+      message.socket = socket;
+      int id = nextId.incrementAndGet();
+      message.id = id;
+      pending.put(id, message);
+      if (message.wirePayload == null) {
+        encode(message);
+      }
+      Protocol.writeFrame(out, message.wireType, id, message.wirePayload);
+      bufferedCount++;
+      bufferedBytes += Protocol.FRAME_HEADER_LENGTH + message.wirePayload.length + 4;
+      FlushPolicy policy = message.policy;
+      if (policy == null
+          || bufferedCount >= policy.maxCount
+          || bufferedBytes >= policy.maxBytes
+          || policy.maxDelayMillis <= 0) {
+        flush();
+      } else {
+        scheduleFlush(policy.maxDelayMillis);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, e.getMessage());
+      connectionLost(socket);
+      if (message.socket == null) {
+        message.fail(e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Picks what goes on the wire for {@code message}, deflating it when asked and worth it. Frames
+   * always carry a checksum, the server nacks the ones that arrive corrupt.
+   */
+  private void encode(PendingMessage message) {
+    message.wireType = (byte) (message.type | Protocol.FRAME_CHECKSUM);
+    message.wirePayload = message.payload;
+    int length = message.payload.length;
+    if (message.compressionLevel == Compressor.LEVEL_NONE || length < MIN_COMPRESSED_SIZE) {
+      return;
+    }
+    if (compressor == null) {
+      compressor = new Compressor(message.compressionLevel, false);
+    }
+    compressor.setLevel(message.compressionLevel);
+    int compressed = compressor.compress(message.payload, 0, length);
+    if (compressed < 0) {
+      return;
+    }
+    ByteBuffer payload = ByteBuffer.allocate(4 + compressed);
+    payload.putInt(length).put(compressor.output(), 0, compressed);
+    message.wireType = (byte) (message.type | Protocol.FRAME_CHECKSUM | Protocol.FRAME_DEFLATED);
+    message.wirePayload = payload.array();
+  }
+
+  private void flush() throws IOException {
+    out.flush();
+    bufferedCount = 0;
+    bufferedBytes = 0;
+    flushDeadline = Long.MAX_VALUE;
+  }
+
+  /** Makes sure the buffered frames are flushed within {@code delayMillis}. */
+  private void scheduleFlush(long delayMillis) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+    if (deadline >= flushDeadline) {
+      return;
+    }
+    flushDeadline = deadline;
+    writer.schedule(this::flushIfDue, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void flushIfDue() {
+    if (bufferedCount == 0 || System.nanoTime() < flushDeadline) {
+      // Flushed already, or superseded by an earlier deadline that did.
+      return;
+    }
+    try {
+      flush();
+    } catch (IOException e) {
+      Log.e(TAG, e.getMessage());
+      connectionLost(socket);
+    }
+  }
+
+  private void open() throws IOException {
+    Socket candidate = new Socket();
+    connecting = candidate;
+    try {
+      if (writer.isShutdown()) {
+        throw new IOException("Connection to " + host + " closed");
+      }
+      Log.i(TAG, "Opening pooled socket to " + host + ":" + port);
+      options.apply(candidate);
+      candidate.bind(null);
+      options.connect(candidate, host, port);
+      DataOutputStream stream =
+          new DataOutputStream(new BufferedOutputStream(candidate.getOutputStream(), BUFFER_SIZE));
+      Protocol.writePreamble(stream, Protocol.CHANNEL_MESSAGE);
+      out = stream;
+      socket = candidate;
+    } catch (IOException e) {
+      candidate.close();
+      throw e;
+    } finally {
+      connecting = null;
+    }
+
+    final Socket opened = candidate;
+    final DataInputStream in =
+        new DataInputStream(new BufferedInputStream(candidate.getInputStream()));
+    new Thread(() -> readAcks(opened, in), "RNWiFiP2P-ack-" + host).start();
+  }
+
+  private void readAcks(Socket from, DataInputStream in) {
+    try {
+      while (true) {
+        int type;
+        try {
+          type = in.read();
+        } catch (SocketTimeoutException e) {
+          if (!awaitingAck(from)) {
+            // Idle, or only waiting for replies and pongs, which have deadlines of their own.
+            continue;
+          }
+          throw e;
+        }
+        if (type == -1) {
+          break;
+        }
+        // Only tolerated between frames: a timeout inside one would leave the stream out of sync.
+        Frame frame = Protocol.readFrame(in, type);
+        if (frame.type == Protocol.FRAME_ACK) {
+          PendingMessage message = pending.get(frame.id);
+          if (message != null && message.type == Protocol.FRAME_REQUEST) {
+            // Delivered; the call completes with its response.
+            message.acked = true;
+          } else if (message != null && pending.remove(frame.id, message)) {
+            message.complete();
+          }
+        } else if (frame.type == Protocol.FRAME_PONG) {
+          PendingMessage ping = pending.remove(frame.id);
+          if (ping != null) {
+            ping.complete();
+          }
+        } else if (frame.type == Protocol.FRAME_RESPONSE) {
+          PendingMessage call = pending.remove(frame.id);
+          if (call != null) {
+            call.reply(frame.payload);
+          }
+        } else if (frame.type == Protocol.FRAME_NACK) {
+          // The server drops the connection after a corrupt frame; resend on a new one.
+          PendingMessage message = pending.remove(frame.id);
+          connectionLost(from);
+          if (message != null) {
+            retry(message, "Message corrupted in transit");
+          }
+        }
+      }
+    } catch (IOException e) {
+      if (!from.isClosed()) {
+        Log.e(TAG, e.getMessage());
+      }
+    } finally {
+      connectionLost(from);
+    }
+  }
+
+  /** Whether a message written to {@code socket} still waits for its ack. */
+  private boolean awaitingAck(Socket socket) {
+    for (PendingMessage message : pending.values()) {
+      if (message.socket == socket && !message.acked && message.type != Protocol.FRAME_PING) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drops the given socket and settles the messages still waiting on it. A message written to a
+   * reused socket may have raced with the peer closing it, so it is retried once on a new socket.
+   */
+  private synchronized void connectionLost(Socket lost) {
+    if (lost == null) {
+      return;
+    }
+    if (socket == lost) {
+      closeSocket();
+    }
+    Iterator<Map.Entry<Integer, PendingMessage>> iterator = pending.entrySet().iterator();
+    while (iterator.hasNext()) {
+      final PendingMessage message = iterator.next().getValue();
+      if (message.socket != lost) {
+        continue;
+      }
+      iterator.remove();
+      if (message.acked) {
+        message.fail("Connection closed before the reply arrived");
+      } else if (!message.freshSocket) {
+        retry(message, "Connection closed before the message was acknowledged");
+      } else {
+        message.fail("Connection closed before the message was acknowledged");
+      }
+    }
+  }
+
+  /** Writes {@code message} again unless it was retried already, fails it with {@code error}. */
+  private void retry(final PendingMessage message, String error) {
+    if (!message.retried && !writer.isShutdown()) {
+      message.retried = true;
+      writer.execute(() -> write(message));
+    } else {
+      message.fail(error);
+    }
+  }
+
+  private void closeSocket() {
+    closeSocket(socket);
+    socket = null;
+    out = null;
+    bufferedCount = 0;
+    bufferedBytes = 0;
+    flushDeadline = Long.MAX_VALUE;
+  }
+
+  private static void closeSocket(Socket socket) {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        Log.e(TAG, e.getMessage());
+      }
+    }
+  }
+
+  private static class PendingMessage {
+    final byte type;
+    /** The text of a text message, {@code null} for a binary one. */
+    final String message;
+    final byte[] payload;
+    final FlushPolicy policy;
+    final int compressionLevel;
+    final ResultReceiver receiver;
+    final long start = System.currentTimeMillis();
+    // What goes on the wire, kept for a retry.
+    byte wireType;
+    byte[] wirePayload;
+    Socket socket;
+    boolean freshSocket;
+    boolean retried;
+    /** The id of the latest write. */
+    volatile int id;
+    /** Set once the peer acked a request, which then waits for its response. */
+    volatile boolean acked;
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    PendingMessage(
+        byte type,
+        byte[] payload,
+        String message,
+        FlushPolicy policy,
+        int compressionLevel,
+        ResultReceiver receiver) {
+      this.type = type;
+      this.payload = payload;
+      this.message = message;
+      this.policy = policy;
+      this.compressionLevel = compressionLevel;
+      this.receiver = receiver;
+    }
+
+    /** Whether the receiver got its result already; it gets exactly one. */
+    boolean isSettled() {
+      return settled.get();
+    }
+
+    void complete() {
+      if (!settled.compareAndSet(false, true)) {
+        return;
+      }
+      Bundle bundle = new Bundle();
+      bundle.putLong("time", System.currentTimeMillis() - start);
+      if (message != null) {
+        bundle.putString("message", message);
+      } else {
+        bundle.putInt("size", payload.length);
+      }
+      receiver.send(0, bundle);
+    }
+
+    /** Settles a call with the response {@code payload}, see {@link Protocol#responsePayload}. */
+    void reply(byte[] payload) {
+      if (payload.length == 0) {
+        fail("Invalid response");
+        return;
+      }
+      String text = new String(payload, 1, payload.length - 1, Charset.forName(CHARSET));
+      if (payload[0] != Protocol.REPLY_OK) {
+        fail(CODE_REMOTE_ERROR, text);
+        return;
+      }
+      if (!settled.compareAndSet(false, true)) {
+        return;
+      }
+      Bundle bundle = new Bundle();
+      bundle.putLong("time", System.currentTimeMillis() - start);
+      bundle.putString("result", text);
+      receiver.send(0, bundle);
+    }
+
+    void fail(String error) {
+      fail(null, error);
+    }
+
+    /** @param code reported as {@code code} when not {@code null} */
+    void fail(String code, String error) {
+      if (!settled.compareAndSet(false, true)) {
+        return;
+      }
+      Bundle bundle = new Bundle();
+      bundle.putString("error", error);
+      if (code != null) {
+        bundle.putString("code", code);
+      }
+      receiver.send(1, bundle);
+    }
+  }
+}
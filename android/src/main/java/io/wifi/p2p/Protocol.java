@@ -0,0 +1,265 @@
+package io.wifi.p2p;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Wire format shared by the native senders and servers.
+ *
+ * <p>A connection speaking this protocol starts with a preamble: {@link #MAGIC}, the protocol
+ * version and a channel byte. Connections without the preamble are treated as legacy raw streams,
+ * so peers running older versions of the library keep working.
+ *
+ * <p>On a message channel the preamble is followed by frames: a type byte, a sender assigned id,
+ * the payload length and the payload itself. The receiver answers every text and binary frame
+ * with an ack frame carrying the same id, or with a nack when the frame's checksum does not match.
+ * A request frame is acked the same way, and later answered by a response frame with its id.
+ *
+ * <p>On a file channel the preamble is followed by a {@link FileHeader} and the chunk records
+ * written by {@link FileSender}. A batch channel carries many files, see {@link FileBatchSender}.
+ *
+ * <p>A relay channel asks the peer to forward the connection to another one, see {@link
+ * RelayServer}.
+ *
+ * <p>Datagrams carry no preamble. Each starts with {@link #DATAGRAM_MAGIC}, a {@link #FRAME_TEXT}
+ * or {@link #FRAME_BINARY} type byte, the sender's stream id and the sequence number of the
+ * datagram in that stream, see {@link DatagramSender}.
+ */
+public class Protocol {
+  public static final int DEFAULT_PORT = 8988;
+  public static final byte VERSION = 1;
+
+  public static final byte CHANNEL_LEGACY = 0;
+  public static final byte CHANNEL_MESSAGE = 1;
+  public static final byte CHANNEL_FILE = 2;
+  public static final byte CHANNEL_BATCH = 3;
+  /** Followed by the target to forward the connection to, see {@link #relayRequest}. */
+  public static final byte CHANNEL_RELAY = 4;
+  /**
+   * A connection forwarded by a relay, followed by the length and address of the peer it is from
+   * and then by what that peer sent, its own preamble first.
+   */
+  public static final byte CHANNEL_RELAYED = 5;
+
+  /** The relay's answer once connected to the target; it forwards everything after it. */
+  public static final byte RELAY_OK = 0;
+  /** The relay's answer when the target can't be reached; it closes the connection after it. */
+  public static final byte RELAY_FAILED = 1;
+
+  public static final byte FRAME_TEXT = 1;
+  public static final byte FRAME_ACK = 2;
+  public static final byte FRAME_BINARY = 3;
+  /** Answers a frame that failed its checksum; the receiver closes the connection after it. */
+  public static final byte FRAME_NACK = 4;
+  /** A remote call, see {@link #requestPayload}. */
+  public static final byte FRAME_REQUEST = 5;
+  /** The reply to a {@link #FRAME_REQUEST}: {@link #REPLY_OK} or {@link #REPLY_ERROR} and text. */
+  public static final byte FRAME_RESPONSE = 6;
+  /**
+   * Asks the receiver to answer with a {@link #FRAME_PONG} of the same id, to check a connection
+   * before it is needed. Older receivers ignore it.
+   */
+  public static final byte FRAME_PING = 7;
+
+  public static final byte FRAME_PONG = 8;
+  public static final byte REPLY_OK = 0;
+  public static final byte REPLY_ERROR = 1;
+  /**
+   * Flag on the type of a text or binary frame whose payload is the uncompressed length followed
+   * by the deflated bytes.
+   */
+  public static final byte FRAME_DEFLATED = (byte) 0x80;
+  /**
+   * Flag on the type of a frame whose payload ends with a CRC32 of everything before it in the
+   * frame, header included.
+   */
+  public static final byte FRAME_CHECKSUM = 0x40;
+
+  public static final byte DATAGRAM_MAGIC = (byte) 0xD6;
+  public static final int DATAGRAM_HEADER_LENGTH = 1 + 1 + 4 + 4;
+  /** The largest payload of a UDP datagram over IPv4 after the datagram header. */
+  public static final int MAX_DATAGRAM_PAYLOAD = 65507 - DATAGRAM_HEADER_LENGTH;
+
+  /** See {@link #parsePreamble}. */
+  public static final int PREAMBLE_INCOMPLETE = -1;
+
+  public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+  // 0xFE never occurs in UTF-8 text, so a legacy message can not be mistaken for a preamble.
+  static final byte[] MAGIC = {(byte) 0xFE, 'R', 'N', 'P'};
+  static final int PREAMBLE_LENGTH = MAGIC.length + 2;
+  static final int FRAME_HEADER_LENGTH = 9;
+
+  public static void writePreamble(DataOutputStream out, byte channel) throws IOException {
+    out.write(MAGIC);
+    out.writeByte(VERSION);
+    out.writeByte(channel);
+  }
+
+  /**
+   * The start of a {@link #CHANNEL_RELAY} connection: the preamble, the length and address of the
+   * target and its port.
+   */
+  public static byte[] relayRequest(String host, int port) {
+    byte[] address = host.getBytes(Charset.forName(Utils.CHARSET));
+    ByteBuffer request = ByteBuffer.allocate(PREAMBLE_LENGTH + 1 + address.length + 4);
+    request.put(MAGIC).put(VERSION).put(CHANNEL_RELAY);
+    request.put((byte) address.length).put(address).putInt(port);
+    return request.array();
+  }
+
+  /** The start of a {@link #CHANNEL_RELAYED} connection from {@code origin}. */
+  public static byte[] relayedPreamble(String origin) {
+    byte[] address = origin.getBytes(Charset.forName(Utils.CHARSET));
+    ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_LENGTH + 1 + address.length);
+    preamble.put(MAGIC).put(VERSION).put(CHANNEL_RELAYED);
+    preamble.put((byte) address.length).put(address);
+    return preamble.array();
+  }
+
+  public static void writeAck(DataOutputStream out, int id) throws IOException {
+    writeFrame(out, FRAME_ACK, id, new byte[0]);
+    out.flush();
+  }
+
+  /**
+   * Inspects the first bytes of a connection, read into {@code head} which is still in write mode.
+   * Returns the channel of a complete preamble, {@link #CHANNEL_LEGACY} as soon as the bytes can
+   * not be a preamble or the stream ended, or {@link #PREAMBLE_INCOMPLETE} when more bytes are
+   * needed. Once decided, {@code head} is flipped: it is empty after a preamble and holds the first
+   * bytes of the payload of a legacy stream, which have to be consumed before reading on.
+   */
+  public static int parsePreamble(ByteBuffer head, boolean eof) throws IOException {
+    int read = head.position();
+    for (int i = 0; i < Math.min(read, MAGIC.length); i++) {
+      if (head.get(i) != MAGIC[i]) {
+        head.flip();
+        return CHANNEL_LEGACY;
+      }
+    }
+    if (read < PREAMBLE_LENGTH) {
+      if (eof) {
+        head.flip();
+        return CHANNEL_LEGACY;
+      }
+      return PREAMBLE_INCOMPLETE;
+    }
+    if (head.get(MAGIC.length) != VERSION) {
+      throw new IOException("Unsupported protocol version " + head.get(MAGIC.length));
+    }
+    head.flip().position(PREAMBLE_LENGTH);
+    return head.get(MAGIC.length + 1);
+  }
+
+  public static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer) == -1) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  public static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  public static void writeFrame(DataOutputStream out, byte type, int id, byte[] payload)
+      throws IOException {
+    boolean checked = (type & FRAME_CHECKSUM) != 0;
+    byte[] header = frameHeader(type, id, payload.length + (checked ? 4 : 0));
+    out.write(header);
+    out.write(payload);
+    if (checked) {
+      CRC32 crc = new CRC32();
+      crc.update(header);
+      crc.update(payload);
+      out.writeInt((int) crc.getValue());
+    }
+  }
+
+  /** Returns the next frame, or {@code null} when the peer closed the connection between frames. */
+  public static Frame readFrame(DataInputStream in) throws IOException {
+    int type = in.read();
+    if (type == -1) {
+      return null;
+    }
+    return readFrame(in, type);
+  }
+
+  /** Reads the rest of a frame whose type byte was already read. */
+  public static Frame readFrame(DataInputStream in, int type) throws IOException {
+    int id = in.readInt();
+    int length = in.readInt();
+    if (length < 0 || length > MAX_FRAME_LENGTH) {
+      throw new IOException("Invalid frame length " + length);
+    }
+    if ((type & FRAME_CHECKSUM) == 0) {
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      return new Frame((byte) type, id, payload);
+    }
+    if (length < 4) {
+      throw new IOException("Invalid frame length " + length);
+    }
+    byte[] payload = new byte[length - 4];
+    in.readFully(payload);
+    CRC32 crc = new CRC32();
+    crc.update(frameHeader((byte) type, id, length));
+    crc.update(payload);
+    if (in.readInt() != (int) crc.getValue()) {
+      throw new IOException("Corrupt frame " + id);
+    }
+    return new Frame((byte) (type & ~FRAME_CHECKSUM), id, payload);
+  }
+
+  /**
+   * The payload of a request: the length of the method name as a short, the name and the
+   * argument, both UTF-8.
+   */
+  public static byte[] requestPayload(String method, String argument) {
+    byte[] name = method.getBytes(Charset.forName(Utils.CHARSET));
+    byte[] body = argument.getBytes(Charset.forName(Utils.CHARSET));
+    if (name.length > 0xFFFF) {
+      throw new IllegalArgumentException("Method name too long");
+    }
+    return ByteBuffer.allocate(2 + name.length + body.length)
+        .putShort((short) name.length)
+        .put(name)
+        .put(body)
+        .array();
+  }
+
+  /** The payload of a response: {@code status} followed by the UTF-8 {@code text}. */
+  public static byte[] responsePayload(byte status, String text) {
+    byte[] body = text.getBytes(Charset.forName(Utils.CHARSET));
+    return ByteBuffer.allocate(1 + body.length).put(status).put(body).array();
+  }
+
+  /** Encodes a whole frame, with its checksum when {@code type} asks for one. */
+  static ByteBuffer encodeFrame(byte type, int id, byte[] payload) {
+    boolean checked = (type & FRAME_CHECKSUM) != 0;
+    int length = payload.length + (checked ? 4 : 0);
+    ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + length);
+    frame.put(type).putInt(id).putInt(length).put(payload);
+    if (checked) {
+      CRC32 crc = new CRC32();
+      crc.update(frame.array(), 0, frame.position());
+      frame.putInt((int) crc.getValue());
+    }
+    frame.flip();
+    return frame;
+  }
+
+  private static byte[] frameHeader(byte type, int id, int length) {
+    return ByteBuffer.allocate(FRAME_HEADER_LENGTH).put(type).putInt(id).putInt(length).array();
+  }
+}
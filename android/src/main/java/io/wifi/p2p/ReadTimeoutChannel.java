@@ -0,0 +1,63 @@
+package io.wifi.p2p;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A blocking {@link SocketChannel} whose reads give up with a {@code SocketTimeoutException} after
+ * the socket's SO_TIMEOUT. {@code SocketChannel.read} ignores the timeout, the input stream of its
+ * socket does not, so reads go through the stream and writes straight to the channel.
+ */
+public class ReadTimeoutChannel implements ByteChannel {
+  final SocketChannel channel;
+  private final InputStream in;
+  private byte[] buffer;
+
+  public ReadTimeoutChannel(SocketChannel channel) {
+    this.channel = channel;
+    try {
+      this.in = channel.socket().getInputStream();
+    } catch (IOException e) {
+      // Only thrown for unconnected sockets.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (dst.hasArray()) {
+      int read = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+      if (read > 0) {
+        dst.position(dst.position() + read);
+      }
+      return read;
+    }
+    int length = Math.min(dst.remaining(), 64 * 1024);
+    if (buffer == null || buffer.length < length) {
+      buffer = new byte[length];
+    }
+    int read = in.read(buffer, 0, length);
+    if (read > 0) {
+      dst.put(buffer, 0, read);
+    }
+    return read;
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    return channel.write(src);
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,313 @@
+package io.wifi.p2p;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Forwards connections between peers that can't reach each other, typically two clients of a group
+ * that only reach the group owner. A peer connects on {@link Protocol#CHANNEL_RELAY} and names the
+ * target, see {@link SocketOptions#viaRelay}. The relay connects to the target on {@link
+ * Protocol#CHANNEL_RELAYED}, telling it which peer the connection is from, answers {@link
+ * Protocol#RELAY_OK} and from then on copies bytes both ways, so whatever the peer sends next (a
+ * file, a batch, pooled messages) reaches the target as if the peer had connected directly.
+ *
+ * <p>Bytes are forwarded on the {@link SelectorLoop} of the {@link ListenerRegistry} as they
+ * arrive, through one buffer per direction: a side that stops reading stops the other from being
+ * read, so nothing is held beyond those buffers and a relayed frame is one extra hop late, not one
+ * message. Only targets on the network the connection came in on are relayed.
+ */
+public class RelayServer {
+  private static final String TAG = "RNWiFiP2P";
+  /** Bytes held per direction of a relayed connection. */
+  static final int BUFFER_SIZE = 64 * 1024;
+  // Address length, address of at most 255 bytes, port.
+  private static final int MAX_REQUEST_LENGTH = 1 + 255 + 4;
+
+  private final ListenerRegistry listeners;
+  private final Map<Integer, ListenerRegistry.Handler> handlers = new HashMap<>();
+  // Only touched on the I/O thread.
+  private final Set<Relay> relays = new HashSet<>();
+  private volatile SocketOptions socketOptions = SocketOptions.MESSAGES;
+
+  public RelayServer(ListenerRegistry listeners) {
+    this.listeners = listeners;
+  }
+
+  /**
+   * Relays the connections that arrive on {@code port}, along with whatever else is received
+   * there. {@code socketOptions} are applied to both sides of the connections relayed from now on.
+   */
+  public synchronized void start(int port, SocketOptions socketOptions) throws IOException {
+    this.socketOptions = socketOptions;
+    if (handlers.containsKey(port)) {
+      return;
+    }
+    final SelectorLoop loop = listeners.loop();
+    ListenerRegistry.Handler handler = connection -> accept(loop, connection);
+    listeners.register(port, Protocol.CHANNEL_RELAY, handler);
+    handlers.put(port, handler);
+    Log.i(TAG, "Server: relaying on port " + port);
+  }
+
+  /** Stops relaying and closes the connections being relayed. */
+  public void stop() {
+    Map<Integer, ListenerRegistry.Handler> stopped;
+    synchronized (this) {
+      stopped = new HashMap<>(handlers);
+      handlers.clear();
+    }
+    // Outside the lock: closing a port waits for the I/O thread.
+    for (Map.Entry<Integer, ListenerRegistry.Handler> entry : stopped.entrySet()) {
+      listeners.unregister(entry.getKey(), Protocol.CHANNEL_RELAY, entry.getValue());
+    }
+    try {
+      listeners
+          .loop()
+          .execute(
+              () -> {
+                for (Relay relay : new ArrayList<>(relays)) {
+                  relay.close();
+                }
+              });
+    } catch (IOException e) {
+      Log.e(TAG, e.getMessage());
+    }
+  }
+
+  private void accept(SelectorLoop loop, ListenerRegistry.Connection connection) {
+    Relay relay = new Relay(loop, connection.channel, socketOptions);
+    if (connection.origin != null) {
+      Log.w(TAG, "Server: not relaying a relayed connection from " + connection.origin);
+      relay.close();
+      return;
+    }
+    relays.add(relay);
+    try {
+      relay.options.apply(connection.channel.socket());
+      relay.clientKey = loop.register(connection.channel, SelectionKey.OP_READ, relay);
+    } catch (IOException e) {
+      Log.e(TAG, e.getMessage());
+      relay.close();
+    }
+  }
+
+  /** Whether {@code target} is on the network of the interface {@code local} belongs to. */
+  static boolean onSameNetwork(InetAddress local, InetAddress target) throws IOException {
+    NetworkInterface networkInterface = NetworkInterface.getByInetAddress(local);
+    if (networkInterface == null) {
+      return false;
+    }
+    byte[] to = target.getAddress();
+    for (InterfaceAddress address : networkInterface.getInterfaceAddresses()) {
+      byte[] network = address.getAddress().getAddress();
+      if (network.length != to.length) {
+        continue;
+      }
+      int bits = address.getNetworkPrefixLength();
+      int i = 0;
+      for (; bits >= 8; bits -= 8, i++) {
+        if (network[i] != to[i]) {
+          break;
+        }
+      }
+      if (bits < 8 && (bits == 0 || ((network[i] ^ to[i]) & (0xFF00 >> bits)) == 0)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses a dotted IPv4 address, {@code null} for anything else: resolving a host name would block
+   * the I/O thread, and Wi-Fi Direct groups only use IPv4.
+   */
+  static InetAddress parseAddress(String host) {
+    String[] parts = host.split("\\.", -1);
+    if (parts.length != 4) {
+      return null;
+    }
+    byte[] address = new byte[4];
+    for (int i = 0; i < 4; i++) {
+      if (!parts[i].matches("[0-9]{1,3}")) {
+        return null;
+      }
+      int octet = Integer.parseInt(parts[i]);
+      if (octet > 255) {
+        return null;
+      }
+      address[i] = (byte) octet;
+    }
+    try {
+      return InetAddress.getByAddress(address);
+    } catch (UnknownHostException e) {
+      // Only thrown for an address of the wrong length
+      return null;
+    }
+  }
+
+  /** Both sides of a relayed connection. */
+  private class Relay implements SelectorLoop.Handler {
+    final SelectorLoop loop;
+    final SocketChannel client;
+    final SocketOptions options;
+    SelectionKey clientKey;
+    SocketChannel target;
+    SelectionKey targetKey;
+    ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+    // Written from, in fill mode.
+    ByteBuffer upstream;
+    ByteBuffer downstream;
+    boolean clientEof;
+    boolean targetEof;
+    boolean clientShut;
+    boolean targetShut;
+
+    Relay(SelectorLoop loop, SocketChannel client, SocketOptions options) {
+      this.loop = loop;
+      this.client = client;
+      this.options = options;
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+      try {
+        if (key == targetKey && upstream == null) {
+          connected();
+        } else if (request != null) {
+          // While connecting too, to notice the peer giving up.
+          readRequest();
+        } else {
+          forward();
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Server: relay closed: " + e.getMessage());
+        close();
+      }
+    }
+
+    private void readRequest() throws IOException {
+      if (client.read(request) == -1) {
+        throw new IOException("Closed before naming the target");
+      }
+      int read = request.position();
+      int length = read > 0 ? 1 + (request.get(0) & 0xFF) + 4 : MAX_REQUEST_LENGTH;
+      if (read < length) {
+        return;
+      }
+      if (read > length) {
+        throw new IOException("Data before the relay answered");
+      }
+      if (target != null) {
+        return;
+      }
+      String host = new String(request.array(), 1, length - 5, Charset.forName(Utils.CHARSET));
+      int port = request.getInt(length - 4);
+      InetAddress to = parseAddress(host);
+      if (to == null
+          || port <= 0
+          || port > 0xFFFF
+          || !onSameNetwork(client.socket().getLocalAddress(), to)) {
+        refuse("not relaying to " + host + ":" + port);
+        return;
+      }
+      InetSocketAddress address = new InetSocketAddress(to, port);
+
+      target = SocketChannel.open();
+      target.configureBlocking(false);
+      options.apply(target.socket());
+      targetKey = loop.register(target, 0, this);
+      if (target.connect(address)) {
+        connected();
+      } else {
+        targetKey.interestOps(SelectionKey.OP_CONNECT);
+      }
+    }
+
+    private void connected() throws IOException {
+      try {
+        target.finishConnect();
+      } catch (IOException e) {
+        refuse(e.getMessage());
+        return;
+      }
+      String origin = client.socket().getInetAddress().getHostAddress();
+      Log.i(TAG, "Server: relaying " + origin + " to " + target.socket().getRemoteSocketAddress());
+      request = null;
+      upstream = ByteBuffer.allocateDirect(BUFFER_SIZE).put(Protocol.relayedPreamble(origin));
+      downstream = ByteBuffer.allocateDirect(BUFFER_SIZE).put(Protocol.RELAY_OK);
+      forward();
+    }
+
+    /** Moves whatever can be moved without blocking and waits for what can't. */
+    private void forward() throws IOException {
+      if (!clientEof && upstream.hasRemaining() && client.read(upstream) == -1) {
+        clientEof = true;
+      }
+      if (!targetEof && downstream.hasRemaining() && target.read(downstream) == -1) {
+        targetEof = true;
+      }
+      write(upstream, target);
+      write(downstream, client);
+      if (clientEof && upstream.position() == 0 && !targetShut) {
+        target.socket().shutdownOutput();
+        targetShut = true;
+      }
+      if (targetEof && downstream.position() == 0 && !clientShut) {
+        client.socket().shutdownOutput();
+        clientShut = true;
+      }
+      if (clientShut && targetShut) {
+        close();
+        return;
+      }
+      clientKey.interestOps(interest(clientEof, upstream, downstream));
+      targetKey.interestOps(interest(targetEof, downstream, upstream));
+    }
+
+    private void write(ByteBuffer buffer, SocketChannel to) throws IOException {
+      if (buffer.position() > 0) {
+        buffer.flip();
+        to.write(buffer);
+        buffer.compact();
+      }
+    }
+
+    private int interest(boolean eof, ByteBuffer readInto, ByteBuffer writeFrom) {
+      return (!eof && readInto.hasRemaining() ? SelectionKey.OP_READ : 0)
+          | (writeFrom.position() > 0 ? SelectionKey.OP_WRITE : 0);
+    }
+
+    /** Tells the peer the target can't be reached, as far as the socket takes it, and closes. */
+    private void refuse(String reason) {
+      Log.w(TAG, "Server: " + reason);
+      try {
+        client.write(ByteBuffer.wrap(new byte[] {Protocol.RELAY_FAILED}));
+      } catch (IOException e) {
+        // Closed anyway
+      }
+      close();
+    }
+
+    void close() {
+      relays.remove(this);
+      loop.close(client);
+      if (target != null) {
+        loop.close(target);
+      }
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package io.wifi.p2p;
+
+import android.util.Log;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A single I/O thread multiplexing non-blocking channels over one {@link Selector}. Every
+ * registered channel carries a {@link Handler} as its attachment, which is called on the loop
+ * thread whenever the channel is ready. Work from other threads is passed in with {@link #execute}.
+ */
+public class SelectorLoop implements Runnable {
+  private static final String TAG = "RNWiFiP2P";
+
+  public interface Handler {
+    /** Called on the loop thread with the ready operations of {@code key}. */
+    void onReady(SelectionKey key) throws IOException;
+  }
+
+  private final Selector selector;
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final List<Runnable> afterSelect = new ArrayList<>();
+  private final Thread thread;
+
+  public SelectorLoop(String name) throws IOException {
+    this.selector = Selector.open();
+    this.thread = new Thread(this, name);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  public boolean inLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /** Runs {@code task} on the loop thread. */
+  public void execute(Runnable task) {
+    if (inLoop()) {
+      task.run();
+      return;
+    }
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /** Registers a non-blocking channel; must be called on the loop thread. */
+  public SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+      throws ClosedChannelException {
+    return channel.register(selector, ops, handler);
+  }
+
+  /**
+   * Closes a channel that may be registered. Its socket is only released once the selector flushed
+   * the cancelled key, so off the loop thread this waits until the loop did that; a port closed
+   * this way can be bound again right away. Must not be called while holding a lock the loop
+   * thread takes.
+   */
+  public void close(final SelectableChannel channel) {
+    if (inLoop()) {
+      closeQuietly(channel);
+      // Flushed at the end of the current iteration.
+      afterSelect.add(() -> {});
+      return;
+    }
+    FutureTask<Void> task =
+        new FutureTask<>(
+            () -> {
+              closeQuietly(channel);
+              selector.selectNow();
+              selector.selectedKeys().clear();
+              return null;
+            });
+    execute(task);
+    try {
+      task.get();
+    } catch (ExecutionException e) {
+      Log.e(TAG, String.valueOf(e.getCause().getMessage()));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Cancels {@code key} and runs {@code task} once the channel is fully deregistered, after which
+   * it may be switched back to blocking mode and handed to another thread.
+   */
+  public void release(SelectionKey key, Runnable task) {
+    key.cancel();
+    afterSelect.add(task);
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        for (Runnable task; (task = tasks.poll()) != null; ) {
+          task.run();
+        }
+        selector.select();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          dispatch(key);
+        }
+        if (!afterSelect.isEmpty()) {
+          // Flushes the cancelled keys. Selection is level-triggered, so whatever becomes ready
+          // here is selected again by the next select().
+          selector.selectNow();
+          selector.selectedKeys().clear();
+          List<Runnable> released = new ArrayList<>(afterSelect);
+          afterSelect.clear();
+          for (Runnable task : released) {
+            task.run();
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        Log.e(TAG, "Selector loop: " + e.getMessage());
+      }
+    }
+  }
+
+  private static void closeQuietly(SelectableChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Give up
+    }
+  }
+
+  private void dispatch(SelectionKey key) {
+    if (!key.isValid()) {
+      return;
+    }
+    try {
+      ((Handler) key.attachment()).onReady(key);
+    } catch (IOException | RuntimeException e) {
+      Log.e(TAG, String.valueOf(e.getMessage()));
+      key.cancel();
+      try {
+        key.channel().close();
+      } catch (IOException closeError) {
+        // Give up
+      }
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package io.wifi.p2p;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Options applied to the sockets of a send or receive call. Every field can be left {@link
+ * #UNSET}, in which case {@link #orElse} takes it from the defaults: the module defaults set from
+ * JS, then {@link #DEFAULT} or {@link #MESSAGES}. Unset buffer sizes, TCP_NODELAY, keepalive and
+ * traffic class keep the platform default.
+ *
+ * <p>Buffer sizes have to be set before the connection is made to affect the TCP window, so
+ * client sockets get them before connecting and listening sockets before binding; accepted
+ * sockets inherit the latter.
+ *
+ * <p>Client connections can be routed through a relay, see {@link #viaRelay}.
+ */
+public class SocketOptions {
+  public static final int UNSET = -1;
+  public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+  /** Leaves every option to the defaults. */
+  public static final SocketOptions NONE =
+      new SocketOptions(UNSET, UNSET, UNSET, UNSET, UNSET, UNSET, UNSET);
+  /** Platform defaults, with a 5 second connect timeout and no read timeout. */
+  public static final SocketOptions DEFAULT =
+      new SocketOptions(UNSET, UNSET, UNSET, UNSET, UNSET, DEFAULT_CONNECT_TIMEOUT_MILLIS, 0);
+  /** {@link #DEFAULT} without Nagle's algorithm, which holds back small frames waiting for acks. */
+  public static final SocketOptions MESSAGES =
+      new SocketOptions(UNSET, UNSET, 1, UNSET, UNSET, DEFAULT_CONNECT_TIMEOUT_MILLIS, 0);
+
+  public final int sendBufferSize;
+  public final int receiveBufferSize;
+  /** 1 to disable Nagle's algorithm, 0 to keep it. */
+  public final int tcpNoDelay;
+  /** 1 to send TCP keepalive probes on idle connections, 0 not to. */
+  public final int keepAlive;
+  /** IP_TOS byte, e.g. 0xb8 (expedited forwarding) for latency sensitive traffic. */
+  public final int trafficClass;
+  public final int connectTimeoutMillis;
+  /** How long a blocking read waits for data before the transfer fails, 0 for ever. */
+  public final int readTimeoutMillis;
+  /** The peer client connections are forwarded by, {@code null} to connect directly. */
+  public final String relayHost;
+
+  public final int relayPort;
+
+  public SocketOptions(
+      int sendBufferSize,
+      int receiveBufferSize,
+      int tcpNoDelay,
+      int keepAlive,
+      int trafficClass,
+      int connectTimeoutMillis,
+      int readTimeoutMillis) {
+    this(
+        sendBufferSize,
+        receiveBufferSize,
+        tcpNoDelay,
+        keepAlive,
+        trafficClass,
+        connectTimeoutMillis,
+        readTimeoutMillis,
+        null,
+        0);
+  }
+
+  private SocketOptions(
+      int sendBufferSize,
+      int receiveBufferSize,
+      int tcpNoDelay,
+      int keepAlive,
+      int trafficClass,
+      int connectTimeoutMillis,
+      int readTimeoutMillis,
+      String relayHost,
+      int relayPort) {
+    this.sendBufferSize = sendBufferSize;
+    this.receiveBufferSize = receiveBufferSize;
+    this.tcpNoDelay = tcpNoDelay;
+    this.keepAlive = keepAlive;
+    this.trafficClass = trafficClass;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.relayHost = relayHost;
+    this.relayPort = relayPort;
+  }
+
+  /**
+   * These options, with client connections going to the {@link RelayServer} on {@code host}
+   * instead, which forwards them to the peer they are meant for. Lets two clients of a group,
+   * which can only reach the group owner, talk to each other.
+   */
+  public SocketOptions viaRelay(String host, int port) {
+    return new SocketOptions(
+        sendBufferSize,
+        receiveBufferSize,
+        tcpNoDelay,
+        keepAlive,
+        trafficClass,
+        connectTimeoutMillis,
+        readTimeoutMillis,
+        host,
+        port);
+  }
+
+  /** These options, with the unset ones taken from {@code defaults}. */
+  public SocketOptions orElse(SocketOptions defaults) {
+    return new SocketOptions(
+        or(sendBufferSize, defaults.sendBufferSize),
+        or(receiveBufferSize, defaults.receiveBufferSize),
+        or(tcpNoDelay, defaults.tcpNoDelay),
+        or(keepAlive, defaults.keepAlive),
+        or(trafficClass, defaults.trafficClass),
+        or(connectTimeoutMillis, defaults.connectTimeoutMillis),
+        or(readTimeoutMillis, defaults.readTimeoutMillis),
+        relayHost != null ? relayHost : defaults.relayHost,
+        relayHost != null ? relayPort : defaults.relayPort);
+  }
+
+  private static int or(int value, int fallback) {
+    return value != UNSET ? value : fallback;
+  }
+
+  /** Applies the options to a client socket before it connects, or to an accepted one. */
+  public void apply(Socket socket) throws SocketException {
+    if (sendBufferSize > 0) {
+      socket.setSendBufferSize(sendBufferSize);
+    }
+    if (receiveBufferSize > 0) {
+      socket.setReceiveBufferSize(receiveBufferSize);
+    }
+    if (tcpNoDelay != UNSET) {
+      socket.setTcpNoDelay(tcpNoDelay == 1);
+    }
+    if (keepAlive != UNSET) {
+      socket.setKeepAlive(keepAlive == 1);
+    }
+    if (trafficClass != UNSET) {
+      socket.setTrafficClass(trafficClass);
+    }
+    if (readTimeoutMillis > 0) {
+      socket.setSoTimeout(readTimeoutMillis);
+    }
+  }
+
+  /**
+   * Connects a client socket, with the options applied already, to {@code host} or to the relay
+   * that forwards it there. Returns once the relay reached {@code host}.
+   */
+  public void connect(Socket socket, String host, int port) throws IOException {
+    if (relayHost == null) {
+      socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+      return;
+    }
+    socket.connect(new InetSocketAddress(relayHost, relayPort), connectTimeoutMillis);
+    socket.getOutputStream().write(Protocol.relayRequest(host, port));
+    // A single byte, so nothing the peer sends after it is read ahead.
+    InputStream in = socket.getInputStream();
+    int status = in.read();
+    if (status != Protocol.RELAY_OK) {
+      throw new IOException("Relay " + relayHost + " could not reach " + host + ":" + port);
+    }
+  }
+
+  /** Applies the receive buffer size to a listening socket before it binds. */
+  public void apply(ServerSocket socket) throws SocketException {
+    if (receiveBufferSize > 0) {
+      socket.setReceiveBufferSize(receiveBufferSize);
+    }
+  }
+
+  /**
+   * The channel to read and write a blocking connection through: {@code channel} itself, or a
+   * {@link ReadTimeoutChannel} when there is a read timeout, which {@code SocketChannel} ignores.
+   */
+  public ByteChannel wrap(SocketChannel channel) {
+    return readTimeoutMillis > 0 ? new ReadTimeoutChannel(channel) : channel;
+  }
+}
@@ -0,0 +1,177 @@
+package io.wifi.p2p;
+
+import android.util.Log;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A unit of work run by the {@link TransferScheduler}: sending or receiving a file, a batch or a
+ * message. Sockets opened by the transfer are registered with {@link #track} so that {@link
+ * #cancel} can abort blocking I/O by closing them.
+ */
+public abstract class Transfer {
+  /** Small control traffic such as messages, runs ahead of any queued bulk transfer. */
+  public static final int PRIORITY_CONTROL = 0;
+  /** File transfers. */
+  public static final int PRIORITY_BULK = 1;
+
+  public static final String CANCELLED = "Transfer cancelled";
+
+  protected static final String TAG = "RNWiFiP2P";
+
+  private final String id;
+  private final String peer;
+  private final int priority;
+  private final List<Closeable> resources = new ArrayList<>();
+  private volatile boolean cancelled;
+  private ConnectionQueue incoming;
+  private IOException listenError;
+
+  /**
+   * @param peer address of the remote device, {@code null} when the transfer is not bound to one
+   *     (e.g. waiting for an incoming connection); only transfers with a peer count against the
+   *     per-peer limit
+   */
+  protected Transfer(String id, String peer, int priority) {
+    this.id = id;
+    this.peer = peer;
+    this.priority = priority;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getPeer() {
+    return peer;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Opens the queue of connections a receiving transfer accepts, {@code null} for a transfer that
+   * does not wait for a peer. The scheduler calls it before the transfer takes a worker or a slot
+   * and only runs the transfer once a connection is waiting, see {@link #incoming}.
+   */
+  protected ConnectionQueue listen() throws IOException {
+    return null;
+  }
+
+  /** The tracked queue opened by {@link #listen}; throws what opening it threw. */
+  protected ConnectionQueue incoming() throws IOException {
+    if (listenError != null) {
+      throw listenError;
+    }
+    return incoming;
+  }
+
+  /** Performs the transfer and reports its result. */
+  protected abstract void transfer() throws IOException;
+
+  /**
+   * Reports a failed or cancelled transfer. Also called when {@link #transfer} threw after it
+   * reported its result.
+   */
+  protected abstract void fail(String error);
+
+  /**
+   * Opens the queue of {@link #listen} and calls {@code ready} once a connection arrived or the
+   * queue was closed. Returns false when the transfer can run right away, which includes a failure
+   * to listen: {@link #incoming} reports it when the transfer runs.
+   */
+  final boolean awaitConnection(Runnable ready) {
+    try {
+      ConnectionQueue queue = listen();
+      if (queue == null) {
+        return false;
+      }
+      incoming = track(queue);
+    } catch (IOException e) {
+      listenError = e;
+      return false;
+    }
+    incoming.whenReady(ready);
+    return true;
+  }
+
+  final void run() {
+    if (cancelled) {
+      fail(CANCELLED);
+      return;
+    }
+    try {
+      transfer();
+    } catch (IOException e) {
+      Log.e(TAG, cancelled ? CANCELLED : String.valueOf(e.getMessage()));
+      fail(cancelled ? CANCELLED : e.getMessage());
+    } catch (RuntimeException e) {
+      // E.g. a SecurityException from a content URI: the result must be reported all the same.
+      Log.e(TAG, "Transfer " + id + " failed", e);
+      fail(cancelled ? CANCELLED : String.valueOf(e.getMessage()));
+    } finally {
+      closeResources();
+    }
+  }
+
+  /** Marks the transfer as cancelled and closes its sockets, which unblocks any pending I/O. */
+  void cancel() {
+    cancelled = true;
+    closeResources();
+  }
+
+  /** Registers a resource that is closed when the transfer completes or is cancelled. */
+  protected <T extends Closeable> T track(T resource) throws IOException {
+    synchronized (resources) {
+      if (!cancelled) {
+        resources.add(resource);
+        return resource;
+      }
+    }
+    resource.close();
+    throw new IOException(CANCELLED);
+  }
+
+  /** Opens a tracked connection with {@code options} applied, see {@link SocketOptions#wrap}. */
+  protected ByteChannel connect(String host, int port, SocketOptions options) throws IOException {
+    Log.i(TAG, "Opening client socket - ");
+    SocketChannel channel = track(SocketChannel.open());
+    Socket socket = channel.socket();
+    options.apply(socket);
+    socket.bind(null);
+    options.connect(socket, host, port);
+    Log.i(TAG, "Client socket connected - " + socket.isConnected());
+    return options.wrap(channel);
+  }
+
+  /** Tracks an accepted connection and applies {@code options}, see {@link SocketOptions#wrap}. */
+  protected ByteChannel accept(ListenerRegistry.Connection connection, SocketOptions options)
+      throws IOException {
+    SocketChannel channel = track(connection.channel);
+    options.apply(channel.socket());
+    return options.wrap(channel);
+  }
+
+  private void closeResources() {
+    synchronized (resources) {
+      for (Closeable resource : resources) {
+        try {
+          resource.close();
+        } catch (IOException e) {
+          // Give up
+        }
+      }
+      resources.clear();
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package io.wifi.p2p;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * On-disk record of the chunks of an incoming transfer that already reached the destination file.
+ * It lives next to the destination until the transfer completes, so a sender reconnecting after
+ * the link dropped only has to send the chunks that are still missing.
+ *
+ * <p>Layout: transfer id, file size and chunk size followed by one bit per chunk.
+ */
+public class TransferJournal implements Closeable {
+  private static final String SUFFIX = ".p2p-journal";
+  private static final int HEADER_LENGTH = 8 + 8 + 4;
+
+  private final File path;
+  private final RandomAccessFile file;
+  private final byte[] bitmap;
+  private final long chunkCount;
+  private final boolean resumed;
+  private long completed;
+
+  private TransferJournal(File path, FileHeader header) throws IOException {
+    this.path = path;
+    this.chunkCount = header.chunkCount();
+    this.bitmap = new byte[(int) ((chunkCount + 7) / 8)];
+    this.file = new RandomAccessFile(path, "rw");
+    this.resumed = load(header);
+    if (!resumed) {
+      file.setLength(0);
+      file.writeLong(header.transferId);
+      file.writeLong(header.size);
+      file.writeInt(header.chunkSize);
+      file.write(bitmap);
+    }
+  }
+
+  /**
+   * Opens the journal of {@code destination}. An existing journal is only reused when it belongs
+   * to the same transfer and the partial file is still there, otherwise a fresh one is started.
+   */
+  public static TransferJournal open(File destination, FileHeader header) throws IOException {
+    File path = new File(destination.getPath() + SUFFIX);
+    if (!destination.exists() || destination.length() != header.size) {
+      path.delete();
+    }
+    return new TransferJournal(path, header);
+  }
+
+  /** Whether chunks from an earlier attempt were found. */
+  public boolean resumed() {
+    return resumed;
+  }
+
+  public synchronized boolean isComplete(long chunk) {
+    return (bitmap[(int) (chunk >>> 3)] & (1 << (chunk & 7))) != 0;
+  }
+
+  public synchronized void markComplete(long chunk) throws IOException {
+    if (isComplete(chunk)) {
+      return;
+    }
+    int index = (int) (chunk >>> 3);
+    bitmap[index] |= 1 << (chunk & 7);
+    completed++;
+    file.seek(HEADER_LENGTH + index);
+    file.write(bitmap[index]);
+  }
+
+  public synchronized boolean allComplete() {
+    return completed == chunkCount;
+  }
+
+  /** Copy of the chunk bitmap, bit {@code i} set when chunk {@code i} is present. */
+  public synchronized byte[] snapshot() {
+    return bitmap.clone();
+  }
+
+  /** Removes the journal once the transfer has completed. */
+  public void delete() throws IOException {
+    close();
+    path.delete();
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private boolean load(FileHeader header) throws IOException {
+    if (file.length() != HEADER_LENGTH + bitmap.length
+        || file.readLong() != header.transferId
+        || file.readLong() != header.size
+        || file.readInt() != header.chunkSize) {
+      return false;
+    }
+    file.readFully(bitmap);
+    for (long chunk = 0; chunk < chunkCount; chunk++) {
+      if (isComplete(chunk)) {
+        completed++;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,101 @@
+package io.wifi.p2p;
+
+import android.os.Bundle;
+import android.os.ResultReceiver;
+
+/**
+ * Tracks the bytes of one transfer and reports them at a bounded rate: at most every {@link
+ * #MIN_INTERVAL_NANOS} or every 1% of the total. The copy loops only call {@link #advance}, which
+ * updates primitive counters; a report {@link Bundle} is only built when one is due.
+ */
+public class TransferProgress {
+  /** Result code used to forward a report through a {@code ResultReceiver}. */
+  public static final int RESULT_PROGRESS = 2;
+  public static final String DIRECTION_SEND = "send";
+  public static final String DIRECTION_RECEIVE = "receive";
+
+  private static final long MIN_INTERVAL_NANOS = 100 * 1000 * 1000;
+
+  private final String transferId;
+  private final String direction;
+  private final CustomDefinedCallback callback;
+  private final long startNanos = System.nanoTime();
+  private long total = -1;
+  private long step = Long.MAX_VALUE;
+  private long transferred;
+  private long skipped;
+  private long lastReportNanos = startNanos;
+  private long lastReportBytes;
+  private double bytesPerSecond;
+
+  /**
+   * @param callback invoked with a report {@link Bundle}, on the thread that made the progress
+   */
+  public TransferProgress(String transferId, String direction, CustomDefinedCallback callback) {
+    this.transferId = transferId;
+    this.direction = direction;
+    this.callback = callback;
+  }
+
+  /** A callback forwarding reports to {@code receiver} with {@link #RESULT_PROGRESS}. */
+  public static CustomDefinedCallback forwardTo(final ResultReceiver receiver) {
+    return new CustomDefinedCallback() {
+      @Override
+      public void invoke(Object object) {
+        receiver.send(RESULT_PROGRESS, (Bundle) object);
+      }
+    };
+  }
+
+  /** Sets the total number of bytes, -1 when it is not known. */
+  public synchronized void setTotal(long total) {
+    this.total = total;
+    this.step = total > 0 ? Math.max(1, total / 100) : Long.MAX_VALUE;
+  }
+
+  /** Counts bytes that did not have to be transferred, e.g. chunks kept from an earlier attempt. */
+  public synchronized void skip(long bytes) {
+    transferred += bytes;
+    skipped += bytes;
+    lastReportBytes += bytes;
+  }
+
+  public synchronized void advance(long bytes) {
+    transferred += bytes;
+    long now = System.nanoTime();
+    if (now - lastReportNanos >= MIN_INTERVAL_NANOS || transferred - lastReportBytes >= step) {
+      report(now);
+    }
+  }
+
+  /** Sends the final report. */
+  public synchronized void finish() {
+    report(System.nanoTime());
+  }
+
+  private void report(long now) {
+    long elapsed = now - lastReportNanos;
+    if (elapsed > 0) {
+      bytesPerSecond = (transferred - lastReportBytes) * 1e9 / elapsed;
+    }
+    lastReportNanos = now;
+    lastReportBytes = transferred;
+
+    double averageBytesPerSecond =
+        now > startNanos ? (transferred - skipped) * 1e9 / (now - startNanos) : 0;
+    long eta =
+        total >= 0 && averageBytesPerSecond > 0
+            ? (long) ((total - transferred) * 1000 / averageBytesPerSecond)
+            : -1;
+
+    Bundle bundle = new Bundle();
+    bundle.putString("transferId", transferId);
+    bundle.putString("direction", direction);
+    bundle.putLong("bytesTransferred", transferred);
+    bundle.putLong("totalBytes", total);
+    bundle.putDouble("bytesPerSecond", bytesPerSecond);
+    bundle.putDouble("averageBytesPerSecond", averageBytesPerSecond);
+    bundle.putLong("eta", eta);
+    callback.invoke(bundle);
+  }
+}
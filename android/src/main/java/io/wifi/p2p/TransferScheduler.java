@@ -0,0 +1,183 @@
+package io.wifi.p2p;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs every {@link Transfer} on a bounded pool of workers. Queued transfers are ordered by
+ * priority and then by submission, so a message submitted behind several files runs first. Bulk
+ * transfers never occupy the last worker, which stays available for control traffic, and at most
+ * {@code perPeerLimit} transfers run against the same peer at once. Transfers that can not start
+ * yet are parked and put back on the queue when a running transfer completes. A transfer that waits
+ * for an incoming connection only competes for a worker once the connection arrived.
+ */
+public class TransferScheduler {
+  private final ThreadPoolExecutor executor;
+  private final int bulkLimit;
+  private final int perPeerLimit;
+  private final AtomicLong sequence = new AtomicLong();
+  private final Map<String, Transfer> transfers = new HashMap<>();
+  private final Map<String, Integer> activePerPeer = new HashMap<>();
+  private final List<Job> parked = new ArrayList<>();
+  private int activeBulk;
+
+  public TransferScheduler(int workers, int perPeerLimit) {
+    this.executor =
+        new ThreadPoolExecutor(
+            workers, workers, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+    this.executor.allowCoreThreadTimeOut(true);
+    this.bulkLimit = Math.max(1, workers - 1);
+    this.perPeerLimit = perPeerLimit;
+  }
+
+  /** Queues {@code transfer}; a transfer with the same id that is still pending is replaced. */
+  public void submit(Transfer transfer) {
+    Transfer previous;
+    synchronized (this) {
+      previous = transfers.put(transfer.getId(), transfer);
+    }
+    if (previous != null) {
+      cancel(previous);
+    }
+    executor.execute(new Job(transfer, sequence.getAndIncrement()));
+  }
+
+  /**
+   * Cancels the transfer with the given id, whether it is still queued or already running. Returns
+   * false when no such transfer is pending.
+   */
+  public boolean cancel(String id) {
+    Transfer transfer;
+    synchronized (this) {
+      transfer = transfers.get(id);
+    }
+    if (transfer == null) {
+      return false;
+    }
+    cancel(transfer);
+    return true;
+  }
+
+  public void cancelAll() {
+    List<String> ids;
+    synchronized (this) {
+      ids = new ArrayList<>(transfers.keySet());
+    }
+    for (String id : ids) {
+      cancel(id);
+    }
+  }
+
+  private void cancel(Transfer transfer) {
+    transfer.cancel();
+    // A parked job is queued again so that it sees the flag and reports the cancellation.
+    synchronized (this) {
+      for (Iterator<Job> it = parked.iterator(); it.hasNext(); ) {
+        Job job = it.next();
+        if (job.transfer == transfer) {
+          it.remove();
+          executor.execute(job);
+        }
+      }
+    }
+  }
+
+  /** Takes a slot for {@code transfer}, or parks it and returns false when it must wait. */
+  private synchronized boolean acquire(Job job) {
+    Transfer transfer = job.transfer;
+    if (transfer.isCancelled()) {
+      return true;
+    }
+    boolean bulk = transfer.getPriority() >= Transfer.PRIORITY_BULK;
+    String peer = transfer.getPeer();
+    int peerCount = peer != null && activePerPeer.containsKey(peer) ? activePerPeer.get(peer) : 0;
+    if ((bulk && activeBulk >= bulkLimit) || (peer != null && peerCount >= perPeerLimit)) {
+      parked.add(job);
+      return false;
+    }
+    if (bulk) {
+      activeBulk++;
+    }
+    if (peer != null) {
+      activePerPeer.put(peer, peerCount + 1);
+    }
+    job.holdsSlot = true;
+    return true;
+  }
+
+  private void release(Job job) {
+    List<Job> ready;
+    synchronized (this) {
+      Transfer transfer = job.transfer;
+      if (transfers.get(transfer.getId()) == transfer) {
+        transfers.remove(transfer.getId());
+      }
+      if (!job.holdsSlot) {
+        return;
+      }
+      if (transfer.getPriority() >= Transfer.PRIORITY_BULK) {
+        activeBulk--;
+      }
+      String peer = transfer.getPeer();
+      if (peer != null) {
+        int count = activePerPeer.get(peer) - 1;
+        if (count == 0) {
+          activePerPeer.remove(peer);
+        } else {
+          activePerPeer.put(peer, count);
+        }
+      }
+      ready = new ArrayList<>(parked);
+      parked.clear();
+    }
+    // Re-queued in their original order; acquire parks whatever still can not run.
+    for (Job parkedJob : ready) {
+      executor.execute(parkedJob);
+    }
+  }
+
+  private class Job implements Runnable, Comparable<Job> {
+    final Transfer transfer;
+    final long sequence;
+    boolean holdsSlot;
+    boolean listening;
+
+    Job(Transfer transfer, long sequence) {
+      this.transfer = transfer;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public void run() {
+      if (!listening) {
+        listening = true;
+        if (transfer.awaitConnection(() -> executor.execute(this))) {
+          return;
+        }
+      }
+      if (!acquire(this)) {
+        return;
+      }
+      try {
+        transfer.run();
+      } finally {
+        release(this);
+      }
+    }
+
+    @Override
+    public int compareTo(Job other) {
+      if (transfer.getPriority() != other.transfer.getPriority()) {
+        return transfer.getPriority() < other.transfer.getPriority() ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : sequence > other.sequence ? 1 : 0;
+    }
+  }
+}
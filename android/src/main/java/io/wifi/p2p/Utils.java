@@ -4,10 +4,14 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /** Created by zyusk on 03.11.2018. */
 public class Utils {
   public static final String CHARSET = "UTF-8";
+  public static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+  public static final long TRANSFER_STEP = 1024 * 1024;
   private static final String TAG = "RNWiFiP2P";
 
   public static boolean copyBytes(InputStream inputStream, OutputStream out) {
@@ -25,4 +29,32 @@ public class Utils {
     }
     return true;
   }
+
+  /**
+   * Sends {@code length} bytes of {@code file} starting at {@code position} using transferTo. Each
+   * call moves at most {@link #TRANSFER_STEP} bytes so that {@code progress} keeps up.
+   */
+  public static long transferFile(
+      FileChannel file,
+      long position,
+      long length,
+      WritableByteChannel out,
+      TransferProgress progress)
+      throws IOException {
+    if (out instanceof ReadTimeoutChannel) {
+      // Only a socket channel itself lets transferTo skip the copy through user space.
+      out = ((ReadTimeoutChannel) out).channel;
+    }
+    long sent = 0;
+    while (sent < length) {
+      long transferred =
+          file.transferTo(position + sent, Math.min(TRANSFER_STEP, length - sent), out);
+      if (transferred <= 0) {
+        throw new IOException("Unexpected end of file after " + sent + " bytes");
+      }
+      sent += transferred;
+      progress.advance(transferred);
+    }
+    return sent;
+  }
 }
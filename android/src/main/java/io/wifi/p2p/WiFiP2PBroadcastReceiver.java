@@ -17,17 +17,21 @@ public class WiFiP2PBroadcastReceiver extends BroadcastReceiver {
   private WifiP2pManager manager;
   private WifiP2pManager.Channel channel;
   private ReactApplicationContext reactContext;
+  // Told about every connection change before JS, e.g. to drain the outbox once a group forms.
+  private WifiP2pManager.ConnectionInfoListener onConnectionInfo;
   private WiFiP2PDeviceMapper mapper = new WiFiP2PDeviceMapper();
 
   public WiFiP2PBroadcastReceiver(
       WifiP2pManager manager,
       WifiP2pManager.Channel channel,
-      ReactApplicationContext reactContext) {
+      ReactApplicationContext reactContext,
+      WifiP2pManager.ConnectionInfoListener onConnectionInfo) {
     super();
 
     this.manager = manager;
     this.channel = channel;
     this.reactContext = reactContext;
+    this.onConnectionInfo = onConnectionInfo;
   }
 
   @Override
@@ -67,6 +71,7 @@ public class WiFiP2PBroadcastReceiver extends BroadcastReceiver {
       new WifiP2pManager.ConnectionInfoListener() {
         @Override
         public void onConnectionInfoAvailable(final WifiP2pInfo info) {
+          onConnectionInfo.onConnectionInfoAvailable(info);
           WritableMap params = mapper.mapWiFiP2PInfoToReactEntity(info);
           sendEvent("WIFI_P2P:CONNECTION_INFO_UPDATED", params);
         }
@@ -101,6 +101,50 @@ public class WiFiP2PDeviceMapper {
     return params;
   }
 
+  public WritableMap mapSendFilesBundleToReactEntity(Bundle bundle) {
+    WritableMap params = Arguments.createMap();
+
+    params.putDouble("time", bundle.getLong("time"));
+    params.putInt("files", bundle.getInt("files"));
+
+    return params;
+  }
+
+  public WritableMap mapBroadcastBundleToReactEntity(Bundle bundle) {
+    WritableMap params = Arguments.createMap();
+
+    params.putDouble("time", bundle.getLong("time"));
+    if (bundle.containsKey("file")) {
+      params.putString("file", bundle.getString("file"));
+    }
+    params.putArray("delivered", toStringArray(bundle.getStringArray("delivered")));
+    params.putArray("failed", toStringArray(bundle.getStringArray("failed")));
+
+    return params;
+  }
+
+  private static WritableArray toStringArray(String[] strings) {
+    WritableArray array = Arguments.createArray();
+    for (String string : strings) {
+      array.pushString(string);
+    }
+    return array;
+  }
+
+  public WritableMap mapTransferProgressBundleToReactEntity(Bundle bundle) {
+    WritableMap params = Arguments.createMap();
+
+    params.putString("transferId", bundle.getString("transferId"));
+    params.putString("direction", bundle.getString("direction"));
+    params.putDouble("bytesTransferred", bundle.getLong("bytesTransferred"));
+    params.putDouble("totalBytes", bundle.getLong("totalBytes"));
+    params.putDouble("bytesPerSecond", bundle.getDouble("bytesPerSecond"));
+    params.putDouble("averageBytesPerSecond", bundle.getDouble("averageBytesPerSecond"));
+    params.putDouble("eta", bundle.getLong("eta"));
+
+    return params;
+  }
+
   public WritableMap mapSendMessageBundleToReactEntity(Bundle bundle) {
     WritableMap params = Arguments.createMap();
 
@@ -109,4 +153,36 @@ public class WiFiP2PDeviceMapper {
 
     return params;
   }
+
+  public WritableMap mapSendBinaryBundleToReactEntity(Bundle bundle) {
+    WritableMap params = Arguments.createMap();
+
+    params.putDouble("time", bundle.getLong("time"));
+    params.putInt("size", bundle.getInt("size"));
+
+    return params;
+  }
+
+  /** An item of the {@link Outbox}, with its {@code status} once it left it. */
+  public WritableMap mapOutboxBundleToReactEntity(Bundle bundle) {
+    WritableMap params = Arguments.createMap();
+
+    params.putDouble("id", bundle.getLong("id"));
+    params.putString("kind", bundle.getString("kind"));
+    params.putString("address", bundle.getString("address"));
+    if (bundle.containsKey("status")) {
+      params.putString("status", bundle.getString("status"));
+    }
+    if (bundle.containsKey("expiresAt")) {
+      params.putDouble("expiresAt", bundle.getLong("expiresAt"));
+    }
+    if (bundle.containsKey("message")) {
+      params.putString("message", bundle.getString("message"));
+    }
+    if (bundle.containsKey("file")) {
+      params.putString("file", bundle.getString("file"));
+    }
+
+    return params;
+  }
 }
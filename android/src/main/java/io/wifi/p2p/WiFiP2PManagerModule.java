@@ -7,6 +7,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.Uri;
+import android.net.wifi.WifiManager;
 import android.net.wifi.WpsInfo;
 import android.net.wifi.p2p.WifiP2pConfig;
 import android.net.wifi.p2p.WifiP2pDevice;
@@ -21,6 +22,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.ResultReceiver;
+import android.util.Base64;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -31,8 +33,10 @@ import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.ReadableType;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.ReadableMap;
@@ -40,9 +44,16 @@ import com.facebook.react.bridge.WritableNativeMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * Created by zyusk on 01.05.2018.
@@ -51,16 +62,50 @@ public class WiFiP2PManagerModule extends ReactContextBaseJavaModule implements
     public static final String SERVICE_INSTANCE = "_rnwifip2preborn";
     public static final String SERVICE_TYPE = "_presence._tcp";
     private static final String TAG = "RNWiFiP2P";
+    private static final int TRANSFER_WORKERS = 4;
+    private static final int TRANSFERS_PER_PEER = 2;
+    private static final int WARM_UP_ATTEMPTS = 3;
+    private static final long WARM_UP_RETRY_DELAY_MILLIS = 500;
     private WifiP2pInfo wifiP2pInfo;
     private WifiP2pManager manager;
     private WifiP2pManager.Channel channel;
     private ReactApplicationContext reactContext;
     private WiFiP2PDeviceMapper mapper = new WiFiP2PDeviceMapper();
-    private MessageServer messageServer;
+    private final ListenerRegistry listeners = new ListenerRegistry();
+    private final MessageServer messageServer;
+    private final MessageConnectionPool connectionPool = new MessageConnectionPool();
+    private final DatagramServer datagramServer = new DatagramServer(listeners);
+    private final DatagramSender datagramSender = new DatagramSender();
+    private final RelayServer relayServer = new RelayServer(listeners);
+    // Held while receiving group-wide datagrams, which WiFi drivers filter out otherwise.
+    private WifiManager.MulticastLock multicastLock;
+    private final TransferScheduler scheduler = new TransferScheduler(TRANSFER_WORKERS, TRANSFERS_PER_PEER);
+    private final ContentIndex contentIndex;
+    private final Outbox outbox;
+    // Set from JS with setSocketOptions, the options of a call override them.
+    private volatile SocketOptions socketDefaults = SocketOptions.NONE;
+    // Set from JS with setWarmUp, null while groups are not warmed up.
+    private volatile ReadableMap warmUpOptions;
+    // Set from JS with setTrustedRelays; the group owner is trusted on top.
+    private volatile List<String> trustedRelays = new ArrayList<>();
+    private final CustomDefinedCallback transferProgress = new CustomDefinedCallback() {
+        @Override
+        public void invoke(Object object) {
+            sendEvent("WIFI_P2P:TRANSFER_PROGRESS", mapper.mapTransferProgressBundleToReactEntity((Bundle) object));
+        }
+    };
 
     public WiFiP2PManagerModule(ReactApplicationContext reactContext) {
         super(reactContext);
         this.reactContext = reactContext;
+        this.contentIndex = new ContentIndex(new File(reactContext.getFilesDir(), "RNWiFiP2P-content-index"));
+        this.messageServer = new MessageServer(listeners, new File(reactContext.getCacheDir(), "RNWiFiP2P-messages"));
+        this.outbox = new Outbox(new File(reactContext.getFilesDir(), "RNWiFiP2P-outbox"), connectionPool, scheduler, reactContext.getContentResolver(), new CustomDefinedCallback() {
+            @Override
+            public void invoke(Object object) {
+                sendEvent("WIFI_P2P:OUTBOX_UPDATED", mapper.mapOutboxBundleToReactEntity((Bundle) object));
+            }
+        }, transferProgress);
     }
 
     @Override
@@ -68,9 +113,56 @@ public class WiFiP2PManagerModule extends ReactContextBaseJavaModule implements
         return "WiFiP2PManagerModule";
     }
 
+    /** Connection changes seen by the broadcast receiver; a formed group is warmed up and drains the outbox. */
     @Override
     public void onConnectionInfoAvailable(WifiP2pInfo info) {
         this.wifiP2pInfo = info;
+        updateRelays();
+        warmUp();
+        drainOutbox();
+    }
+
+    /**
+     * With {@link #setWarmUp} on, prepares a formed group for the first message: the group owner
+     * starts receiving messages, a client opens its pooled connection to the group owner and pings
+     * it, a few times while the group owner may still be starting up.
+     */
+    private void warmUp() {
+        final ReadableMap options = warmUpOptions;
+        WifiP2pInfo info = wifiP2pInfo;
+        if (options == null || info == null || !info.groupFormed || info.groupOwnerAddress == null) {
+            return;
+        }
+        if (info.isGroupOwner) {
+            if (!messageServer.isListening(getPort(options))) {
+                try {
+                    startMessageServer(options);
+                } catch (IOException e) {
+                    Log.e(TAG, e.getMessage());
+                }
+            }
+            return;
+        }
+        final String groupOwner = info.groupOwnerAddress.getHostAddress();
+        connectionPool.ping(groupOwner, getPort(options), getCallTimeout(options), WARM_UP_ATTEMPTS, WARM_UP_RETRY_DELAY_MILLIS, getSocketOptions(options, SocketOptions.MESSAGES), new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (resultCode == 0) {
+                    Log.i(TAG, "Connection to " + groupOwner + " warmed up in " + resultData.getLong("time") + " ms");
+                } else {
+                    Log.w(TAG, "Could not warm up the connection to " + groupOwner + ": " + resultData.getString("error"));
+                }
+            }
+        });
+    }
+
+    private void drainOutbox() {
+        WifiP2pInfo info = wifiP2pInfo;
+        if (info != null && info.groupFormed && info.groupOwnerAddress != null) {
+            // The group owner keeps the items meant for a group owner until it joins a group as a client.
+            String groupOwner = info.isGroupOwner ? null : info.groupOwnerAddress.getHostAddress();
+            outbox.drain(groupOwner, socketDefaults.orElse(SocketOptions.MESSAGES), socketDefaults.orElse(SocketOptions.DEFAULT));
+        }
     }
 
     @ReactMethod
@@ -249,7 +341,7 @@ public class WiFiP2PManagerModule extends ReactContextBaseJavaModule implements
                 manager = (WifiP2pManager) activity.getSystemService(Context.WIFI_P2P_SERVICE);
                 channel = manager.initialize(activity, getMainLooper(), null);
 
-                WiFiP2PBroadcastReceiver receiver = new WiFiP2PBroadcastReceiver(manager, channel, reactContext);
+                WiFiP2PBroadcastReceiver receiver = new WiFiP2PBroadcastReceiver(manager, channel, reactContext, this);
                 activity.registerReceiver(receiver, intentFilter);
 
                 promise.resolve(manager != null && channel != null);
@@ -279,6 +371,9 @@ public class WiFiP2PManagerModule extends ReactContextBaseJavaModule implements
         manager.removeGroup(channel, new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
+                connectionPool.closeAll();
+                datagramSender.close();
+                scheduler.cancelAll();
                 callback.invoke();
             }
 
@@ -375,46 +470,135 @@ public class WiFiP2PManagerModule extends ReactContextBaseJavaModule implements
     ;
 
     @ReactMethod
-    public void sendFile(String filePath, final Promise promise) {
+    public void sendFile(String filePath, @Nullable ReadableMap options, final Promise promise) {
         if (wifiP2pInfo.groupOwnerAddress != null) {
-            sendFileTo(filePath, wifiP2pInfo.groupOwnerAddress.getHostAddress(), promise);
+            sendFileTo(filePath, wifiP2pInfo.groupOwnerAddress.getHostAddress(), options, promise);
         } else {
             promise.reject("CONNECTION_CLOSED");
         }
     }
 
     @ReactMethod
-    public void sendFileTo(final String filePath, final String address, final Promise promise) {
-        // User has picked a file. Transfer it to group owner i.e peer using FileTransferService
+    public void sendFileTo(final String filePath, final String address, @Nullable ReadableMap options, final Promise promise) {
+        // User has picked a file. Transfer it to group owner i.e peer using a FileSendTransfer
         Uri uri = Uri.fromFile(new File(filePath));
         Log.i(TAG, "Sending: " + uri);
-        Log.i(TAG, "Intent----------- " + uri);
-        Intent serviceIntent = new Intent(getCurrentActivity(), FileTransferService.class);
-        serviceIntent.setAction(FileTransferService.ACTION_SEND_FILE);
-        serviceIntent.putExtra(FileTransferService.EXTRAS_FILE_PATH, uri.toString());
-        serviceIntent.putExtra(FileTransferService.EXTRAS_ADDRESS, address);
-        serviceIntent.putExtra(FileTransferService.EXTRAS_PORT, 8988);
-        serviceIntent.putExtra(FileTransferService.REQUEST_RECEIVER_EXTRA, new ResultReceiver(null) {
+        int streams = options != null && options.hasKey("streams") ? options.getInt("streams") : 1;
+        int chunkSize = options != null && options.hasKey("chunkSize") ? options.getInt("chunkSize") : FileHeader.DEFAULT_CHUNK_SIZE;
+        String transferKey = options != null && options.hasKey("transferId") ? options.getString("transferId") : null;
+        boolean dedup = options != null && options.hasKey("dedup") && options.getBoolean("dedup");
+        boolean delta = options != null && options.hasKey("delta") && options.getBoolean("delta");
+        scheduler.submit(new FileSendTransfer(getTransferId(options), reactContext.getContentResolver(), uri.toString(), address, getPort(options), streams, chunkSize, getCompressionLevel(options), getVerification(options), transferKey, dedup ? contentIndex : null, delta, getSocketOptions(options, SocketOptions.DEFAULT), new ResultReceiver(null) {
             @Override
             protected void onReceiveResult(int resultCode, Bundle resultData) {
-                if (resultCode == 0) { // successful transfer
+                if (resultCode == TransferProgress.RESULT_PROGRESS) {
+                    transferProgress.invoke(resultData);
+                } else if (resultCode == 0) { // successful transfer
                     promise.resolve(mapper.mapSendFileBundleToReactEntity(resultData));
                 } else { // error
                     promise.reject(String.valueOf(resultCode), resultData.getString("error"));
                 }
             }
+        }));
+    }
+
+    /**
+     * Sends the file to every address in {@code addresses}, reading it only once, see {@link
+     * FileBroadcastTransfer}. Resolves with the `delivered` and `failed` addresses unless no peer
+     * got the file.
+     */
+    @ReactMethod
+    public void broadcastFile(final String filePath, ReadableArray addresses, @Nullable ReadableMap options, final Promise promise) {
+        Uri uri = Uri.fromFile(new File(filePath));
+        Log.i(TAG, "Broadcasting: " + uri + " to " + addresses.size() + " peers");
+        int chunkSize = options != null && options.hasKey("chunkSize") ? options.getInt("chunkSize") : FileHeader.DEFAULT_CHUNK_SIZE;
+        String transferKey = options != null && options.hasKey("transferId") ? options.getString("transferId") : null;
+        scheduler.submit(new FileBroadcastTransfer(getTransferId(options), reactContext.getContentResolver(), uri.toString(), toStringList(addresses), getPort(options), chunkSize, getCompressionLevel(options), getVerification(options), transferKey, getSocketOptions(options, SocketOptions.DEFAULT), new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (resultCode == TransferProgress.RESULT_PROGRESS) {
+                    transferProgress.invoke(resultData);
+                } else if (resultCode == 0) { // delivered to some peers at least
+                    promise.resolve(mapper.mapBroadcastBundleToReactEntity(resultData));
+                } else { // error
+                    promise.reject(String.valueOf(resultCode), resultData.getString("error"));
+                }
+            }
+        }));
+    }
+
+    @ReactMethod
+    public void sendFiles(ReadableArray filePaths, @Nullable ReadableMap options, final Promise promise) {
+        if (wifiP2pInfo.groupOwnerAddress != null) {
+            sendFilesTo(filePaths, wifiP2pInfo.groupOwnerAddress.getHostAddress(), options, promise);
+        } else {
+            promise.reject("CONNECTION_CLOSED");
+        }
+    }
+
+    @ReactMethod
+    public void sendFilesTo(ReadableArray filePaths, String address, @Nullable ReadableMap options, final Promise promise) {
+        String basePath = options != null && options.hasKey("basePath") ? options.getString("basePath") : null;
+        String[] fileUris = new String[filePaths.size()];
+        String[] relativePaths = new String[filePaths.size()];
+        for (int i = 0; i < filePaths.size(); i++) {
+            File file = new File(filePaths.getString(i));
+            fileUris[i] = Uri.fromFile(file).toString();
+            relativePaths[i] = basePath != null && file.getPath().startsWith(basePath)
+                ? file.getPath().substring(basePath.length()).replaceFirst("^/+", "")
+                : file.getName();
+        }
+        Log.i(TAG, "Sending " + fileUris.length + " files");
+
+        scheduler.submit(new FileBatchSendTransfer(getTransferId(options), reactContext.getContentResolver(), fileUris, Arrays.asList(relativePaths), address, getPort(options), getSocketOptions(options, SocketOptions.DEFAULT), new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (resultCode == TransferProgress.RESULT_PROGRESS) {
+                    transferProgress.invoke(resultData);
+                } else if (resultCode == 0) { // successful transfer
+                    promise.resolve(mapper.mapSendFilesBundleToReactEntity(resultData));
+                } else { // error
+                    promise.reject(String.valueOf(resultCode), resultData.getString("error"));
+                }
+            }
+        }));
+    }
+
+    @ReactMethod
+    public void receiveFiles(final String folder, @Nullable ReadableMap options, final Callback callback) {
+        final long syncInterval = getSyncInterval(options);
+        final String transferId = getTransferId(options);
+        final int port = getPort(options);
+        final SocketOptions socketOptions = getSocketOptions(options, SocketOptions.DEFAULT);
+        manager.requestConnectionInfo(channel, new WifiP2pManager.ConnectionInfoListener() {
+            @Override
+            public void onConnectionInfoAvailable(WifiP2pInfo info) {
+                if (info.groupFormed) {
+                    scheduler.submit(new FileBatchReceiveTransfer(transferId, listeners, port, folder, syncInterval, socketOptions, callback, new CustomDefinedCallback() {
+                        @Override
+                        public void invoke(Object object) {
+                            sendEvent("WIFI_P2P:FILE_RECEIVED", Arguments.fromBundle((Bundle) object));
+                        }
+                    }, transferProgress));
+                } else {
+                    Log.i(TAG, "You must be in a group to receive files");
+                }
+            }
         });
-        getCurrentActivity().startService(serviceIntent);
     }
 
     @ReactMethod
-    public void receiveFile(String folder, String fileName, final Boolean forceToScanGallery, final Callback callback) {
+    public void receiveFile(String folder, String fileName, final Boolean forceToScanGallery, @Nullable ReadableMap options, final Callback callback) {
         final String destination = folder + fileName;
+        final long syncInterval = getSyncInterval(options);
+        final String transferId = getTransferId(options);
+        final int port = getPort(options);
+        final SocketOptions socketOptions = getSocketOptions(options, SocketOptions.DEFAULT);
         manager.requestConnectionInfo(channel, new WifiP2pManager.ConnectionInfoListener() {
             @Override
             public void onConnectionInfoAvailable(WifiP2pInfo info) {
                 if (info.groupFormed) {
-                    new FileServerAsyncTask(getCurrentActivity(), callback, destination, new CustomDefinedCallback() {
+                    scheduler.submit(new FileReceiveTransfer(transferId, listeners, port, callback, destination, syncInterval, new CustomDefinedCallback() {
                         @Override
                         public void invoke(Object object) {
                             if (forceToScanGallery) { // fixes:
@@ -431,7 +615,7 @@ public class WiFiP2PManagerModule extends ReactContextBaseJavaModule implements
                                 }
                             }
                         }
-                    }).execute();
+                    }, transferProgress, contentIndex, socketOptions));
                 } else {
                     Log.i(TAG, "You must be in a group to receive a file");
                 }
@@ -440,23 +624,18 @@ public class WiFiP2PManagerModule extends ReactContextBaseJavaModule implements
     }
 
     @ReactMethod
-    public void sendMessage(String message, final Promise promise) {
+    public void sendMessage(String message, @Nullable ReadableMap options, final Promise promise) {
         if (wifiP2pInfo.groupOwnerAddress != null) {
-            sendMessageTo(message, wifiP2pInfo.groupOwnerAddress.getHostAddress(), promise);
+            sendMessageTo(message, wifiP2pInfo.groupOwnerAddress.getHostAddress(), options, promise);
         } else {
             promise.reject("CONNECTION_CLOSED");
         }
     }
 
     @ReactMethod
-    public void sendMessageTo(final String message, final String address, final Promise promise) {
+    public void sendMessageTo(final String message, final String address, @Nullable ReadableMap options, final Promise promise) {
         Log.i(TAG, "Sending message: " + message);
-        Intent serviceIntent = new Intent(getCurrentActivity(), MessageTransferService.class);
-        serviceIntent.setAction(MessageTransferService.ACTION_SEND_MESSAGE);
-        serviceIntent.putExtra(MessageTransferService.EXTRAS_DATA, message);
-        serviceIntent.putExtra(MessageTransferService.EXTRAS_ADDRESS, address);
-        serviceIntent.putExtra(MessageTransferService.EXTRAS_PORT, 8988);
-        serviceIntent.putExtra(MessageTransferService.REQUEST_RECEIVER_EXTRA, new ResultReceiver(null) {
+        ResultReceiver receiver = new ResultReceiver(null) {
             @Override
             protected void onReceiveResult(int resultCode, Bundle resultData) {
                 if (resultCode == 0) { // successful transfer
@@ -465,8 +644,168 @@ public class WiFiP2PManagerModule extends ReactContextBaseJavaModule implements
                     promise.reject(String.valueOf(resultCode), resultData.getString("error"));
                 }
             }
+        };
+
+        Bundle bundle = options != null ? Arguments.toBundle(options) : new Bundle();
+        if (bundle.getBoolean("pooled", true)) {
+            connectionPool.send(address, getPort(options), message, getFlushPolicy(options), getCompressionLevel(options), getSocketOptions(options, SocketOptions.MESSAGES), receiver);
+            return;
+        }
+
+        scheduler.submit(new MessageSendTransfer(getTransferId(options), message, address, getPort(options), getSocketOptions(options, SocketOptions.MESSAGES), receiver));
+    }
+
+    /**
+     * Stores the message in the outbox and resolves with its id; it is delivered to {@code address},
+     * or to the group owner when there is none, as soon as a group is formed. See {@link Outbox}.
+     */
+    @ReactMethod
+    public void queueMessageTo(String message, @Nullable String address, @Nullable ReadableMap options, Promise promise) {
+        queue(Outbox.KIND_MESSAGE, message, address, options, promise);
+    }
+
+    /** Like {@link #queueMessageTo}, for the file at {@code filePath}, which has to stay there until delivered. */
+    @ReactMethod
+    public void queueFileTo(String filePath, @Nullable String address, @Nullable ReadableMap options, Promise promise) {
+        queue(Outbox.KIND_FILE, Uri.fromFile(new File(filePath)).toString(), address, options, promise);
+    }
+
+    private void queue(byte kind, String content, @Nullable String address, @Nullable ReadableMap options, Promise promise) {
+        long ttl = options != null && options.hasKey("ttl") ? (long) options.getDouble("ttl") : Outbox.DEFAULT_TTL_MILLIS;
+        String relay = null;
+        if (options != null && options.hasKey("relay")) {
+            relay = options.getType("relay") == ReadableType.String
+                    ? options.getString("relay")
+                    : (options.getBoolean("relay") ? Outbox.RELAY_GROUP_OWNER : null);
+        }
+        try {
+            long id = outbox.queue(kind, content, address, getPort(options), relay, ttl);
+            promise.resolve((double) id);
+        } catch (IOException e) {
+            promise.reject("OUTBOX_ERROR", e.getMessage());
+            return;
+        }
+        drainOutbox();
+    }
+
+    /** Resolves with the items still waiting in the outbox, oldest first. */
+    @ReactMethod
+    public void getOutbox(Promise promise) {
+        WritableArray items = Arguments.createArray();
+        for (Bundle item : outbox.list()) {
+            items.pushMap(mapper.mapOutboxBundleToReactEntity(item));
+        }
+        promise.resolve(items);
+    }
+
+    /** Resolves with {@code false} when no such item is waiting in the outbox. */
+    @ReactMethod
+    public void removeFromOutbox(double id, Promise promise) {
+        promise.resolve(outbox.remove((long) id));
+    }
+
+    /** Bytes the items waiting in the outbox may take up on disk, 4 MiB by default. */
+    @ReactMethod
+    public void setOutboxLimit(double maxBytes) {
+        outbox.setMaxBytes((long) maxBytes);
+    }
+
+    /** Sends the message to every address in {@code addresses} over the pooled connections. */
+    @ReactMethod
+    public void broadcastMessage(final String message, ReadableArray addresses, @Nullable ReadableMap options, final Promise promise) {
+        Log.i(TAG, "Broadcasting message to " + addresses.size() + " peers");
+        connectionPool.broadcast(toStringList(addresses), getPort(options), message, getFlushPolicy(options), getCompressionLevel(options), getSocketOptions(options, SocketOptions.MESSAGES), new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (resultCode == 0) { // delivered to some peers at least
+                    promise.resolve(mapper.mapBroadcastBundleToReactEntity(resultData));
+                } else { // error
+                    promise.reject(String.valueOf(resultCode), resultData.getString("error"));
+                }
+            }
+        });
+    }
+
+    @ReactMethod
+    public void sendBinary(String data, @Nullable ReadableMap options, final Promise promise) {
+        if (wifiP2pInfo.groupOwnerAddress != null) {
+            sendBinaryTo(data, wifiP2pInfo.groupOwnerAddress.getHostAddress(), options, promise);
+        } else {
+            promise.reject("CONNECTION_CLOSED");
+        }
+    }
+
+    /**
+     * Sends the base64 encoded {@code data} as a binary frame. Binary messages always go over the
+     * pooled connection, older receivers don't understand them anyway.
+     */
+    @ReactMethod
+    public void sendBinaryTo(final String data, final String address, @Nullable ReadableMap options, final Promise promise) {
+        byte[] payload;
+        try {
+            payload = Base64.decode(data, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            promise.reject("INVALID_DATA", e.getMessage());
+            return;
+        }
+        Log.i(TAG, "Sending " + payload.length + " bytes");
+        connectionPool.sendBinary(address, getPort(options), payload, getFlushPolicy(options), getCompressionLevel(options), getSocketOptions(options, SocketOptions.MESSAGES), new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (resultCode == 0) { // successful transfer
+                    promise.resolve(mapper.mapSendBinaryBundleToReactEntity(resultData));
+                } else { // error
+                    promise.reject(String.valueOf(resultCode), resultData.getString("error"));
+                }
+            }
+        });
+    }
+
+    @ReactMethod
+    public void callRemote(String method, String payload, @Nullable ReadableMap options, final Promise promise) {
+        if (wifiP2pInfo.groupOwnerAddress != null) {
+            callRemoteTo(method, payload, wifiP2pInfo.groupOwnerAddress.getHostAddress(), options, promise);
+        } else {
+            promise.reject("CONNECTION_CLOSED");
+        }
+    }
+
+    /**
+     * Calls {@code method} on the peer over the pooled connection and resolves with the payload the
+     * peer's `respond` sent back. Rejects with `REMOTE_ERROR` when the peer called `respondError`
+     * and with `TIMEOUT` when no reply came within the `timeout` option.
+     */
+    @ReactMethod
+    public void callRemoteTo(final String method, final String payload, final String address, @Nullable ReadableMap options, final Promise promise) {
+        Log.i(TAG, "Calling " + method);
+        connectionPool.call(address, getPort(options), method, payload, getCallTimeout(options), getCompressionLevel(options), getSocketOptions(options, SocketOptions.MESSAGES), new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (resultCode == 0) { // reply received
+                    promise.resolve(resultData.getString("result"));
+                } else { // error
+                    String code = resultData.getString("code");
+                    promise.reject(code != null ? code : String.valueOf(resultCode), resultData.getString("error"));
+                }
+            }
         });
-        getCurrentActivity().startService(serviceIntent);
+    }
+
+    /** Answers the `WIFI_P2P:REMOTE_CALL` event with {@code requestId}. */
+    @ReactMethod
+    public void respond(int requestId, String payload) {
+        messageServer.respond(requestId, true, payload);
+    }
+
+    /** Answers the `WIFI_P2P:REMOTE_CALL` event with {@code requestId} with an error. */
+    @ReactMethod
+    public void respondError(int requestId, String error) {
+        messageServer.respond(requestId, false, error);
+    }
+
+    @ReactMethod
+    public void cancelTransfer(String transferId, final Promise promise) {
+        promise.resolve(scheduler.cancel(transferId));
     }
 
     @ReactMethod
@@ -475,10 +814,11 @@ public class WiFiP2PManagerModule extends ReactContextBaseJavaModule implements
             @Override
             public void onConnectionInfoAvailable(WifiP2pInfo info) {
                 if (info.groupFormed) {
-                    if (messageServer == null) {
-                        messageServer = new MessageServer();
+                    try {
+                        messageServer.start(getPort(props), props, getSpillThreshold(props), getSocketOptions(props, SocketOptions.MESSAGES), callback);
+                    } catch (IOException e) {
+                        Log.e(TAG, e.getMessage());
                     }
-                    messageServer.start(props, callback);
                 } else {
                     Log.i(TAG, "You must be in a group to receive messages");
                 }
@@ -486,11 +826,362 @@ public class WiFiP2PManagerModule extends ReactContextBaseJavaModule implements
         });
     }
 
+    @ReactMethod
+    public void startReceivingMessages(@Nullable final ReadableMap options) {
+        manager.requestConnectionInfo(channel, new WifiP2pManager.ConnectionInfoListener() {
+            @Override
+            public void onConnectionInfoAvailable(WifiP2pInfo info) {
+                if (info.groupFormed) {
+                    try {
+                        startMessageServer(options);
+                    } catch (IOException e) {
+                        Log.e(TAG, e.getMessage());
+                    }
+                } else {
+                    Log.i(TAG, "You must be in a group to receive messages");
+                }
+            }
+        });
+    }
+
+    private void startMessageServer(@Nullable ReadableMap options) throws IOException {
+        messageServer.startPersistent(getPort(options), getSpillThreshold(options), getSocketOptions(options, SocketOptions.MESSAGES), new CustomDefinedCallback() {
+            @Override
+            public void invoke(Object object) {
+                sendEvent("WIFI_P2P:MESSAGE_RECEIVED", (WritableMap) object);
+            }
+        }, new CustomDefinedCallback() {
+            @Override
+            public void invoke(Object object) {
+                sendEvent("WIFI_P2P:BINARY_MESSAGE_RECEIVED", (WritableMap) object);
+            }
+        }, new CustomDefinedCallback() {
+            @Override
+            public void invoke(Object object) {
+                sendEvent("WIFI_P2P:REMOTE_CALL", (WritableMap) object);
+            }
+        });
+    }
+
+    /**
+     * Warms up every group formed from now on with {@code options}, and the current one: the group
+     * owner receives messages as `startReceivingMessages` with them would, a client connects to the
+     * group owner and checks the connection, so that the first message goes out on an open socket.
+     * The `port` and `socketOptions` options must match those of the sends. {@code null} turns it
+     * off again; connections already open stay open.
+     */
+    @ReactMethod
+    public void setWarmUp(@Nullable ReadableMap options) {
+        warmUpOptions = options;
+        warmUp();
+    }
+
+    /**
+     * Opens the pooled connection to {@code address}, or to the group owner when there is none,
+     * unless it is open, and pings the peer over it. Resolves with the `time` until the peer
+     * answered in milliseconds, connecting included. Rejects with
+     * `TIMEOUT` when the peer did not answer within the `timeout` option.
+     */
+    @ReactMethod
+    public void warmUpConnection(@Nullable String address, @Nullable ReadableMap options, final Promise promise) {
+        if (address == null) {
+            if (wifiP2pInfo == null || wifiP2pInfo.groupOwnerAddress == null) {
+                promise.reject("CONNECTION_CLOSED");
+                return;
+            }
+            address = wifiP2pInfo.groupOwnerAddress.getHostAddress();
+        }
+        connectionPool.ping(address, getPort(options), getCallTimeout(options), 1, 0, getSocketOptions(options, SocketOptions.MESSAGES), new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (resultCode == 0) {
+                    WritableMap result = Arguments.createMap();
+                    result.putDouble("time", resultData.getLong("time"));
+                    promise.resolve(result);
+                } else {
+                    String code = resultData.getString("code");
+                    promise.reject(code != null ? code : String.valueOf(resultCode), resultData.getString("error"));
+                }
+            }
+        });
+    }
+
     @ReactMethod
     public void stopReceivingMessage() {
-        if (messageServer != null) {
-            messageServer.stop();
+        messageServer.stop();
+    }
+
+    /**
+     * Receives UDP datagrams on the `port` option, emitted as `WIFI_P2P:DATAGRAM_RECEIVED` events.
+     * The `multicastGroup` option joins that group; with it or `broadcast` a multicast lock is held
+     * until `stopReceivingDatagrams` so that group-wide datagrams get through.
+     */
+    @ReactMethod
+    public void startReceivingDatagrams(@Nullable ReadableMap options, Promise promise) {
+        String multicastGroup = options != null && options.hasKey("multicastGroup") ? options.getString("multicastGroup") : null;
+        boolean groupWide = multicastGroup != null || (options != null && options.hasKey("broadcast") && options.getBoolean("broadcast"));
+        try {
+            datagramServer.start(getPort(options), multicastGroup, getSocketOptions(options, SocketOptions.DEFAULT), new CustomDefinedCallback() {
+                @Override
+                public void invoke(Object object) {
+                    sendEvent("WIFI_P2P:DATAGRAM_RECEIVED", (WritableMap) object);
+                }
+            });
+            holdMulticastLock(groupWide);
+            promise.resolve(null);
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+            promise.reject("DATAGRAM_ERROR", e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void stopReceivingDatagrams() {
+        datagramServer.stop();
+        holdMulticastLock(false);
+    }
+
+    /**
+     * Sends {@code data}, base64 encoded when {@code binary}, as a single UDP datagram to {@code
+     * address}. Without an address it goes to every peer of the group: to the `multicastGroup`
+     * option, or to the group's broadcast address. Resolves with the sequence number of the datagram.
+     */
+    @ReactMethod
+    public void sendDatagramTo(String data, boolean binary, @Nullable String address, @Nullable ReadableMap options, Promise promise) {
+        try {
+            byte[] payload = binary ? Base64.decode(data, Base64.DEFAULT) : data.getBytes(Utils.CHARSET);
+            InetAddress target;
+            if (address != null) {
+                target = InetAddress.getByName(address);
+            } else if (options != null && options.hasKey("multicastGroup")) {
+                target = InetAddress.getByName(options.getString("multicastGroup"));
+            } else {
+                target = DatagramSender.groupBroadcastAddress();
+            }
+            int sequence = datagramSender.send(new InetSocketAddress(target, getPort(options)), binary ? Protocol.FRAME_BINARY : Protocol.FRAME_TEXT, payload, getSocketOptions(options, SocketOptions.DEFAULT));
+            promise.resolve((double) (sequence & 0xFFFFFFFFL));
+        } catch (IOException | IllegalArgumentException e) {
+            promise.reject("DATAGRAM_ERROR", e.getMessage());
+        }
+    }
+
+    /**
+     * Forwards the connections of peers sending with the `relay` option on the `port` option, next
+     * to whatever is received there. Meant for the group owner, the only peer every client reaches.
+     */
+    @ReactMethod
+    public void startRelay(@Nullable ReadableMap options, Promise promise) {
+        try {
+            relayServer.start(getPort(options), getSocketOptions(options, SocketOptions.MESSAGES));
+            promise.resolve(null);
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+            promise.reject("RELAY_ERROR", e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void stopRelay() {
+        relayServer.stop();
+    }
+
+    /**
+     * Peers besides the group owner whose relayed connections are received as coming from the
+     * peer they name; other peers can't pose as somebody else that way. Replaces the previous ones.
+     */
+    @ReactMethod
+    public void setTrustedRelays(ReadableArray addresses) {
+        trustedRelays = toStringList(addresses);
+        updateRelays();
+    }
+
+    private void updateRelays() {
+        List<String> relays = new ArrayList<>(trustedRelays);
+        WifiP2pInfo info = wifiP2pInfo;
+        if (info != null && info.groupFormed && info.groupOwnerAddress != null) {
+            relays.add(info.groupOwnerAddress.getHostAddress());
+        }
+        listeners.setRelays(relays);
+    }
+
+    private synchronized void holdMulticastLock(boolean held) {
+        if (held && multicastLock == null) {
+            WifiManager wifiManager = (WifiManager) reactContext.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+            multicastLock = wifiManager.createMulticastLock(TAG);
+            multicastLock.setReferenceCounted(false);
+            multicastLock.acquire();
+        } else if (!held && multicastLock != null) {
+            multicastLock.release();
+            multicastLock = null;
+        }
+    }
+
+    /**
+     * Sets the socket options used by every send and receive call that doesn't override them in
+     * its `socketOptions` option. Replaces the previous defaults; ports that are already open keep
+     * their receive buffer size.
+     */
+    @ReactMethod
+    public void setSocketOptions(@Nullable ReadableMap options) {
+        socketDefaults = toSocketOptions(options);
+        listeners.setSocketOptions(socketDefaults.orElse(SocketOptions.DEFAULT));
+    }
+
+    /** The `port` option, {@link Protocol#DEFAULT_PORT} by default. */
+    private static int getPort(@Nullable ReadableMap options) {
+        if (options != null && options.hasKey("port")) {
+            return options.getInt("port");
+        }
+        return Protocol.DEFAULT_PORT;
+    }
+
+    /** The `spillThreshold` option in bytes; 0, which keeps every message in memory, by default. */
+    private static long getSpillThreshold(@Nullable ReadableMap options) {
+        if (options != null && options.hasKey("spillThreshold")) {
+            return (long) options.getDouble("spillThreshold");
+        }
+        return 0;
+    }
+
+    /**
+     * The `socketOptions` option over the module defaults over {@code base}: {@link
+     * SocketOptions#MESSAGES} for messages, {@link SocketOptions#DEFAULT} for files. With the
+     * `relay` option connections go through the relay on the same port, see {@link #getRelay}.
+     */
+    private SocketOptions getSocketOptions(@Nullable ReadableMap options, SocketOptions base) {
+        SocketOptions call = options != null && options.hasKey("socketOptions")
+                ? toSocketOptions(options.getMap("socketOptions"))
+                : SocketOptions.NONE;
+        SocketOptions socketOptions = call.orElse(socketDefaults).orElse(base);
+        String relay = getRelay(options);
+        return relay != null ? socketOptions.viaRelay(relay, getPort(options)) : socketOptions;
+    }
+
+    /**
+     * The `relay` option: the address of the peer to relay through, or `true` for the group owner.
+     * {@code null} without it, or when the group owner is not known yet.
+     */
+    @Nullable
+    private String getRelay(@Nullable ReadableMap options) {
+        if (options == null || !options.hasKey("relay")) {
+            return null;
+        }
+        if (options.getType("relay") == ReadableType.String) {
+            return options.getString("relay");
+        }
+        if (!options.getBoolean("relay")) {
+            return null;
+        }
+        if (wifiP2pInfo == null || wifiP2pInfo.groupOwnerAddress == null) {
+            Log.w(TAG, "No group owner to relay through, connecting directly");
+            return null;
+        }
+        return wifiP2pInfo.groupOwnerAddress.getHostAddress();
+    }
+
+    /**
+     * Maps socket options from JS: `sendBufferSize` and `receiveBufferSize` in bytes, `tcpNoDelay`
+     * and `keepAlive` booleans, `trafficClass` (the IP TOS byte), `connectTimeout` and
+     * `readTimeout` in milliseconds. Missing ones are left unset.
+     */
+    private static SocketOptions toSocketOptions(@Nullable ReadableMap options) {
+        if (options == null) {
+            return SocketOptions.NONE;
+        }
+        return new SocketOptions(
+                getInt(options, "sendBufferSize"),
+                getInt(options, "receiveBufferSize"),
+                options.hasKey("tcpNoDelay") ? (options.getBoolean("tcpNoDelay") ? 1 : 0) : SocketOptions.UNSET,
+                options.hasKey("keepAlive") ? (options.getBoolean("keepAlive") ? 1 : 0) : SocketOptions.UNSET,
+                getInt(options, "trafficClass"),
+                getInt(options, "connectTimeout"),
+                getInt(options, "readTimeout"));
+    }
+
+    private static int getInt(ReadableMap options, String key) {
+        return options.hasKey(key) ? options.getInt(key) : SocketOptions.UNSET;
+    }
+
+    /** The `timeout` option of remote calls in milliseconds, 10 seconds by default. */
+    private static long getCallTimeout(@Nullable ReadableMap options) {
+        if (options != null && options.hasKey("timeout")) {
+            return (long) options.getDouble("timeout");
+        }
+        return 10000;
+    }
+
+    private static List<String> toStringList(ReadableArray array) {
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < array.size(); i++) {
+            strings.add(array.getString(i));
+        }
+        return strings;
+    }
+
+    /** The `transferId` option, which `cancelTransfer` accepts, or a random id. */
+    private static String getTransferId(@Nullable ReadableMap options) {
+        if (options != null && options.hasKey("transferId")) {
+            return options.getString("transferId");
+        }
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Maps the `batch` option of pooled messages: `true` for the default window, or an object with
+     * `maxDelay` (milliseconds), `maxBytes` and `maxCount`. No batching when it is missing.
+     */
+    @Nullable
+    private static FlushPolicy getFlushPolicy(@Nullable ReadableMap options) {
+        if (options == null || !options.hasKey("batch")) {
+            return null;
+        }
+        if (options.getType("batch") == ReadableType.Boolean) {
+            return options.getBoolean("batch") ? FlushPolicy.DEFAULT : null;
+        }
+        ReadableMap batch = options.getMap("batch");
+        return new FlushPolicy(
+                batch.hasKey("maxDelay") ? (long) batch.getDouble("maxDelay") : FlushPolicy.DEFAULT_MAX_DELAY_MILLIS,
+                batch.hasKey("maxBytes") ? batch.getInt("maxBytes") : FlushPolicy.DEFAULT_MAX_BYTES,
+                batch.hasKey("maxCount") ? batch.getInt("maxCount") : FlushPolicy.DEFAULT_MAX_COUNT);
+    }
+
+    /**
+     * Maps the `compression` option: `true` for {@link Compressor#DEFAULT_LEVEL}, or a deflate level
+     * from 1 (fastest) to 9 (smallest). Off when it is missing.
+     */
+    private static int getCompressionLevel(@Nullable ReadableMap options) {
+        if (options == null || !options.hasKey("compression")) {
+            return Compressor.LEVEL_NONE;
+        }
+        if (options.getType("compression") == ReadableType.Boolean) {
+            return options.getBoolean("compression") ? Compressor.DEFAULT_LEVEL : Compressor.LEVEL_NONE;
+        }
+        return Compressor.level(options.getInt("compression"));
+    }
+
+    /** Maps the `verify` option of sendFileTo: true or "crc32", "sha256". */
+    private static int getVerification(@Nullable ReadableMap options) {
+        if (options == null || !options.hasKey("verify")) {
+            return 0;
+        }
+        if (options.getType("verify") == ReadableType.Boolean) {
+            return options.getBoolean("verify") ? FileHeader.FLAG_CRC32 : 0;
+        }
+        return "sha256".equals(options.getString("verify")) ? FileHeader.FLAG_SHA256 : FileHeader.FLAG_CRC32;
+    }
+
+    /**
+     * Maps the `fsync` option of receiveFile: "none" (default), "end" or the number of megabytes
+     * written between two syncs.
+     */
+    private static long getSyncInterval(@Nullable ReadableMap options) {
+        if (options == null || !options.hasKey("fsync")) {
+            return FileReceiver.SYNC_NONE;
+        }
+        if (options.getType("fsync") == ReadableType.Number) {
+            return (long) (options.getDouble("fsync") * 1024 * 1024);
         }
+        return "end".equals(options.getString("fsync")) ? FileReceiver.SYNC_AT_END : FileReceiver.SYNC_NONE;
     }
 
     private void sendEvent(String eventName, @Nullable WritableMap params) {
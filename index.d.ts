@@ -33,9 +33,219 @@ export interface WifiP2pInfo {
     groupFormed: boolean
     isGroupOwner: boolean
 }
+export interface ReceivedMessage {
+    message: string
+    fromAddress: string
+}
+export interface ReceivedBinaryMessage {
+    /** The payload, base64 encoded. */
+    data: string
+    fromAddress: string
+}
+export interface SpilledMessage {
+    /** Temp file the message was written to; move or delete it once handled. */
+    file: string
+    /** Size of the message in bytes. */
+    size: number
+    fromAddress: string
+}
+export interface RemoteCall {
+    /** Pass to `respond` or `respondError`; every call has to be answered once. */
+    requestId: number
+    method: string
+    payload: string
+    fromAddress: string
+}
+export interface ReceivedDatagram {
+    /** The text of the datagram; `data` instead for binary ones. */
+    message?: string
+    /** The payload of a binary datagram, base64 encoded. */
+    data?: string
+    fromAddress: string
+    sequence: number
+    /** Datagrams of the sender that never arrived between the previous one and this one. */
+    lost: number
+}
+export interface SocketOptions {
+    /** SO_SNDBUF in bytes, the platform default when omitted. */
+    sendBufferSize?: number
+    /** SO_RCVBUF in bytes, the platform default when omitted. */
+    receiveBufferSize?: number
+    /** Disable Nagle's algorithm; `true` by default for messages. */
+    tcpNoDelay?: boolean
+    /** Send TCP keepalive probes on idle connections. */
+    keepAlive?: boolean
+    /** The IP TOS byte, e.g. `0xb8` for latency sensitive traffic. */
+    trafficClass?: number
+    /** Milliseconds to wait for a connection, 5000 by default. */
+    connectTimeout?: number
+    /** Milliseconds a blocking read waits for data before the transfer fails, 0 (for ever) by default. */
+    readTimeout?: number
+}
+export interface PortOptions {
+    /** Port of the receiver, 8988 by default. */
+    port?: number
+    /** Overrides the defaults set with `setSocketOptions` for this call. */
+    socketOptions?: SocketOptions
+}
+export interface RelayOptions extends PortOptions {
+    /**
+     * Connect through the relay started with `startRelay` on this peer, or on the group owner when
+     * `true`, instead of directly. Lets clients of a group reach each other.
+     */
+    relay?: boolean | string
+}
+export interface ReceiveMessagesOptions extends PortOptions {
+    /**
+     * Messages larger than this many bytes are written to a temp file as they arrive and delivered
+     * as a `SpilledMessage`, so memory use stays flat however large they are. Off by default.
+     */
+    spillThreshold?: number
+}
+export interface WarmUpOptions extends ReceiveMessagesOptions {
+    /** Milliseconds a client waits for the group owner to answer, 10000 by default. */
+    timeout?: number
+}
+export interface WarmUpConnectionOptions extends RelayOptions {
+    /** Milliseconds to wait for the peer to answer before rejecting with `TIMEOUT`, 10000 by default. */
+    timeout?: number
+}
+export interface ReceiveMessageOptions extends ReceiveMessagesOptions {
+    /** Resolve with `{ message, fromAddress }` instead of the message only. */
+    meta?: boolean
+}
+export interface BatchOptions {
+    /** Longest time in milliseconds a message is held back, 5 by default. */
+    maxDelay?: number
+    /** Flush once this many bytes are buffered, 16384 by default. */
+    maxBytes?: number
+    /** Flush once this many messages are buffered, 64 by default. */
+    maxCount?: number
+}
+export interface SendBinaryOptions extends RelayOptions {
+    /** Coalesce the message with the ones sent right after it, see `BatchOptions`. */
+    batch?: boolean | BatchOptions
+    /**
+     * Deflate the data on the wire: `true` for the fastest level, or a level from 1 to 9. Parts that
+     * don't shrink by at least 10% are sent as they are.
+     */
+    compression?: boolean | number
+}
+export interface SendMessageOptions extends SendBinaryOptions {
+    /** Reuse an open connection to the peer, `true` by default. */
+    pooled?: boolean
+    /** Lets `cancelTransfer` cancel an unpooled message. */
+    transferId?: string
+}
+export interface CallOptions extends RelayOptions {
+    /** Milliseconds to wait for the reply before rejecting with `TIMEOUT`, 10000 by default. */
+    timeout?: number
+    /** Deflate the request: `true` for the fastest level, or a level from 1 to 9. */
+    compression?: boolean | number
+}
+export interface DatagramOptions extends PortOptions {
+    /** Multicast group, e.g. `239.1.2.3`, to join when receiving or to send to when broadcasting. */
+    multicastGroup?: string
+}
+export interface ReceiveDatagramsOptions extends DatagramOptions {
+    /** Receive datagrams sent to the group's broadcast address too. */
+    broadcast?: boolean
+}
+export interface SendFileOptions extends RelayOptions {
+    /**
+     * Deflate the data on the wire: `true` for the fastest level, or a level from 1 to 9. Parts that
+     * don't shrink by at least 10% are sent as they are.
+     */
+    compression?: boolean | number
+    /** Number of parallel sockets the file is striped over, 1 by default and at most 16. */
+    streams?: number
+    /** Size in bytes of the chunks the file is split into, 1 MiB by default. */
+    chunkSize?: number
+    /** Skip the transfer when the receiver already has a file with the same content. */
+    dedup?: boolean
+    /**
+     * Only send what changed since the version the receiver has at its destination. Uses a single
+     * stream; `streams` and `dedup` are ignored.
+     */
+    delta?: boolean
+    /**
+     * Have the receiver check every chunk against a checksum, `true` for CRC32. Corrupt chunks are
+     * sent again.
+     */
+    verify?: boolean | 'crc32' | 'sha256'
+    /**
+     * Identifies the transfer so a retry resumes it and `cancelTransfer` can cancel it; derived from
+     * the file when omitted.
+     */
+    transferId?: string
+}
+export interface SendFilesOptions extends RelayOptions {
+    /** Files below this folder keep their path relative to it, others are sent by file name. */
+    basePath?: string
+    /** Reported as the `transferId` of progress events and accepted by `cancelTransfer`. */
+    transferId?: string
+}
+export interface ReceivedFile {
+    file: string
+    relativePath: string
+    size: number
+    index: number
+}
+export interface TransferProgress {
+    /** The `transferId` option of the sender, or an id derived from the transfer. */
+    transferId: string
+    direction: 'send' | 'receive'
+    bytesTransferred: number
+    /** -1 when the size is not known up front. */
+    totalBytes: number
+    /** Rate since the previous report. */
+    bytesPerSecond: number
+    averageBytesPerSecond: number
+    /** Estimated milliseconds left, -1 when unknown. */
+    eta: number
+}
+export interface ReceiveFileOptions extends PortOptions {
+    /** When to fsync the received file: never (default), once at the end or every N megabytes. */
+    fsync?: 'none' | 'end' | number
+    /** Lets `cancelTransfer` stop waiting for the file. */
+    transferId?: string
+}
+export interface QueueOptions extends PortOptions {
+    /** Milliseconds the item may wait for its peer before it is dropped, a day by default. */
+    ttl?: number
+    /** Deliver through a relay, see `RelayOptions`. */
+    relay?: boolean | string
+}
+export interface OutboxItem {
+    id: number
+    kind: 'message' | 'file'
+    /** The peer, `null` for the group owner of the group the item is delivered in. */
+    address: string | null
+    /** In `getOutbox`: when the item is dropped, in milliseconds since the epoch. */
+    expiresAt?: number
+    message?: string
+    /** The URI of the file. */
+    file?: string
+    /** In `OUTBOX_UPDATED_ACTION` events: why the item left the outbox. */
+    status?: 'delivered' | 'expired'
+}
+export interface BroadcastResult {
+    time: number
+    /** Addresses that got the file or message. */
+    delivered: string[]
+    /** `address: error` of every peer that didn't. */
+    failed: string[]
+}
 export const PEERS_UPDATED_ACTION: string
 export const CONNECTION_INFO_UPDATED_ACTION: string
 export const THIS_DEVICE_CHANGED_ACTION: string
+export const MESSAGE_RECEIVED_ACTION: string
+export const BINARY_MESSAGE_RECEIVED_ACTION: string
+export const FILE_RECEIVED_ACTION: string
+export const TRANSFER_PROGRESS_ACTION: string
+export const REMOTE_CALL_ACTION: string
+export const DATAGRAM_RECEIVED_ACTION: string
+export const OUTBOX_UPDATED_ACTION: string
 // public methods
 export const initialize: () => Promise<boolean>
 export const startDiscoveringPeers: () => Promise<string>
@@ -74,13 +284,61 @@ export const createGroup: () => Promise<void>
 export const removeGroup: () => Promise<void>
 export const getConnectionInfo: () => Promise<WifiP2pInfo>
 export const getGroupInfo: () => Promise<GroupInfo>
-export const sendFile: (pathToFile: string) => Promise<{ time: number, file: string }>
-export const sendFileTo: (pathToFile: string, address: string) => Promise<{ time: number, file: string }>
-export const receiveFile: (folder: string, fileName: string, forceToScanGallery?: boolean) => Promise<string>
-export const sendMessage: (message: string) => Promise<{ time: number, message: string }>
-export const sendMessageTo: (message: string, address: string) => Promise<{ time: number, message: string }>
-export const receiveMessage: (props: { meta: boolean }) => Promise<string>
+export const sendFile: (pathToFile: string, options?: SendFileOptions) => Promise<{ time: number, file: string }>
+export const sendFileTo: (pathToFile: string, address: string, options?: SendFileOptions) => Promise<{ time: number, file: string }>
+export const receiveFile: (folder: string, fileName: string, forceToScanGallery?: boolean, options?: ReceiveFileOptions) => Promise<string>
+export const sendFiles: (pathsToFiles: string[], options?: SendFilesOptions) => Promise<{ time: number, files: number }>
+export const sendFilesTo: (pathsToFiles: string[], address: string, options?: SendFilesOptions) => Promise<{ time: number, files: number }>
+export const receiveFiles: (folder: string, options?: ReceiveFileOptions) => Promise<string[]>
+export const subscribeOnFileReceived: (callback: (data: ReceivedFile) => void) => EmitterSubscription
+export const subscribeOnTransferProgress: (callback: (data: TransferProgress) => void) => EmitterSubscription
+/** Rejects only when no peer got the file. `streams`, `dedup` and `delta` don't apply. */
+export const broadcastFile: (pathToFile: string, addresses: string[], options?: SendFileOptions) => Promise<BroadcastResult & { file: string }>
+export const broadcastMessage: (message: string, addresses: string[], options?: SendBinaryOptions) => Promise<BroadcastResult>
+export const cancelTransfer: (transferId: string) => Promise<boolean>
+export const setSocketOptions: (options?: SocketOptions) => void
+/** `null` stops warming up groups formed from now on. */
+export const setWarmUp: (options?: WarmUpOptions | null) => void
+/** Resolve once the peer answered on the pooled connection, `time` includes connecting. */
+export const warmUpConnection: (options?: WarmUpConnectionOptions) => Promise<{ time: number }>
+export const warmUpConnectionTo: (address: string, options?: WarmUpConnectionOptions) => Promise<{ time: number }>
+export const sendMessage: (message: string, options?: SendMessageOptions) => Promise<{ time: number, message: string }>
+export const sendMessageTo: (message: string, address: string, options?: SendMessageOptions) => Promise<{ time: number, message: string }>
+export const receiveMessage: (props?: ReceiveMessageOptions) => Promise<string | SpilledMessage>
+export const startReceivingMessages: (options?: ReceiveMessagesOptions) => void
 export const stopReceivingMessage: () => void
+export const subscribeOnMessageReceived: (callback: (data: ReceivedMessage | SpilledMessage) => void) => EmitterSubscription
+export const sendBinary: (data: string | ArrayBuffer | ArrayBufferView, options?: SendBinaryOptions) => Promise<{ time: number, size: number }>
+export const sendBinaryTo: (data: string | ArrayBuffer | ArrayBufferView, address: string, options?: SendBinaryOptions) => Promise<{ time: number, size: number }>
+export const subscribeOnBinaryMessageReceived: (callback: (data: ReceivedBinaryMessage | SpilledMessage) => void) => EmitterSubscription
+/** Resolves with the sequence number of the datagram once it was handed to the network. */
+export const sendDatagram: (data: string | ArrayBuffer | ArrayBufferView, address: string, options?: DatagramOptions) => Promise<number>
+export const broadcastDatagram: (data: string | ArrayBuffer | ArrayBufferView, options?: DatagramOptions) => Promise<number>
+export const startReceivingDatagrams: (options?: ReceiveDatagramsOptions) => Promise<void>
+export const stopReceivingDatagrams: () => void
+export const subscribeOnDatagramReceived: (callback: (datagram: ReceivedDatagram) => void) => EmitterSubscription
+/** Forwards the connections of peers sending with the `relay` option; meant for the group owner. */
+export const startRelay: (options?: PortOptions) => Promise<void>
+export const stopRelay: () => void
+/** Peers besides the group owner whose relayed connections report the sender's address. */
+export const setTrustedRelays: (addresses: string[]) => void
+/** Resolve with the outbox id once the item is stored; delivery is reported by `OUTBOX_UPDATED_ACTION`. */
+export const queueMessage: (message: string, options?: QueueOptions) => Promise<number>
+export const queueMessageTo: (message: string, address: string, options?: QueueOptions) => Promise<number>
+export const queueFile: (pathToFile: string, options?: QueueOptions) => Promise<number>
+export const queueFileTo: (pathToFile: string, address: string, options?: QueueOptions) => Promise<number>
+export const getOutbox: () => Promise<OutboxItem[]>
+export const removeFromOutbox: (id: number) => Promise<boolean>
+export const setOutboxLimit: (maxBytes: number) => void
+export const subscribeOnOutboxUpdated: (callback: (item: OutboxItem) => void) => EmitterSubscription
+/** Rejects with `TIMEOUT` when no reply came in time and `REMOTE_ERROR` when the peer called `respondError`. */
+export const callRemote: (method: string, payload?: string, options?: CallOptions) => Promise<string>
+export const callRemoteTo: (method: string, payload: string, address: string, options?: CallOptions) => Promise<string>
+export const respond: (requestId: number, payload?: string) => void
+export const respondError: (requestId: number, error: string | Error) => void
+export const subscribeOnRemoteCall: (callback: (call: RemoteCall) => void) => EmitterSubscription
+/** Answers every remote call with the handler's result, or with an error when it throws or rejects. */
+export const handleRemoteCalls: (handler: (method: string, payload: string, fromAddress: string) => string | void | Promise<string | void>) => EmitterSubscription
 
 export function subscribeOnDnsTxtRecordAvailable(callback: any): void;
 export function subscribeOnDnsSdServiceAvailable(callback: any): void;
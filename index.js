@@ -10,6 +10,13 @@ const CONNECTION_INFO_UPDATED_ACTION = "CONNECTION_INFO_UPDATED";
 const THIS_DEVICE_CHANGED_ACTION = "THIS_DEVICE_CHANGED_ACTION";
 const DNSTXTRECORD_AVAILABLE_ACTION = "DNSTXTRECORDAVAILABLE";
 const DNSSDSERVICE_AVAILABLE_ACTION = "DNSSDSERVICEAVAILABLE";
+const MESSAGE_RECEIVED_ACTION = "MESSAGE_RECEIVED";
+const BINARY_MESSAGE_RECEIVED_ACTION = "BINARY_MESSAGE_RECEIVED";
+const FILE_RECEIVED_ACTION = "FILE_RECEIVED";
+const TRANSFER_PROGRESS_ACTION = "TRANSFER_PROGRESS";
+const REMOTE_CALL_ACTION = "REMOTE_CALL";
+const DATAGRAM_RECEIVED_ACTION = "DATAGRAM_RECEIVED";
+const OUTBOX_UPDATED_ACTION = "OUTBOX_UPDATED";
 
 // CONSTS
 const MODULE_NAME = "WIFI_P2P";
@@ -43,6 +50,12 @@ const subscribeOnConnectionInfoUpdates = (callback) => subscribeOnEvent(CONNECTI
 const subscribeOnDnsSdServiceAvailable = (callback) =>
   subscribeOnEvent(DNSSDSERVICE_AVAILABLE_ACTION, callback);
 
+const subscribeOnMessageReceived = (callback) =>
+  subscribeOnEvent(MESSAGE_RECEIVED_ACTION, callback);
+
+const subscribeOnBinaryMessageReceived = (callback) =>
+  subscribeOnEvent(BINARY_MESSAGE_RECEIVED_ACTION, callback);
+
 const connect = (deviceAddress) => connectWithConfig({ deviceAddress });
 
 const connectWithConfig = (args) =>
@@ -82,20 +95,138 @@ const stopDiscoveringPeers = () =>
     });
   });
 
-const sendFile = (pathToFile) => WiFiP2PManager.sendFile(pathToFile);
+const sendFile = (pathToFile, options = {}) => WiFiP2PManager.sendFile(pathToFile, options);
+
+const sendFileTo = (pathToFile, address, options = {}) => WiFiP2PManager.sendFileTo(pathToFile, address, options);
+
+const broadcastFile = (pathToFile, addresses, options = {}) => WiFiP2PManager.broadcastFile(pathToFile, addresses, options);
+
+const broadcastMessage = (message, addresses, options = {}) => WiFiP2PManager.broadcastMessage(message, addresses, options);
+
+const cancelTransfer = (transferId) => WiFiP2PManager.cancelTransfer(transferId);
 
-const sendFileTo = (pathToFile, address) => WiFiP2PManager.sendFileTo(pathToFile, address);
+const setSocketOptions = (options = {}) => WiFiP2PManager.setSocketOptions(options);
 
-const receiveFile = (folder, fileName, forceToScanGallery = false) => new Promise((resolve, reject) => {
-    WiFiP2PManager.receiveFile(folder, fileName, forceToScanGallery, (pathToFile) => {
-        resolve(pathToFile);
+// Connect to the group owner, or start receiving on it, as soon as a group is formed; null turns it off.
+const setWarmUp = (options = {}) => WiFiP2PManager.setWarmUp(options);
+
+const warmUpConnection = (options = {}) => WiFiP2PManager.warmUpConnection(null, options);
+
+const warmUpConnectionTo = (address, options = {}) => WiFiP2PManager.warmUpConnection(address, options);
+
+const sendFiles = (pathsToFiles, options = {}) => WiFiP2PManager.sendFiles(pathsToFiles, options);
+
+const sendFilesTo = (pathsToFiles, address, options = {}) => WiFiP2PManager.sendFilesTo(pathsToFiles, address, options);
+
+const receiveFiles = (folder, options = {}) => new Promise((resolve, reject) => {
+    WiFiP2PManager.receiveFiles(folder, options, (pathsToFiles, error) => {
+        error === undefined ? resolve(pathsToFiles) : reject(new Error(error));
       }
     );
   });
 
-const sendMessage = (message) => WiFiP2PManager.sendMessage(message);
+const subscribeOnFileReceived = (callback) =>
+  subscribeOnEvent(FILE_RECEIVED_ACTION, callback);
+
+const subscribeOnTransferProgress = (callback) =>
+  subscribeOnEvent(TRANSFER_PROGRESS_ACTION, callback);
+
+const receiveFile = (folder, fileName, forceToScanGallery = false, options = {}) => new Promise((resolve, reject) => {
+    WiFiP2PManager.receiveFile(folder, fileName, forceToScanGallery, options, (pathToFile, error) => {
+        error === undefined ? resolve(pathToFile) : reject(new Error(error));
+      }
+    );
+  });
+
+const sendMessage = (message, options = {}) => WiFiP2PManager.sendMessage(message, options);
+
+const sendMessageTo = (message, address, options = {}) => WiFiP2PManager.sendMessageTo(message, address, options);
+
+const BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+// The bridge only carries strings, so an ArrayBuffer or typed array is passed on base64 encoded.
+const toBase64 = (data) => {
+  if (typeof data === "string") {
+    return data;
+  }
+  const bytes = ArrayBuffer.isView(data)
+    ? new Uint8Array(data.buffer, data.byteOffset, data.byteLength)
+    : new Uint8Array(data);
+  let result = "";
+  for (let i = 0; i < bytes.length; i += 3) {
+    const chunk = (bytes[i] << 16) | ((bytes[i + 1] || 0) << 8) | (bytes[i + 2] || 0);
+    result += BASE64_ALPHABET[(chunk >> 18) & 63] + BASE64_ALPHABET[(chunk >> 12) & 63];
+    result += i + 1 < bytes.length ? BASE64_ALPHABET[(chunk >> 6) & 63] : "=";
+    result += i + 2 < bytes.length ? BASE64_ALPHABET[chunk & 63] : "=";
+  }
+  return result;
+};
+
+const sendBinary = (data, options = {}) => WiFiP2PManager.sendBinary(toBase64(data), options);
+
+const sendBinaryTo = (data, address, options = {}) => WiFiP2PManager.sendBinaryTo(toBase64(data), address, options);
+
+const callRemote = (method, payload = "", options = {}) => WiFiP2PManager.callRemote(method, payload, options);
+
+const callRemoteTo = (method, payload, address, options = {}) => WiFiP2PManager.callRemoteTo(method, payload, address, options);
+
+const respond = (requestId, payload = "") => WiFiP2PManager.respond(requestId, payload);
+
+const respondError = (requestId, error) => WiFiP2PManager.respondError(requestId, String(error));
+
+const subscribeOnRemoteCall = (callback) =>
+  subscribeOnEvent(REMOTE_CALL_ACTION, callback);
+
+// Answers every remote call with what the handler returns or resolves to, or with an error when it
+// throws or rejects. Every call has to be answered, or the caller waits until its timeout.
+const handleRemoteCalls = (handler) =>
+  subscribeOnRemoteCall(({ requestId, method, payload, fromAddress }) => {
+    Promise.resolve()
+      .then(() => handler(method, payload, fromAddress))
+      .then(
+        (result) => respond(requestId, result == null ? "" : String(result)),
+        (error) => respondError(requestId, error && error.message ? error.message : error),
+      );
+  });
+
+const sendDatagram = (data, address, options = {}) =>
+  WiFiP2PManager.sendDatagramTo(toBase64(data), typeof data !== "string", address, options);
+
+// To every peer of the group: the multicast group of the options, or the group's broadcast address.
+const broadcastDatagram = (data, options = {}) =>
+  WiFiP2PManager.sendDatagramTo(toBase64(data), typeof data !== "string", null, options);
+
+const startReceivingDatagrams = (options = {}) => WiFiP2PManager.startReceivingDatagrams(options);
+
+const stopReceivingDatagrams = () => WiFiP2PManager.stopReceivingDatagrams();
+
+const subscribeOnDatagramReceived = (callback) =>
+  subscribeOnEvent(DATAGRAM_RECEIVED_ACTION, callback);
 
-const sendMessageTo = (message, address) => WiFiP2PManager.sendMessageTo(message, address);
+const startRelay = (options = {}) => WiFiP2PManager.startRelay(options);
+
+const stopRelay = () => WiFiP2PManager.stopRelay();
+
+const setTrustedRelays = (addresses) => WiFiP2PManager.setTrustedRelays(addresses);
+
+// Stored on disk and delivered once a group is formed; resolve with the outbox id.
+const queueMessage = (message, options = {}) => WiFiP2PManager.queueMessageTo(message, null, options);
+
+const queueMessageTo = (message, address, options = {}) =>
+  WiFiP2PManager.queueMessageTo(message, address, options);
+
+const queueFile = (pathToFile, options = {}) => WiFiP2PManager.queueFileTo(pathToFile, null, options);
+
+const queueFileTo = (pathToFile, address, options = {}) =>
+  WiFiP2PManager.queueFileTo(pathToFile, address, options);
+
+const getOutbox = () => WiFiP2PManager.getOutbox();
+
+const removeFromOutbox = (id) => WiFiP2PManager.removeFromOutbox(id);
+
+const setOutboxLimit = (maxBytes) => WiFiP2PManager.setOutboxLimit(maxBytes);
+
+const subscribeOnOutboxUpdated = (callback) => subscribeOnEvent(OUTBOX_UPDATED_ACTION, callback);
 
 const receiveMessage = (props) => new Promise((resolve, reject) => {
     WiFiP2PManager.receiveMessage(props, (message) => {
@@ -103,6 +234,8 @@ const receiveMessage = (props) => new Promise((resolve, reject) => {
     });
   });
 
+const startReceivingMessages = (options = {}) => WiFiP2PManager.startReceivingMessages(options);
+
 const stopReceivingMessage = () => WiFiP2PManager.stopReceivingMessage()
 
 const getConnectionInfo = () => WiFiP2PManager.getConnectionInfo();
@@ -128,6 +261,8 @@ export {
   subscribeOnConnectionInfoUpdates,
   subscribeOnDnsTxtRecordAvailable,
   subscribeOnDnsSdServiceAvailable,
+  subscribeOnMessageReceived,
+  subscribeOnBinaryMessageReceived,
   getAvailablePeers,
   connect,
   connectWithConfig,
@@ -139,12 +274,55 @@ export {
   getPeerList,
   sendFile,
   sendFileTo,receiveFile,
+  sendFiles,
+  sendFilesTo,
+  receiveFiles,
+  subscribeOnFileReceived,
+  subscribeOnTransferProgress,
+  broadcastFile,
+  broadcastMessage,
   sendMessage,
-  sendMessageTo,receiveMessage,stopReceivingMessage,
+  sendMessageTo,receiveMessage,startReceivingMessages,stopReceivingMessage,
+  sendBinary,
+  sendBinaryTo,
+  callRemote,
+  callRemoteTo,
+  respond,
+  respondError,
+  subscribeOnRemoteCall,
+  handleRemoteCalls,
+  sendDatagram,
+  broadcastDatagram,
+  startReceivingDatagrams,
+  stopReceivingDatagrams,
+  subscribeOnDatagramReceived,
+  startRelay,
+  stopRelay,
+  setTrustedRelays,
+  queueMessage,
+  queueMessageTo,
+  queueFile,
+  queueFileTo,
+  getOutbox,
+  removeFromOutbox,
+  setOutboxLimit,
+  subscribeOnOutboxUpdated,
+  cancelTransfer,
+  setSocketOptions,
+  setWarmUp,
+  warmUpConnection,
+  warmUpConnectionTo,
   // system methods
   subscribeOnEvent,
   // const
   PEERS_UPDATED_ACTION,
   CONNECTION_INFO_UPDATED_ACTION,
   THIS_DEVICE_CHANGED_ACTION,
+  MESSAGE_RECEIVED_ACTION,
+  BINARY_MESSAGE_RECEIVED_ACTION,
+  FILE_RECEIVED_ACTION,
+  TRANSFER_PROGRESS_ACTION,
+  REMOTE_CALL_ACTION,
+  DATAGRAM_RECEIVED_ACTION,
+  OUTBOX_UPDATED_ACTION,
 };